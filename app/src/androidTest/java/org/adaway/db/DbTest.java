@@ -1,6 +1,7 @@
 package org.adaway.db;
 
 import android.content.Context;
+import android.database.Cursor;
 
 import androidx.annotation.Nullable;
 import androidx.arch.core.executor.testing.InstantTaskExecutorRule;
@@ -16,6 +17,7 @@ import org.adaway.db.dao.HostsSourceDao;
 import org.adaway.db.entity.HostEntry;
 import org.adaway.db.entity.HostListItem;
 import org.adaway.db.entity.HostsSource;
+import org.adaway.ui.lists.ListsFilter;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
@@ -23,9 +25,12 @@ import org.junit.Test;
 import org.junit.rules.TestRule;
 import org.junit.runner.RunWith;
 
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 import static org.adaway.db.entity.HostsSource.USER_SOURCE_ID;
 import static org.adaway.db.entity.HostsSource.USER_SOURCE_URL;
@@ -33,8 +38,10 @@ import static org.adaway.db.entity.ListType.ALLOWED;
 import static org.adaway.db.entity.ListType.BLOCKED;
 import static org.adaway.db.entity.ListType.REDIRECTED;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 /**
  * This class tests the hosts database feature.
@@ -234,6 +241,47 @@ public class DbTest {
         assertEquals("1.2.3.4", entry.getRedirection());
     }
 
+    @Test
+    public void testSearch() {
+        insertSource(USER_SOURCE_ID, USER_SOURCE_URL);
+        insertBlockedHost("a.com", USER_SOURCE_ID);
+        insertBlockedHost("adaway.org", USER_SOURCE_ID);
+        insertBlockedHost("ads.example.com", USER_SOURCE_ID);
+        insertBlockedHost("bad.com", USER_SOURCE_ID);
+        insertBlockedHost("example.ad.com", USER_SOURCE_ID);
+        insertBlockedHost("mytracker.com", USER_SOURCE_ID);
+        insertBlockedHost("x-ad.net", USER_SOURCE_ID);
+        // Test short searches without trigram match any substring
+        assertNull(new ListsFilter(true, "da").matchQuery);
+        assertSearch("a", "a.com", "adaway.org", "ads.example.com", "bad.com", "example.ad.com", "mytracker.com", "x-ad.net");
+        assertSearch("ad", "adaway.org", "ads.example.com", "bad.com", "example.ad.com", "x-ad.net");
+        assertSearch("da", "adaway.org");
+        // Test trigram searches match any substring, within labels or across them
+        assertNotNull(new ListsFilter(true, "tracker").matchQuery);
+        assertSearch("ada", "adaway.org");
+        assertSearch("daw", "adaway.org");
+        assertSearch("tracker", "mytracker.com");
+        assertSearch("bad", "bad.com");
+        assertSearch("example.ad", "example.ad.com");
+        assertSearch("d.com", "bad.com", "example.ad.com");
+        assertSearch("-ad", "x-ad.net");
+        // Test trigram searches check wildcards and trigram order
+        assertSearch("ads*com", "ads.example.com");
+        assertSearch("a?ay", "adaway.org");
+        assertSearch("wayada");
+    }
+
+    private void assertSearch(String query, String... hosts) {
+        ListsFilter filter = new ListsFilter(true, query);
+        List<HostListItem> items = filter.matchQuery == null ?
+                this.hostListItemDao.loadPageAfter(BLOCKED.getValue(), true, filter.sqlQuery, "", true, 10) :
+                this.hostListItemDao.searchPageAfter(BLOCKED.getValue(), true, filter.matchQuery, filter.sqlQuery, "", true, 10);
+        assertEquals(
+                Arrays.asList(hosts),
+                items.stream().map(HostListItem::getHost).collect(Collectors.toList())
+        );
+    }
+
     @Test
     public void testDuplicateEntries() throws InterruptedException {
         /*
@@ -391,6 +439,70 @@ public class DbTest {
         assertEquals("1.1.1.1", this.hostEntryDao.getEntry("adaway.org").getRedirection()); // User redirection must be apply
     }
 
+    @Test
+    public void testDeletedSource() throws InterruptedException {
+        /*
+         * Create sources.
+         */
+        // Insert user source and external source
+        insertSource(USER_SOURCE_ID, USER_SOURCE_URL);
+        insertSource(EXTERNAL_SOURCE_ID, "https://adaway.org/hosts.txt");
+        // Insert blocked hosts, one of them shared with the user list
+        insertBlockedHost("ads.example.com", USER_SOURCE_ID);
+        insertBlockedHost("ads.example.com", EXTERNAL_SOURCE_ID);
+        for (int i = 0; i < 5; i++) {
+            insertBlockedHost("tracker" + i + ".example.com", EXTERNAL_SOURCE_ID);
+        }
+        this.hostEntryDao.sync();
+        LiveData<Integer> blockedHostCount = this.hostListItemDao.getBlockedHostCount();
+        assertEquals(6, getOrAwaitValue(blockedHostCount).intValue());
+
+        /*
+         * Test deleted source is hidden at once.
+         */
+        HostsSource externalHostSource = getSourceFromId(EXTERNAL_SOURCE_ID);
+        this.hostsSourceDao.markDeleted(externalHostSource);
+        assertTrue(this.hostsSourceDao.getAll().isEmpty());
+        assertTrue(getOrAwaitValue(this.hostsSourceDao.loadAll()).isEmpty());
+        assertEquals(1, getOrAwaitValue(blockedHostCount).intValue());
+        assertEquals(
+                Collections.singletonList("ads.example.com"),
+                this.hostListItemDao.getAll().stream().map(HostListItem::getHost).collect(Collectors.toList())
+        );
+        this.hostEntryDao.sync();
+        assertEquals(1, this.hostEntryDao.getAll().size());
+        // Test deleted source URL can be reused
+        insertSource(EXTERNAL_SOURCE_ID + 1, "https://adaway.org/hosts.txt");
+        List<HostsSource> sources = this.hostsSourceDao.getAll();
+        assertEquals(1, sources.size());
+        assertEquals(EXTERNAL_SOURCE_ID + 1, sources.get(0).getId());
+
+        /*
+         * Test deleted source is reclaimed in chunks.
+         */
+        int chunkCount = 0;
+        while (DatabaseMaintenanceService.reclaimChunk(this.db, true, 2)) {
+            chunkCount++;
+        }
+        // 3 chunks of source hosts, the source purge then 3 chunks of orphan host names
+        assertEquals(7, chunkCount);
+        assertFalse(this.hostsSourceDao.getById(EXTERNAL_SOURCE_ID).isPresent());
+        assertTrue(this.hostsSourceDao.getDeletedIds().isEmpty());
+        assertEquals(0, count("SELECT count(*) FROM hosts_lists WHERE source_id = " + EXTERNAL_SOURCE_ID));
+        assertEquals(1, count("SELECT count(*) FROM host_names"));
+        assertEquals(1, getOrAwaitValue(blockedHostCount).intValue());
+        assertEquals(BLOCKED, this.hostEntryDao.getTypeForHost("ads.example.com"));
+        // Test nothing is left to reclaim
+        assertFalse(DatabaseMaintenanceService.reclaimChunk(this.db, true, 2));
+    }
+
+    private int count(String query) {
+        try (Cursor cursor = this.db.getOpenHelper().getReadableDatabase().query(query)) {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(0);
+        }
+    }
+
     private void insertSource(int id, String url) {
         HostsSource source = new HostsSource();
         source.setId(id);
@@ -0,0 +1,114 @@
+package org.adaway.db;
+
+import android.database.Cursor;
+
+import androidx.room.Room;
+import androidx.room.migration.Migration;
+import androidx.room.testing.MigrationTestHelper;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.framework.FrameworkSQLiteOpenHelperFactory;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.adaway.db.entity.HostName;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+
+import static org.adaway.db.Migrations.MIGRATION_10_11;
+import static org.adaway.db.Migrations.MIGRATION_11_12;
+import static org.adaway.db.Migrations.MIGRATION_12_13;
+import static org.adaway.db.Migrations.MIGRATION_13_14;
+import static org.adaway.db.Migrations.MIGRATION_14_15;
+import static org.adaway.db.Migrations.MIGRATION_6_7;
+import static org.adaway.db.Migrations.MIGRATION_7_8;
+import static org.adaway.db.Migrations.MIGRATION_8_9;
+import static org.adaway.db.Migrations.MIGRATION_9_10;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * This class tests the database migrations against the exported schemas.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+@RunWith(AndroidJUnit4.class)
+public class MigrationTest {
+    private static final String TEST_DB = "migration-test";
+    private static final Migration[] MIGRATIONS = {
+            MIGRATION_6_7,
+            MIGRATION_7_8,
+            MIGRATION_8_9,
+            MIGRATION_9_10,
+            MIGRATION_10_11,
+            MIGRATION_11_12,
+            MIGRATION_12_13,
+            MIGRATION_13_14,
+            MIGRATION_14_15
+    };
+    @Rule
+    public MigrationTestHelper helper = new MigrationTestHelper(
+            InstrumentationRegistry.getInstrumentation(),
+            AppDatabase.class.getCanonicalName(),
+            new FrameworkSQLiteOpenHelperFactory()
+    );
+
+    @Test
+    public void testMigrate6To15() throws IOException {
+        // Create version 6 database with a user source, an enabled source and a disabled source
+        try (SupportSQLiteDatabase db = this.helper.createDatabase(TEST_DB, 6)) {
+            db.execSQL("INSERT INTO `hosts_sources` (`id`, `label`, `url`, `enabled`, `allowEnabled`, `redirectEnabled`, `size`) VALUES " +
+                    "(1, 'User', 'content://org.adaway/user/hosts', 1, 1, 1, 0), " +
+                    "(2, 'AdAway', 'https://adaway.org/hosts.txt', 1, 0, 0, 0), " +
+                    "(3, 'Disabled', 'https://example.com/hosts.txt', 0, 0, 0, 0)");
+            db.execSQL("INSERT INTO `hosts_lists` (`id`, `host`, `type`, `enabled`, `redirection`, `source_id`) VALUES " +
+                    "(1, 'ads.example.com', 0, 1, NULL, 2), " +
+                    "(2, 'ads.example.com', 0, 1, NULL, 1), " +
+                    "(3, 'tracker.example.org', 0, 1, NULL, 3), " +
+                    "(4, 'example.com', 1, 1, NULL, 1), " +
+                    "(5, 'redirect.example.net', 2, 1, '1.2.3.4', 1)");
+        }
+        // Migrate one version at a time to validate each exported schema
+        for (Migration migration : MIGRATIONS) {
+            this.helper.runMigrationsAndValidate(TEST_DB, migration.endVersion, true, migration).close();
+        }
+        // Test migrated content
+        try (SupportSQLiteDatabase db = this.helper.runMigrationsAndValidate(TEST_DB, 15, true)) {
+            assertEquals(4, queryLong(db, "SELECT COUNT(*) FROM `host_names`"));
+            assertEquals("com.example.ads", queryString(db, "SELECT `reversed` FROM `host_names` WHERE `name` = 'ads.example.com'"));
+            assertEquals(5, queryLong(db, "SELECT COUNT(*) FROM `host_list_items`"));
+            assertEquals(0, queryLong(db, "SELECT `enabled` FROM `host_list_items` WHERE `id` = 3"));
+            assertEquals("1.2.3.4", queryString(db, "SELECT `redirection` FROM `host_list_items` WHERE `host` = 'redirect.example.net'"));
+            assertEquals(HostName.getTrigrams("ads.example.com"), queryString(db, "SELECT `trigrams` FROM `host_names` WHERE `name` = 'ads.example.com'"));
+            assertEquals("tracker.example.org", queryString(db, "SELECT `name` FROM `host_names` WHERE `id` IN (SELECT `docid` FROM `host_names_fts` WHERE `host_names_fts` MATCH '\"ack\" \"ker\"')"));
+            assertEquals(0, queryLong(db, "SELECT COUNT(*) FROM `hosts_sources` WHERE `deleted` = 1"));
+        }
+        // Test Room opens the migrated database with the current schema
+        AppDatabase database = Room.databaseBuilder(
+                InstrumentationRegistry.getInstrumentation().getTargetContext(),
+                AppDatabase.class,
+                TEST_DB
+        ).addMigrations(MIGRATIONS).build();
+        try {
+            assertTrue(database.getOpenHelper().getWritableDatabase().isOpen());
+        } finally {
+            database.close();
+        }
+    }
+
+    private static long queryLong(SupportSQLiteDatabase db, String query) {
+        try (Cursor cursor = db.query(query)) {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        }
+    }
+
+    private static String queryString(SupportSQLiteDatabase db, String query) {
+        try (Cursor cursor = db.query(query)) {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(0);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package org.adaway.db;
+
+import android.content.Context;
+
+import androidx.room.Room;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * This class tests the database maintenance of {@link StorageProfile}.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+@RunWith(AndroidJUnit4.class)
+public class StorageProfileTest {
+    private AppDatabase db;
+
+    @Before
+    public void createDb() {
+        Context context = ApplicationProvider.getApplicationContext();
+        this.db = Room.inMemoryDatabaseBuilder(context, AppDatabase.class)
+                .allowMainThreadQueries()
+                .build();
+    }
+
+    @After
+    public void closeDb() {
+        this.db.close();
+    }
+
+    @Test
+    public void testIncrementalVacuum() {
+        SupportSQLiteDatabase database = this.db.getOpenHelper().getWritableDatabase();
+        // Test the migration pragma alone does not switch an existing database
+        assertEquals(0, StorageProfile.queryPragma(database, "auto_vacuum"));
+        database.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+        assertEquals(0, StorageProfile.queryPragma(database, "auto_vacuum"));
+        // Test the maintenance switches it with a full vacuum
+        StorageProfile.enableIncrementalVacuum(this.db);
+        assertEquals(2, StorageProfile.queryPragma(database, "auto_vacuum"));
+        // Test free pages are then released
+        database.execSQL("CREATE TABLE `vacuum_test` (`value` TEXT)");
+        for (int i = 0; i < 1000; i++) {
+            database.execSQL("INSERT INTO `vacuum_test` VALUES (hex(randomblob(256)))");
+        }
+        database.execSQL("DROP TABLE `vacuum_test`");
+        assertTrue(StorageProfile.queryPragma(database, "freelist_count") > 0);
+        StorageProfile.incrementalVacuum(this.db);
+        assertEquals(0, StorageProfile.queryPragma(database, "freelist_count"));
+    }
+}
@@ -0,0 +1,232 @@
+package org.adaway.ui.lists;
+
+import android.content.Context;
+
+import androidx.arch.core.executor.testing.InstantTaskExecutorRule;
+import androidx.paging.PagingConfig;
+import androidx.paging.PagingSource.LoadParams;
+import androidx.paging.PagingSource.LoadResult;
+import androidx.paging.PagingState;
+import androidx.room.Room;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.adaway.db.AppDatabase;
+import org.adaway.db.dao.HostListItemDao;
+import org.adaway.db.dao.HostsSourceDao;
+import org.adaway.db.entity.HostListItem;
+import org.adaway.db.entity.HostsSource;
+import org.adaway.db.entity.ListType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TestRule;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import kotlin.Unit;
+
+import static org.adaway.db.entity.HostsSource.USER_SOURCE_ID;
+import static org.adaway.db.entity.HostsSource.USER_SOURCE_URL;
+import static org.adaway.db.entity.ListType.ALLOWED;
+import static org.adaway.db.entity.ListType.BLOCKED;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * This class tests the {@link HostListItemPagingSource} pages seeked from host names.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+@RunWith(AndroidJUnit4.class)
+public class HostListItemPagingSourceTest {
+    private static final int EXTERNAL_SOURCE_ID = 2;
+    private static final int PAGE_SIZE = 10;
+    @Rule
+    public TestRule rule = new InstantTaskExecutorRule();
+    private AppDatabase db;
+    private HostsSourceDao hostsSourceDao;
+    private HostListItemDao hostListItemDao;
+
+    @Before
+    public void createDb() {
+        Context context = ApplicationProvider.getApplicationContext();
+        this.db = Room.inMemoryDatabaseBuilder(context, AppDatabase.class)
+                .allowMainThreadQueries()
+                .build();
+        this.hostsSourceDao = this.db.hostsSourceDao();
+        this.hostListItemDao = this.db.hostsListItemDao();
+        insertSource(USER_SOURCE_ID, USER_SOURCE_URL);
+        insertSource(EXTERNAL_SOURCE_ID, "https://adaway.org/hosts.txt");
+        // Insert 25 blocked hosts from host00.example.com to host24.example.com
+        for (int i = 0; i < 25; i++) {
+            insertHost(BLOCKED, getHost(i), USER_SOURCE_ID);
+        }
+    }
+
+    @After
+    public void closeDb() {
+        this.db.close();
+    }
+
+    @Test
+    public void testPageBoundaries() throws Exception {
+        HostListItemPagingSource source = createSource(ListsFilter.ALL);
+        // Test initial load from the list beginning
+        LoadResult.Page<String, HostListItem> page = load(source, new LoadParams.Refresh<>(null, PAGE_SIZE, false));
+        assertHosts(page, 0, 10);
+        assertNull(page.getPrevKey());
+        assertEquals(getHost(9), page.getNextKey());
+        // Test appended pages start after the key, up to the list end
+        page = load(source, new LoadParams.Append<>(page.getNextKey(), PAGE_SIZE, false));
+        assertHosts(page, 10, 20);
+        assertEquals(getHost(10), page.getPrevKey());
+        assertEquals(getHost(19), page.getNextKey());
+        page = load(source, new LoadParams.Append<>(page.getNextKey(), PAGE_SIZE, false));
+        assertHosts(page, 20, 25);
+        assertNull(page.getNextKey());
+        // Test prepended pages end before the key, in list order, down to the list beginning
+        page = load(source, new LoadParams.Prepend<>(getHost(20), PAGE_SIZE, false));
+        assertHosts(page, 10, 20);
+        assertEquals(getHost(10), page.getPrevKey());
+        page = load(source, new LoadParams.Prepend<>(getHost(5), PAGE_SIZE, false));
+        assertHosts(page, 0, 5);
+        assertNull(page.getPrevKey());
+        assertEquals(getHost(4), page.getNextKey());
+    }
+
+    @Test
+    public void testRefresh() throws Exception {
+        HostListItemPagingSource source = createSource(ListsFilter.ALL);
+        // Test reload includes the key item
+        LoadResult.Page<String, HostListItem> page = load(source, new LoadParams.Refresh<>(getHost(5), PAGE_SIZE, false));
+        assertHosts(page, 5, 15);
+        assertEquals(getHost(5), page.getPrevKey());
+        assertEquals(getHost(14), page.getNextKey());
+        // Test reload from a removed key starts from the following item
+        page = load(source, new LoadParams.Refresh<>(getHost(5) + "-removed", PAGE_SIZE, false));
+        assertHosts(page, 6, 16);
+        // Test reload after the list end restarts from the list beginning
+        page = load(source, new LoadParams.Refresh<>("zzz", PAGE_SIZE, false));
+        assertHosts(page, 0, 10);
+        assertNull(page.getPrevKey());
+        // Test refresh key is the host of the anchor item
+        LoadResult.Page<String, HostListItem> firstPage = load(source, new LoadParams.Refresh<>(null, PAGE_SIZE, false));
+        LoadResult.Page<String, HostListItem> secondPage = load(source, new LoadParams.Append<>(firstPage.getNextKey(), PAGE_SIZE, false));
+        PagingConfig config = new PagingConfig(PAGE_SIZE);
+        PagingState<String, HostListItem> state = new PagingState<>(Arrays.asList(firstPage, secondPage), 12, config, 0);
+        assertEquals(getHost(12), source.getRefreshKey(state));
+        state = new PagingState<>(Arrays.asList(firstPage, secondPage), null, config, 0);
+        assertNull(source.getRefreshKey(state));
+        state = new PagingState<>(Collections.emptyList(), 0, config, 0);
+        assertNull(source.getRefreshKey(state));
+    }
+
+    @Test
+    public void testFilters() throws Exception {
+        insertHost(BLOCKED, "example.com", USER_SOURCE_ID);
+        insertHost(BLOCKED, "www.notexample.com", USER_SOURCE_ID);
+        insertHost(BLOCKED, "host30.example.com", EXTERNAL_SOURCE_ID);
+        insertHost(ALLOWED, "host31.example.com", USER_SOURCE_ID);
+        // Test subdomain query pages walk the reversed host name index
+        HostListItemPagingSource source = createSource(new ListsFilter(true, "*.example.com"));
+        LoadResult.Page<String, HostListItem> page = load(source, new LoadParams.Refresh<>(getHost(20), PAGE_SIZE, false));
+        assertEquals(Arrays.asList(getHost(20), getHost(21), getHost(22), getHost(23), getHost(24), "host30.example.com"), getHosts(page));
+        assertNull(page.getNextKey());
+        page = load(source, new LoadParams.Prepend<>(getHost(20), PAGE_SIZE, false));
+        assertHosts(page, 10, 20);
+        // Test trigram query pages
+        source = createSource(new ListsFilter(true, "host1"));
+        page = load(source, new LoadParams.Refresh<>(null, PAGE_SIZE, false));
+        assertHosts(page, 10, 20);
+        assertEquals(getHost(19), page.getNextKey());
+        page = load(source, new LoadParams.Append<>(page.getNextKey(), PAGE_SIZE, false));
+        assertTrue(page.getData().isEmpty());
+        assertNull(page.getNextKey());
+        page = load(source, new LoadParams.Prepend<>(getHost(15), PAGE_SIZE, false));
+        assertHosts(page, 10, 15);
+        assertNull(page.getPrevKey());
+        // Test source hosts are excluded
+        source = createSource(new ListsFilter(false, "host3"));
+        page = load(source, new LoadParams.Refresh<>(null, PAGE_SIZE, false));
+        assertTrue(page.getData().isEmpty());
+        source = createSource(new ListsFilter(true, "host3"));
+        page = load(source, new LoadParams.Refresh<>(null, PAGE_SIZE, false));
+        assertEquals(Collections.singletonList("host30.example.com"), getHosts(page));
+    }
+
+    @Test
+    public void testInvalidation() throws Exception {
+        HostListItemPagingSource source = createSource(ListsFilter.ALL);
+        CountDownLatch latch = new CountDownLatch(1);
+        source.registerInvalidatedCallback(() -> {
+            latch.countDown();
+            return Unit.INSTANCE;
+        });
+        load(source, new LoadParams.Refresh<>(null, PAGE_SIZE, false));
+        assertFalse(source.getInvalid());
+        // Test a list change invalidates the loaded source
+        insertHost(BLOCKED, "new.example.com", USER_SOURCE_ID);
+        assertTrue(latch.await(2, TimeUnit.SECONDS));
+        assertTrue(source.getInvalid());
+        // Test a new source sees the change
+        source = createSource(new ListsFilter(true, "new."));
+        LoadResult.Page<String, HostListItem> page = load(source, new LoadParams.Refresh<>(null, PAGE_SIZE, false));
+        assertEquals(Collections.singletonList("new.example.com"), getHosts(page));
+    }
+
+    private HostListItemPagingSource createSource(ListsFilter filter) {
+        return new HostListItemPagingSource(this.db, BLOCKED, filter);
+    }
+
+    private static LoadResult.Page<String, HostListItem> load(HostListItemPagingSource source, LoadParams<String> params) throws Exception {
+        LoadResult<String, HostListItem> result = source.loadFuture(params).get(2, TimeUnit.SECONDS);
+        assertTrue(result instanceof LoadResult.Page);
+        return (LoadResult.Page<String, HostListItem>) result;
+    }
+
+    private static void assertHosts(LoadResult.Page<String, HostListItem> page, int from, int to) {
+        List<String> hosts = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            hosts.add(getHost(i));
+        }
+        assertEquals(hosts, getHosts(page));
+    }
+
+    private static List<String> getHosts(LoadResult.Page<String, HostListItem> page) {
+        return page.getData().stream().map(HostListItem::getHost).collect(Collectors.toList());
+    }
+
+    private static String getHost(int index) {
+        return String.format(Locale.ROOT, "host%02d.example.com", index);
+    }
+
+    private void insertSource(int id, String url) {
+        HostsSource source = new HostsSource();
+        source.setId(id);
+        source.setLabel(url);
+        source.setUrl(url);
+        source.setEnabled(true);
+        this.hostsSourceDao.insert(source);
+    }
+
+    private void insertHost(ListType type, String host, int sourceId) {
+        HostListItem item = new HostListItem();
+        item.setType(type);
+        item.setHost(host);
+        item.setEnabled(true);
+        item.setSourceId(sourceId);
+        this.hostListItemDao.insert(item);
+    }
+}
@@ -0,0 +1,293 @@
+package org.adaway.vpn;
+
+import android.content.Context;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructPollfd;
+import android.util.Log;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static android.system.OsConstants.AF_UNIX;
+import static android.system.OsConstants.EAGAIN;
+import static android.system.OsConstants.POLLIN;
+import static android.system.OsConstants.POLLOUT;
+import static android.system.OsConstants.SOCK_NONBLOCK;
+import static android.system.OsConstants.SOCK_SEQPACKET;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * This class measures the DNS query throughput of the VPN {@link VpnEventLoop} and
+ * {@link VpnPipeline}.<br>
+ * The device is one end of a socket pair. The test writes IPv4 DNS queries to the other end,
+ * keeping a window of queries in flight, and reads their answers. Allowed queries are forwarded
+ * to a local upstream server answering at once. Throughputs depend on the device so they are
+ * only logged.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+@RunWith(AndroidJUnit4.class)
+public class VpnThroughputTest {
+    private static final String TAG = "VpnThroughputTest";
+    /* The number of queries to measure, after as many to warm up */
+    private static final int QUERY_COUNT = 10_000;
+    /* The number of queries in flight, like a browser loading a page */
+    private static final int WINDOW = 64;
+    /* The number of distinct names of the cached queries */
+    private static final int CACHED_NAME_COUNT = 256;
+    /* The time to wait for an answer before failing (in milliseconds) */
+    private static final int ANSWER_TIMEOUT_MS = 5000;
+    private static final int IPV4_UDP_HEADER_LENGTH = 20 + 8;
+    private static final byte[] CLIENT_ADDRESS = {10, 0, 0, 1};
+    private static final byte[] DNS_ADDRESS = {10, 0, 0, 2};
+    private Context context;
+    private FakeUpstreamServer upstreamServer;
+
+    @Before
+    public void setUp() throws IOException {
+        this.context = ApplicationProvider.getApplicationContext();
+        this.upstreamServer = new FakeUpstreamServer();
+    }
+
+    @After
+    public void tearDown() {
+        this.upstreamServer.close();
+    }
+
+    @Test
+    public void testCachedThroughput() throws Exception {
+        double eventLoopThroughput = measure(false, false);
+        double pipelineThroughput = measure(true, false);
+        Log.i(TAG, String.format(Locale.ROOT, "Cached queries: single thread %.0f queries/s, pipeline %.0f queries/s",
+                eventLoopThroughput, pipelineThroughput));
+    }
+
+    @Test
+    public void testUpstreamThroughput() throws Exception {
+        double eventLoopThroughput = measure(false, true);
+        double pipelineThroughput = measure(true, true);
+        Log.i(TAG, String.format(Locale.ROOT, "Upstream queries: single thread %.0f queries/s, pipeline %.0f queries/s",
+                eventLoopThroughput, pipelineThroughput));
+    }
+
+    /**
+     * Measure the throughput of a VPN mode.
+     *
+     * @param pipeline    {@code true} to run the pipeline, {@code false} to run the single thread event loop.
+     * @param uniqueNames {@code true} to query a new name each time so each query is forwarded
+     *                    upstream, {@code false} to repeat a few names answered from the cache.
+     * @return The number of answered queries per second.
+     */
+    private double measure(boolean pipeline, boolean uniqueNames) throws Exception {
+        FileDescriptor deviceFd = new FileDescriptor();
+        FileDescriptor clientFd = new FileDescriptor();
+        Os.socketpair(AF_UNIX, SOCK_SEQPACKET | SOCK_NONBLOCK, 0, deviceFd, clientFd);
+        FileDescriptor[] blockPipe = Os.pipe();
+        InetAddress upstreamAddress = this.upstreamServer.getAddress();
+        DnsServerMapper dnsServerMapper = new DnsServerMapper(this.context) {
+            @Override
+            InetAddress translate(InetAddress fakeDnsAddress) {
+                return upstreamAddress;
+            }
+        };
+        PacketRing deviceWrites = new PacketRing(128, VpnWorker.MAX_RESPONSE_PACKET_SIZE);
+        DnsForwarder dnsForwarder = new DnsForwarder(new android.net.VpnService(), dnsServerMapper, deviceWrites);
+        dnsForwarder.initialize(false);
+        VpnWatchdog vpnWatchdog = new VpnWatchdog();
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        Thread vpnThread = new Thread(() -> {
+            try {
+                if (pipeline) {
+                    new VpnPipeline(this.context, dnsServerMapper, dnsForwarder, deviceWrites, vpnWatchdog).run(deviceFd, blockPipe[0]);
+                } else {
+                    new VpnEventLoop(this.context, dnsServerMapper, dnsForwarder, deviceWrites, vpnWatchdog).run(deviceFd, blockPipe[0]);
+                }
+            } catch (ErrnoException | VpnWorker.VpnNetworkException | RuntimeException e) {
+                failure.set(e);
+            }
+        }, "VpnThroughputTest");
+        vpnThread.start();
+        long duration;
+        try {
+            // Warm up then measure
+            runQueries(clientFd, 0, uniqueNames);
+            long start = System.nanoTime();
+            runQueries(clientFd, QUERY_COUNT, uniqueNames);
+            duration = System.nanoTime() - start;
+        } finally {
+            // Closing the block pipe write end stops the VPN thread
+            Os.close(blockPipe[1]);
+            vpnThread.join(5000);
+            Os.close(blockPipe[0]);
+            Os.close(deviceFd);
+            Os.close(clientFd);
+            dnsForwarder.getUpstreamSocketPool().close();
+        }
+        assertFalse(vpnThread.isAlive());
+        assertNull(failure.get());
+        return QUERY_COUNT * 1_000_000_000D / duration;
+    }
+
+    private void runQueries(FileDescriptor clientFd, int firstIndex, boolean uniqueNames) throws ErrnoException, InterruptedIOException {
+        int port = this.upstreamServer.getPort();
+        ByteBuffer query = ByteBuffer.allocate(512);
+        ByteBuffer answer = ByteBuffer.allocate(VpnWorker.MAX_RESPONSE_PACKET_SIZE);
+        StructPollfd clientPoll = new StructPollfd();
+        clientPoll.fd = clientFd;
+        StructPollfd[] polls = {clientPoll};
+        int sent = 0;
+        int answered = 0;
+        while (answered < QUERY_COUNT) {
+            boolean sending = sent < QUERY_COUNT && sent - answered < WINDOW;
+            clientPoll.events = (short) (sending ? POLLIN | POLLOUT : POLLIN);
+            if (Os.poll(polls, ANSWER_TIMEOUT_MS) == 0) {
+                fail("No answer after " + answered + " answered queries");
+            }
+            if ((clientPoll.revents & POLLOUT) != 0) {
+                while (sent < QUERY_COUNT && sent - answered < WINDOW) {
+                    int index = firstIndex + sent;
+                    writeQuery(query, uniqueNames ? index : index % CACHED_NAME_COUNT, index, port);
+                    if (!transfer(clientFd, query, true)) {
+                        break;
+                    }
+                    sent++;
+                }
+            }
+            if ((clientPoll.revents & POLLIN) != 0) {
+                answer.clear();
+                while (transfer(clientFd, answer, false)) {
+                    // Check the query response flag
+                    assertTrue((answer.get(IPV4_UDP_HEADER_LENGTH + 2) & 0x80) != 0);
+                    answered++;
+                    answer.clear();
+                }
+            }
+        }
+    }
+
+    private static boolean transfer(FileDescriptor fd, ByteBuffer buffer, boolean write) throws ErrnoException, InterruptedIOException {
+        try {
+            if (write) {
+                Os.write(fd, buffer);
+            } else {
+                Os.read(fd, buffer);
+            }
+            return true;
+        } catch (ErrnoException e) {
+            if (e.errno == EAGAIN) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    private static void writeQuery(ByteBuffer buffer, int nameIndex, int id, int port) {
+        byte[][] labels = {
+                ("host" + nameIndex).getBytes(StandardCharsets.US_ASCII),
+                "example".getBytes(StandardCharsets.US_ASCII),
+                "com".getBytes(StandardCharsets.US_ASCII)
+        };
+        int nameLength = 1;
+        for (byte[] label : labels) {
+            nameLength += 1 + label.length;
+        }
+        int dnsLength = 12 + nameLength + 4;
+        buffer.clear();
+        // IPv4 header, without checksum as it is not checked
+        buffer.put((byte) 0x45).put((byte) 0).putShort((short) (IPV4_UDP_HEADER_LENGTH + dnsLength))
+                .putInt(0)
+                .put((byte) 64).put((byte) 17).putShort((short) 0)
+                .put(CLIENT_ADDRESS)
+                .put(DNS_ADDRESS);
+        // UDP header, from a port per query as stub resolvers do
+        buffer.putShort((short) (1024 + id % 60_000)).putShort((short) port)
+                .putShort((short) (8 + dnsLength)).putShort((short) 0);
+        // DNS query of an A record, with recursion desired
+        buffer.putShort((short) id).putShort((short) 0x0100)
+                .putShort((short) 1).putShort((short) 0).putShort((short) 0).putShort((short) 0);
+        for (byte[] label : labels) {
+            buffer.put((byte) label.length).put(label);
+        }
+        buffer.put((byte) 0).putShort((short) 1).putShort((short) 1);
+        buffer.flip();
+    }
+
+    /**
+     * This class is an upstream DNS server answering each query at once with an A record.
+     */
+    private static class FakeUpstreamServer implements Closeable {
+        private static final int MAXIMUM_QUERY_LENGTH = 512;
+        private static final int ANSWER_LENGTH = 16;
+        private final DatagramSocket socket;
+        private final Thread thread;
+
+        FakeUpstreamServer() throws IOException {
+            this.socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+            this.thread = new Thread(this::serve, "FakeUpstreamServer");
+            this.thread.start();
+        }
+
+        InetAddress getAddress() {
+            return this.socket.getLocalAddress();
+        }
+
+        int getPort() {
+            return this.socket.getLocalPort();
+        }
+
+        private void serve() {
+            byte[] buffer = new byte[MAXIMUM_QUERY_LENGTH + ANSWER_LENGTH];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                while (!this.socket.isClosed()) {
+                    packet.setLength(MAXIMUM_QUERY_LENGTH);
+                    this.socket.receive(packet);
+                    int length = packet.getLength();
+                    // Set response and recursion available flags and add an answer to the question name
+                    buffer[2] |= (byte) 0x80;
+                    buffer[3] = (byte) 0x80;
+                    buffer[7] = 1;
+                    ByteBuffer.wrap(buffer, length, ANSWER_LENGTH)
+                            .putShort((short) 0xC00C).putShort((short) 1).putShort((short) 1)
+                            .putInt(300)
+                            .putShort((short) 4).put(new byte[]{127, 0, 0, 2});
+                    packet.setLength(length + ANSWER_LENGTH);
+                    this.socket.send(packet);
+                }
+            } catch (IOException e) {
+                // Stop serving once closed
+            }
+        }
+
+        @Override
+        public void close() {
+            this.socket.close();
+            try {
+                this.thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -4,6 +4,7 @@ import android.app.Application;
 
 import com.topjohnwu.superuser.Shell;
 
+import org.adaway.db.DatabaseMaintenanceService;
 import org.adaway.helper.NotificationHelper;
 import org.adaway.helper.PreferenceHelper;
 import org.adaway.model.adblocking.AdBlockMethod;
@@ -53,6 +54,9 @@ public class AdAwayApplication extends Application {
         // Create models
         this.sourceModel = new SourceModel(this);
         this.updateModel = new UpdateModel(this);
+        // Schedule database maintenance and resume reclaiming deleted sources
+        DatabaseMaintenanceService.enable(this);
+        DatabaseMaintenanceService.reclaimDeletedSources(this);
     }
 
     /**
@@ -16,15 +16,29 @@ import org.adaway.db.dao.HostEntryDao;
 import org.adaway.db.dao.HostListItemDao;
 import org.adaway.db.dao.HostsSourceDao;
 import org.adaway.db.entity.HostListItem;
+import org.adaway.db.entity.HostListRecord;
+import org.adaway.db.entity.HostListStagedItem;
+import org.adaway.db.entity.HostName;
+import org.adaway.db.entity.HostNameFts;
 import org.adaway.db.entity.HostsSource;
 import org.adaway.db.entity.HostEntry;
+import org.adaway.db.entity.ListStat;
 import org.adaway.util.AppExecutors;
 
+import static org.adaway.db.Migrations.MIGRATION_10_11;
+import static org.adaway.db.Migrations.MIGRATION_11_12;
+import static org.adaway.db.Migrations.MIGRATION_12_13;
+import static org.adaway.db.Migrations.MIGRATION_13_14;
+import static org.adaway.db.Migrations.MIGRATION_14_15;
 import static org.adaway.db.Migrations.MIGRATION_1_2;
 import static org.adaway.db.Migrations.MIGRATION_2_3;
 import static org.adaway.db.Migrations.MIGRATION_3_4;
 import static org.adaway.db.Migrations.MIGRATION_4_5;
 import static org.adaway.db.Migrations.MIGRATION_5_6;
+import static org.adaway.db.Migrations.MIGRATION_6_7;
+import static org.adaway.db.Migrations.MIGRATION_7_8;
+import static org.adaway.db.Migrations.MIGRATION_8_9;
+import static org.adaway.db.Migrations.MIGRATION_9_10;
 import static org.adaway.db.entity.HostsSource.USER_SOURCE_ID;
 import static org.adaway.db.entity.HostsSource.USER_SOURCE_URL;
 
@@ -33,7 +47,19 @@ import static org.adaway.db.entity.HostsSource.USER_SOURCE_URL;
  *
  * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
  */
-@Database(entities = {HostsSource.class, HostListItem.class, HostEntry.class}, version = 6)
+@Database(
+        entities = {
+                HostsSource.class,
+                HostName.class,
+                HostNameFts.class,
+                HostListRecord.class,
+                HostListStagedItem.class,
+                HostEntry.class,
+                ListStat.class
+        },
+        views = {HostListItem.class},
+        version = 15
+)
 @TypeConverters({ListTypeConverter.class, ZonedDateTimeConverter.class})
 public abstract class AppDatabase extends RoomDatabase {
     /**
@@ -62,12 +88,26 @@ public abstract class AppDatabase extends RoomDatabase {
                                     () -> AppDatabase.initialize(context, instance)
                             );
                         }
+
+                        @Override
+                        public void onOpen(@NonNull SupportSQLiteDatabase db) {
+                            StorageProfile.DEFAULT.apply(db);
+                        }
                     }).addMigrations(
                             MIGRATION_1_2,
                             MIGRATION_2_3,
                             MIGRATION_3_4,
                             MIGRATION_4_5,
-                            MIGRATION_5_6
+                            MIGRATION_5_6,
+                            MIGRATION_6_7,
+                            MIGRATION_7_8,
+                            MIGRATION_8_9,
+                            MIGRATION_9_10,
+                            MIGRATION_10_11,
+                            MIGRATION_11_12,
+                            MIGRATION_12_13,
+                            MIGRATION_13_14,
+                            MIGRATION_14_15
                     ).build();
                 }
             }
@@ -0,0 +1,172 @@
+package org.adaway.db;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.work.Constraints;
+import androidx.work.ExistingPeriodicWorkPolicy;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.PeriodicWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import org.adaway.db.dao.HostListItemDao;
+import org.adaway.db.dao.HostsSourceDao;
+import org.adaway.util.AppExecutors;
+import org.adaway.util.Log;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static androidx.work.ExistingWorkPolicy.KEEP;
+import static androidx.work.ListenableWorker.Result.success;
+import static java.util.concurrent.TimeUnit.DAYS;
+
+/**
+ * This class is a service to reclaim the database storage.<br>
+ * Deleted hosts sources are reclaimed in bounded chunks so no single transaction blocks the
+ * database, then an incremental vacuum is scheduled to release the free pages. The free pages
+ * left by the source updates are released by a daily maintenance when the device is idle.
+ * The implementation is based on WorkManager from Android X.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public final class DatabaseMaintenanceService {
+    private static final String TAG = "DatabaseMaintenance";
+    private static final Executor EXECUTOR = AppExecutors.getInstance().diskIO();
+    /**
+     * The name of the vacuum work.
+     */
+    private static final String VACUUM_WORK_NAME = "DatabaseVacuumWork";
+    /**
+     * The name of the periodic maintenance work.
+     */
+    private static final String MAINTENANCE_WORK_NAME = "DatabaseMaintenanceWork";
+    /**
+     * The maximum number of rows to delete per transaction.
+     */
+    private static final int DELETE_CHUNK_SIZE = 5000;
+
+    /**
+     * Private constructor.
+     */
+    private DatabaseMaintenanceService() {
+
+    }
+
+    /**
+     * Enable the periodic database maintenance.
+     *
+     * @param context The application context.
+     */
+    public static void enable(Context context) {
+        PeriodicWorkRequest workRequest = new PeriodicWorkRequest.Builder(VacuumWorker.class, 1, DAYS)
+                .setConstraints(getIdleConstraints())
+                .build();
+        WorkManager.getInstance(context).enqueueUniquePeriodicWork(MAINTENANCE_WORK_NAME, ExistingPeriodicWorkPolicy.KEEP, workRequest);
+    }
+
+    /**
+     * Reclaim the hosts of the deleted sources in background.
+     *
+     * @param context The application context.
+     */
+    public static void reclaimDeletedSources(Context context) {
+        Context applicationContext = context.getApplicationContext();
+        EXECUTOR.execute(() -> reclaimNextChunk(applicationContext, false));
+    }
+
+    /**
+     * Reclaim a chunk of the deleted sources then queue the next one.<br>
+     * Each chunk is a separate executor task so other database tasks can run in between.
+     *
+     * @param context   The application context.
+     * @param reclaimed Whether deleted source hosts were already reclaimed.
+     */
+    private static void reclaimNextChunk(Context context, boolean reclaimed) {
+        AppDatabase database = AppDatabase.getInstance(context);
+        if (reclaimChunk(database, reclaimed, DELETE_CHUNK_SIZE)) {
+            EXECUTOR.execute(() -> reclaimNextChunk(context, true));
+            return;
+        }
+        if (!reclaimed) {
+            return;
+        }
+        StorageProfile.checkpoint(database);
+        scheduleVacuum(context);
+    }
+
+    /**
+     * Reclaim a chunk of the deleted sources: their hosts, then the source itself, then the host
+     * names no more referenced.
+     *
+     * @param database  The database to reclaim.
+     * @param reclaimed Whether deleted source hosts were already reclaimed.
+     * @param chunkSize The maximum number of rows to delete.
+     * @return {@code true} if a chunk was reclaimed and the next one must be, {@code false} if there is nothing left to reclaim.
+     */
+    static boolean reclaimChunk(AppDatabase database, boolean reclaimed, int chunkSize) {
+        HostsSourceDao hostsSourceDao = database.hostsSourceDao();
+        HostListItemDao hostListItemDao = database.hostsListItemDao();
+        // Delete source hosts then the source itself
+        List<Integer> deletedIds = hostsSourceDao.getDeletedIds();
+        if (!deletedIds.isEmpty()) {
+            int id = deletedIds.get(0);
+            if (hostsSourceDao.deleteSourceHosts(id, chunkSize) == 0) {
+                hostsSourceDao.purge(id);
+                Log.i(TAG, "Deleted source " + id + " reclaimed.");
+            }
+            return true;
+        }
+        // Delete host names no more referenced
+        return reclaimed && hostListItemDao.deleteOrphanHostNames(chunkSize) > 0;
+    }
+
+    /**
+     * Schedule an incremental vacuum when the device is idle.
+     *
+     * @param context The application context.
+     */
+    private static void scheduleVacuum(Context context) {
+        OneTimeWorkRequest workRequest = new OneTimeWorkRequest.Builder(VacuumWorker.class)
+                .setConstraints(getIdleConstraints())
+                .build();
+        WorkManager.getInstance(context).enqueueUniqueWork(VACUUM_WORK_NAME, KEEP, workRequest);
+    }
+
+    private static Constraints getIdleConstraints() {
+        return new Constraints.Builder()
+                .setRequiresDeviceIdle(true)
+                .setRequiresStorageNotLow(true)
+                .build();
+    }
+
+    /**
+     * This class is a {@link Worker} to release the free pages of the database.<br>
+     * It switches the database to incremental auto vacuum first if needed.
+     *
+     * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+     */
+    public static class VacuumWorker extends Worker {
+        /**
+         * Constructor.
+         *
+         * @param context      The application context.
+         * @param workerParams The parameters to setup this worker.
+         */
+        public VacuumWorker(@NonNull Context context, @NonNull WorkerParameters workerParams) {
+            super(context, workerParams);
+        }
+
+        @NonNull
+        @Override
+        public Result doWork() {
+            AppDatabase database = AppDatabase.getInstance(getApplicationContext());
+            StorageProfile.enableIncrementalVacuum(database);
+            StorageProfile.incrementalVacuum(database);
+            StorageProfile.checkpoint(database);
+            return success();
+        }
+    }
+}
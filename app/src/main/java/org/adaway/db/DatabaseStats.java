@@ -0,0 +1,129 @@
+package org.adaway.db;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import androidx.sqlite.db.SupportSQLiteDatabase;
+
+import org.adaway.util.Log;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class represents the database storage statistics.<br>
+ * Object sizes rely on the {@code dbstat} virtual table and are empty if SQLite was built without
+ * it. The storage of a source is estimated as its share of the list records applied to the
+ * storage of the lists and host names tables and indexes.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public class DatabaseStats {
+    private static final String TAG = "DatabaseStats";
+    /**
+     * The database file name.
+     */
+    private static final String DATABASE_NAME = "app.db";
+    /**
+     * The database size (in bytes).
+     */
+    public final long databaseSize;
+    /**
+     * The write-ahead log size (in bytes).
+     */
+    public final long walSize;
+    /**
+     * The number of free pages.
+     */
+    public final long freePages;
+    /**
+     * The page size (in bytes).
+     */
+    public final long pageSize;
+    /**
+     * The index sizes (in bytes) by index name, from the largest to the smallest.
+     */
+    public final Map<String, Long> indexSizes;
+    /**
+     * The estimated source storages (in bytes) by source label, from the largest to the smallest.
+     */
+    public final Map<String, Long> sourceSizes;
+
+    private DatabaseStats(long databaseSize, long walSize, long freePages, long pageSize,
+                          Map<String, Long> indexSizes, Map<String, Long> sourceSizes) {
+        this.databaseSize = databaseSize;
+        this.walSize = walSize;
+        this.freePages = freePages;
+        this.pageSize = pageSize;
+        this.indexSizes = indexSizes;
+        this.sourceSizes = sourceSizes;
+    }
+
+    /**
+     * Compute the database storage statistics.<br>
+     * It reads the whole database file so it must not be called from the main thread.
+     *
+     * @param context The application context.
+     * @return The database storage statistics.
+     */
+    public static DatabaseStats compute(Context context) {
+        AppDatabase database = AppDatabase.getInstance(context);
+        SupportSQLiteDatabase readableDatabase = database.getOpenHelper().getReadableDatabase();
+        long pageSize = StorageProfile.queryPragma(readableDatabase, "page_size");
+        long pageCount = StorageProfile.queryPragma(readableDatabase, "page_count");
+        long freePages = StorageProfile.queryPragma(readableDatabase, "freelist_count");
+        File walFile = new File(context.getDatabasePath(DATABASE_NAME).getPath() + "-wal");
+        // Compute object sizes
+        Map<String, Long> indexSizes = new LinkedHashMap<>();
+        long listsSize = -1;
+        try (Cursor cursor = readableDatabase.query("SELECT `dbstat`.`name`, `sqlite_master`.`type`, " +
+                "`sqlite_master`.`tbl_name`, SUM(`pgsize`) AS `size` FROM `dbstat` " +
+                "LEFT JOIN `sqlite_master` ON `sqlite_master`.`name` = `dbstat`.`name` " +
+                "GROUP BY `dbstat`.`name` ORDER BY `size` DESC")) {
+            listsSize = 0;
+            while (cursor.moveToNext()) {
+                String name = cursor.getString(0);
+                String type = cursor.getString(1);
+                String table = cursor.getString(2);
+                long size = cursor.getLong(3);
+                if ("index".equals(type)) {
+                    indexSizes.put(name, size);
+                }
+                if ("hosts_lists".equals(table) || "host_names".equals(table) || name.startsWith("host_names_fts")) {
+                    listsSize += size;
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to compute database object sizes.", e);
+        }
+        // Fall back to the used pages if the object sizes are not available
+        if (listsSize < 0) {
+            listsSize = (pageCount - freePages) * pageSize;
+        }
+        // Estimate source storages
+        Map<String, Long> sourceSizes = new LinkedHashMap<>();
+        try (Cursor cursor = readableDatabase.query("SELECT `label`, " +
+                "(SELECT COUNT(`id`) FROM `hosts_lists` WHERE `source_id` = `hosts_sources`.`id`) AS `records`, " +
+                "(SELECT COUNT(`id`) FROM `hosts_lists`) AS `total` " +
+                "FROM `hosts_sources` WHERE `deleted` = 0 ORDER BY `records` DESC")) {
+            while (cursor.moveToNext()) {
+                String label = cursor.getString(0);
+                long records = cursor.getLong(1);
+                long total = cursor.getLong(2);
+                sourceSizes.put(label, total == 0 ? 0 : listsSize * records / total);
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to compute source storages.", e);
+        }
+        return new DatabaseStats(
+                pageCount * pageSize,
+                walFile.length(),
+                freePages,
+                pageSize,
+                Collections.unmodifiableMap(indexSizes),
+                Collections.unmodifiableMap(sourceSizes)
+        );
+    }
+}
@@ -1,8 +1,13 @@
 package org.adaway.db;
 
+import android.database.Cursor;
+
 import androidx.annotation.NonNull;
 import androidx.room.migration.Migration;
 import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.SupportSQLiteStatement;
+
+import org.adaway.db.entity.HostName;
 
 import static org.adaway.db.entity.HostsSource.USER_SOURCE_ID;
 import static org.adaway.db.entity.HostsSource.USER_SOURCE_URL;
@@ -99,4 +104,170 @@ class Migrations {
             database.execSQL("DELETE FROM `hosts_sources` WHERE `url` LIKE \"file://%\"");
         }
     };
+
+    /**
+     * Migration script from v6 to v7.
+     */
+    static final Migration MIGRATION_6_7 = new Migration(6, 7) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            // Create host names dictionary
+            database.execSQL("CREATE TABLE IF NOT EXISTS `host_names` (`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, `name` TEXT NOT NULL)");
+            database.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS `index_host_names_name` ON `host_names` (`name`)");
+            database.execSQL("INSERT INTO `host_names` (`name`) SELECT DISTINCT `host` FROM `hosts_lists`");
+            // Reference host names from hosts lists
+            database.execSQL("CREATE TABLE `hosts_lists_new` (`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, `host_id` INTEGER NOT NULL, `type` INTEGER NOT NULL, `enabled` INTEGER NOT NULL, `redirection` TEXT, `source_id` INTEGER NOT NULL, FOREIGN KEY(`host_id`) REFERENCES `host_names`(`id`) ON UPDATE CASCADE ON DELETE CASCADE , FOREIGN KEY(`source_id`) REFERENCES `hosts_sources`(`id`) ON UPDATE CASCADE ON DELETE CASCADE )");
+            database.execSQL("INSERT INTO `hosts_lists_new` (`id`, `host_id`, `type`, `enabled`, `redirection`, `source_id`) SELECT `hosts_lists`.`id`, `host_names`.`id`, `type`, `enabled`, `redirection`, `source_id` FROM `hosts_lists` INNER JOIN `host_names` ON `host_names`.`name` = `hosts_lists`.`host`");
+            database.execSQL("DROP TABLE `hosts_lists`");
+            database.execSQL("ALTER TABLE `hosts_lists_new` RENAME TO `hosts_lists`");
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_hosts_lists_host_id` ON `hosts_lists` (`host_id`)");
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_hosts_lists_source_id` ON `hosts_lists` (`source_id`)");
+            // Create list items view
+            database.execSQL("CREATE VIEW `host_list_items` AS SELECT `hosts_lists`.`id`, `host_names`.`name` AS `host`, `hosts_lists`.`type`, `hosts_lists`.`enabled`, `hosts_lists`.`redirection`, `hosts_lists`.`source_id` FROM `hosts_lists` INNER JOIN `host_names` ON `host_names`.`id` = `hosts_lists`.`host_id`");
+        }
+    };
+
+    /**
+     * Migration script from v7 to v8.
+     */
+    static final Migration MIGRATION_7_8 = new Migration(7, 8) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            // Create list statistics table
+            database.execSQL("CREATE TABLE IF NOT EXISTS `list_stats` (`type` INTEGER NOT NULL, `count` INTEGER NOT NULL, PRIMARY KEY(`type`))");
+            database.execSQL("INSERT INTO `list_stats` (`type`, `count`) SELECT `type`, COUNT(DISTINCT `host_id`) FROM `hosts_lists` WHERE `enabled` = 1 GROUP BY `type`");
+        }
+    };
+
+    /**
+     * Migration script from v8 to v9.
+     */
+    static final Migration MIGRATION_8_9 = new Migration(8, 9) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            // Create hosts lists staging table
+            database.execSQL("CREATE TABLE IF NOT EXISTS `hosts_lists_staging` (`id` INTEGER NOT NULL, `host` TEXT NOT NULL, `type` INTEGER NOT NULL, `enabled` INTEGER NOT NULL, `redirection` TEXT, `source_id` INTEGER NOT NULL, PRIMARY KEY(`id`))");
+        }
+    };
+
+    /**
+     * Migration script from v9 to v10.
+     */
+    static final Migration MIGRATION_9_10 = new Migration(9, 10) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            // Create host names full text index
+            database.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS `host_names_fts` USING FTS4(`name` TEXT NOT NULL, content=`host_names`, prefix=`2,3`)");
+            database.execSQL("CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_host_names_fts_BEFORE_UPDATE BEFORE UPDATE ON `host_names` BEGIN DELETE FROM `host_names_fts` WHERE `docid`=OLD.`rowid`; END");
+            database.execSQL("CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_host_names_fts_BEFORE_DELETE BEFORE DELETE ON `host_names` BEGIN DELETE FROM `host_names_fts` WHERE `docid`=OLD.`rowid`; END");
+            database.execSQL("CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_host_names_fts_AFTER_UPDATE AFTER UPDATE ON `host_names` BEGIN INSERT INTO `host_names_fts`(`docid`, `name`) VALUES (NEW.`rowid`, NEW.`name`); END");
+            database.execSQL("CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_host_names_fts_AFTER_INSERT AFTER INSERT ON `host_names` BEGIN INSERT INTO `host_names_fts`(`docid`, `name`) VALUES (NEW.`rowid`, NEW.`name`); END");
+            // Index existing host names
+            database.execSQL("INSERT INTO `host_names_fts`(`host_names_fts`) VALUES('rebuild')");
+        }
+    };
+
+    /**
+     * Migration script from v10 to v11.
+     */
+    static final Migration MIGRATION_10_11 = new Migration(10, 11) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            // Add reversed host name columns
+            database.execSQL("ALTER TABLE `host_names` ADD COLUMN `reversed` TEXT NOT NULL DEFAULT ''");
+            database.execSQL("DELETE FROM `hosts_lists_staging`");
+            database.execSQL("ALTER TABLE `hosts_lists_staging` ADD COLUMN `reversed` TEXT NOT NULL DEFAULT ''");
+            // Compute reversed host names without updating the full text index as names do not change
+            database.execSQL("DROP TRIGGER IF EXISTS room_fts_content_sync_host_names_fts_BEFORE_UPDATE");
+            database.execSQL("DROP TRIGGER IF EXISTS room_fts_content_sync_host_names_fts_AFTER_UPDATE");
+            SupportSQLiteStatement statement = database.compileStatement("UPDATE `host_names` SET `reversed` = ? WHERE `id` = ?");
+            try (Cursor cursor = database.query("SELECT `id`, `name` FROM `host_names`")) {
+                while (cursor.moveToNext()) {
+                    statement.bindString(1, HostName.reverse(cursor.getString(1)));
+                    statement.bindLong(2, cursor.getLong(0));
+                    statement.executeUpdateDelete();
+                }
+            }
+            database.execSQL("CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_host_names_fts_BEFORE_UPDATE BEFORE UPDATE ON `host_names` BEGIN DELETE FROM `host_names_fts` WHERE `docid`=OLD.`rowid`; END");
+            database.execSQL("CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_host_names_fts_AFTER_UPDATE AFTER UPDATE ON `host_names` BEGIN INSERT INTO `host_names_fts`(`docid`, `name`) VALUES (NEW.`rowid`, NEW.`name`); END");
+            database.execSQL("CREATE INDEX IF NOT EXISTS `index_host_names_reversed` ON `host_names` (`reversed`)");
+        }
+    };
+
+    /**
+     * Migration script from v11 to v12.
+     */
+    static final Migration MIGRATION_11_12 = new Migration(11, 12) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            // Restore items of disabled sources as source state is now resolved by the list view
+            database.execSQL("UPDATE `hosts_lists` SET `enabled` = 1 WHERE `source_id` IN (SELECT `id` FROM `hosts_sources` WHERE `enabled` = 0)");
+            // Update host list items view
+            database.execSQL("DROP VIEW IF EXISTS `host_list_items`");
+            database.execSQL("CREATE VIEW `host_list_items` AS SELECT `hosts_lists`.`id`, `host_names`.`name` AS `host`, `hosts_lists`.`type`, `hosts_lists`.`enabled` AND `hosts_sources`.`enabled` AS `enabled`, `hosts_lists`.`redirection`, `hosts_lists`.`source_id` FROM `hosts_lists` INNER JOIN `host_names` ON `host_names`.`id` = `hosts_lists`.`host_id` INNER JOIN `hosts_sources` ON `hosts_sources`.`id` = `hosts_lists`.`source_id`");
+        }
+    };
+
+    /**
+     * Migration script from v12 to v13.
+     */
+    static final Migration MIGRATION_12_13 = new Migration(12, 13) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            // Add hosts source deleted flag
+            database.execSQL("ALTER TABLE `hosts_sources` ADD COLUMN `deleted` INTEGER NOT NULL DEFAULT 0");
+            // Hide the items of deleted sources
+            database.execSQL("DROP VIEW IF EXISTS `host_list_items`");
+            database.execSQL("CREATE VIEW `host_list_items` AS SELECT `hosts_lists`.`id`, `host_names`.`name` AS `host`, `hosts_lists`.`type`, `hosts_lists`.`enabled` AND `hosts_sources`.`enabled` AS `enabled`, `hosts_lists`.`redirection`, `hosts_lists`.`source_id` FROM `hosts_lists` INNER JOIN `host_names` ON `host_names`.`id` = `hosts_lists`.`host_id` INNER JOIN `hosts_sources` ON `hosts_sources`.`id` = `hosts_lists`.`source_id` WHERE `hosts_sources`.`deleted` = 0");
+        }
+    };
+
+    /**
+     * Migration script from v13 to v14.
+     */
+    static final Migration MIGRATION_13_14 = new Migration(13, 14) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            // Request incremental auto vacuum. It has no effect until a full vacuum rebuilds the
+            // database file, which can't run in the migration transaction and would block the
+            // database opening: the first maintenance run, on device idle, does it with
+            // StorageProfile.enableIncrementalVacuum() as it still reads the none mode.
+            database.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+        }
+    };
+
+    /**
+     * Migration script from v14 to v15.
+     */
+    static final Migration MIGRATION_14_15 = new Migration(14, 15) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            // Add host name trigram columns
+            database.execSQL("ALTER TABLE `host_names` ADD COLUMN `trigrams` TEXT NOT NULL DEFAULT ''");
+            database.execSQL("DELETE FROM `hosts_lists_staging`");
+            database.execSQL("ALTER TABLE `hosts_lists_staging` ADD COLUMN `trigrams` TEXT NOT NULL DEFAULT ''");
+            // Drop host names full text index of labels
+            database.execSQL("DROP TRIGGER IF EXISTS room_fts_content_sync_host_names_fts_BEFORE_UPDATE");
+            database.execSQL("DROP TRIGGER IF EXISTS room_fts_content_sync_host_names_fts_BEFORE_DELETE");
+            database.execSQL("DROP TRIGGER IF EXISTS room_fts_content_sync_host_names_fts_AFTER_UPDATE");
+            database.execSQL("DROP TRIGGER IF EXISTS room_fts_content_sync_host_names_fts_AFTER_INSERT");
+            database.execSQL("DROP TABLE IF EXISTS `host_names_fts`");
+            // Compute host name trigrams
+            SupportSQLiteStatement statement = database.compileStatement("UPDATE `host_names` SET `trigrams` = ? WHERE `id` = ?");
+            try (Cursor cursor = database.query("SELECT `id`, `name` FROM `host_names`")) {
+                while (cursor.moveToNext()) {
+                    statement.bindString(1, HostName.getTrigrams(cursor.getString(1)));
+                    statement.bindLong(2, cursor.getLong(0));
+                    statement.executeUpdateDelete();
+                }
+            }
+            // Create host names full text index of trigrams
+            database.execSQL("CREATE VIRTUAL TABLE IF NOT EXISTS `host_names_fts` USING FTS4(`trigrams` TEXT NOT NULL, content=`host_names`)");
+            database.execSQL("CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_host_names_fts_BEFORE_UPDATE BEFORE UPDATE ON `host_names` BEGIN DELETE FROM `host_names_fts` WHERE `docid`=OLD.`rowid`; END");
+            database.execSQL("CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_host_names_fts_BEFORE_DELETE BEFORE DELETE ON `host_names` BEGIN DELETE FROM `host_names_fts` WHERE `docid`=OLD.`rowid`; END");
+            database.execSQL("CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_host_names_fts_AFTER_UPDATE AFTER UPDATE ON `host_names` BEGIN INSERT INTO `host_names_fts`(`docid`, `trigrams`) VALUES (NEW.`rowid`, NEW.`trigrams`); END");
+            database.execSQL("CREATE TRIGGER IF NOT EXISTS room_fts_content_sync_host_names_fts_AFTER_INSERT AFTER INSERT ON `host_names` BEGIN INSERT INTO `host_names_fts`(`docid`, `trigrams`) VALUES (NEW.`rowid`, NEW.`trigrams`); END");
+            database.execSQL("INSERT INTO `host_names_fts`(`host_names_fts`) VALUES('rebuild')");
+        }
+    };
 }
@@ -0,0 +1,154 @@
+package org.adaway.db;
+
+import android.database.Cursor;
+
+import androidx.room.RoomDatabase;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+
+import org.adaway.util.Log;
+
+/**
+ * This enumerate specifies the SQLite tuning profiles of the primary connection workloads.<br>
+ * Pragmas are connection settings: they are executed on the primary connection, the one used for
+ * writes and transactions, and the {@link #DEFAULT} profile is the one set when the database is
+ * opened. The read only connections of the WAL pool, running the paging queries and the host
+ * lookups, keep the framework settings.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public enum StorageProfile {
+    /**
+     * The default profile for the writes and transactions (WAL safe synchronous mode, 2MB cache).
+     */
+    DEFAULT("NORMAL", -2 * 1024, "DEFAULT"),
+    /**
+     * The throughput profile for bulk loads (WAL safe synchronous mode, 16MB cache and in memory
+     * temporary tables).
+     */
+    BULK_LOAD("NORMAL", -16 * 1024, "MEMORY");
+
+    private static final String TAG = "StorageProfile";
+    /**
+     * The memory map size (64MB).
+     */
+    private static final long MMAP_SIZE = 64L * 1024 * 1024;
+    /**
+     * The incremental auto vacuum mode value.
+     */
+    private static final int INCREMENTAL_AUTO_VACUUM = 2;
+
+    private final String synchronous;
+    private final int cacheSize;
+    private final String tempStore;
+
+    StorageProfile(String synchronous, int cacheSize, String tempStore) {
+        this.synchronous = synchronous;
+        this.cacheSize = cacheSize;
+        this.tempStore = tempStore;
+    }
+
+    /**
+     * Apply the profile to the database.
+     *
+     * @param database The database to apply the profile to.
+     */
+    public void apply(RoomDatabase database) {
+        apply(database.getOpenHelper().getWritableDatabase());
+    }
+
+    /**
+     * Apply the profile to a database connection.
+     *
+     * @param database The database connection to apply the profile to.
+     */
+    void apply(SupportSQLiteDatabase database) {
+        pragma(database, "synchronous = " + this.synchronous);
+        pragma(database, "cache_size = " + this.cacheSize);
+        pragma(database, "temp_store = " + this.tempStore);
+        // The memory map size pragma returns its value so it must be run as a query, in a
+        // transaction to run on the primary connection rather than on a pooled one
+        database.beginTransaction();
+        try {
+            queryPragma(database, "mmap_size = " + MMAP_SIZE);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        Log.d(TAG, "Storage profile " + name() + " applied.");
+    }
+
+    /**
+     * Checkpoint the write-ahead log after a bulk load and truncate it.
+     *
+     * @param database The database to checkpoint.
+     */
+    public static void checkpoint(RoomDatabase database) {
+        long startTime = System.currentTimeMillis();
+        // The checkpoint returns its result so it must be run as a query, out of any transaction
+        queryPragma(database.getOpenHelper().getWritableDatabase(), "wal_checkpoint(TRUNCATE)");
+        long endTime = System.currentTimeMillis();
+        Log.d(TAG, "Write-ahead log checkpointed in " + (endTime - startTime) + "ms.");
+    }
+
+    /**
+     * Release the free pages of the database file.<br>
+     * Pages are only released when the database uses incremental auto vacuum.
+     *
+     * @param database The database to vacuum.
+     */
+    public static void incrementalVacuum(RoomDatabase database) {
+        long startTime = System.currentTimeMillis();
+        // Each step of the pragma releases a single page so the cursor must be read to its end
+        try (Cursor cursor = database.getOpenHelper().getWritableDatabase().query("PRAGMA incremental_vacuum")) {
+            cursor.getCount();
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to vacuum database.", e);
+        }
+        long endTime = System.currentTimeMillis();
+        Log.d(TAG, "Database incrementally vacuumed in " + (endTime - startTime) + "ms.");
+    }
+
+    /**
+     * Switch the database to incremental auto vacuum if not already done.<br>
+     * The switch requires a full vacuum to rebuild the database file so it must run out of any
+     * transaction, during a maintenance window.
+     *
+     * @param database The database to switch.
+     */
+    public static void enableIncrementalVacuum(RoomDatabase database) {
+        SupportSQLiteDatabase writableDatabase = database.getOpenHelper().getWritableDatabase();
+        if (queryPragma(writableDatabase, "auto_vacuum") == INCREMENTAL_AUTO_VACUUM) {
+            return;
+        }
+        long startTime = System.currentTimeMillis();
+        pragma(writableDatabase, "auto_vacuum = INCREMENTAL");
+        writableDatabase.execSQL("VACUUM");
+        long endTime = System.currentTimeMillis();
+        Log.i(TAG, "Incremental auto vacuum enabled in " + (endTime - startTime) + "ms.");
+    }
+
+    /**
+     * Query the numeric value of a pragma.
+     *
+     * @param database The database connection to query.
+     * @param pragma   The pragma to query.
+     * @return The pragma value, {@code -1} if it could not be queried.
+     */
+    static long queryPragma(SupportSQLiteDatabase database, String pragma) {
+        try (Cursor cursor = database.query("PRAGMA " + pragma)) {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to query pragma " + pragma + ".", e);
+            return -1;
+        }
+    }
+
+    private static void pragma(SupportSQLiteDatabase database, String pragma) {
+        // Statements always run on the primary connection unlike queries
+        try {
+            database.execSQL("PRAGMA " + pragma);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to apply pragma " + pragma + ".", e);
+        }
+    }
+}
@@ -7,6 +7,8 @@ import androidx.room.Query;
 
 import org.adaway.db.entity.HostEntry;
 import org.adaway.db.entity.HostListItem;
+import org.adaway.db.entity.HostName;
+import org.adaway.db.entity.ListStat;
 import org.adaway.db.entity.ListType;
 
 import java.util.List;
@@ -28,28 +30,46 @@ public interface HostEntryDao {
     @Query("DELETE FROM `host_entries`")
     void clear();
 
-    @Query("INSERT INTO `host_entries` SELECT DISTINCT `host`, `type`, `redirection` FROM `hosts_lists` WHERE `type` = 0 AND `enabled` = 1")
+    @Query("INSERT INTO `host_entries` SELECT `name`, `type`, `redirection` FROM (SELECT DISTINCT `host_id`, `type`, `redirection` FROM `hosts_lists` WHERE `type` = 0 AND `enabled` = 1 AND `source_id` IN (SELECT `id` FROM `hosts_sources` WHERE `enabled` = 1)) INNER JOIN `host_names` ON `host_names`.`id` = `host_id` WHERE `name` NOT LIKE '||%' AND `name` NOT LIKE '%*%' AND `name` NOT LIKE '%?%'")
     void importBlocked();
 
-    @Query("SELECT host FROM hosts_lists WHERE type = 1 AND enabled = 1")
+    @Query("SELECT DISTINCT `host` FROM `host_list_items` WHERE `type` = 0 AND `enabled` = 1 AND `host` LIKE '||%'")
+    List<String> getEnabledBlockedDomainRules();
+
+    @Query("SELECT DISTINCT `host` FROM `host_list_items` WHERE `type` = 0 AND `enabled` = 1 AND `host` NOT LIKE '||%' AND (`host` LIKE '%*%' OR `host` LIKE '%?%')")
+    List<String> getEnabledBlockedWildcards();
+
+    @Query("SELECT host FROM host_list_items WHERE type = 1 AND enabled = 1")
     List<String> getEnabledAllowedHosts();
 
     @Query("DELETE FROM `host_entries` WHERE `host` LIKE :hostPattern")
     void allowHost(String hostPattern);
 
-    @Query("SELECT * FROM hosts_lists WHERE type = 2 AND enabled = 1 ORDER BY host ASC, source_id DESC")
+    @Query("DELETE FROM `host_entries` WHERE `host` IN (SELECT `name` FROM `host_names` WHERE `reversed` >= :reversedFrom AND `reversed` < :reversedTo)")
+    void allowReversedHosts(String reversedFrom, String reversedTo);
+
+    @Query("SELECT * FROM host_list_items WHERE type = 2 AND enabled = 1 ORDER BY host ASC, source_id DESC")
     List<HostListItem> getEnabledRedirectedHosts();
 
     @Insert(onConflict = REPLACE)
     void redirectHost(HostEntry redirection);
 
+    @Query(ListStat.UPDATE_QUERY)
+    void updateListStats();
+
     /**
-     * Synchronize the host entries based on the current hosts lists table records.
+     * Synchronize the host entries and the list statistics based on the current hosts lists table records.
      */
     default void sync() {
         clear();
         importBlocked();
         for (String allowedHost : getEnabledAllowedHosts()) {
+            // Allow subdomains with a range of the reversed host name index
+            if (HostName.isSubdomainPattern(allowedHost)) {
+                String reversedPrefix = HostName.getReversedSubdomainPrefix(allowedHost);
+                allowReversedHosts(reversedPrefix, HostName.getReversedUpperBound(reversedPrefix));
+                continue;
+            }
             allowedHost = ANY_CHAR_PATTERN.matcher(allowedHost).replaceAll("%");
             allowedHost = A_CHAR_PATTERN.matcher(allowedHost).replaceAll("_");
             allowHost(allowedHost);
@@ -61,11 +81,18 @@ public interface HostEntryDao {
             entry.setRedirection(redirectedHost.getRedirection());
             redirectHost(entry);
         }
+        updateListStats();
     }
 
     @Query("SELECT * FROM `host_entries` ORDER BY `host`")
     List<HostEntry> getAll();
 
+    @Query("SELECT COUNT(*) FROM `host_entries`")
+    int count();
+
+    @Query("SELECT * FROM `host_entries` WHERE `host` > :afterHost ORDER BY `host` LIMIT :limit")
+    List<HostEntry> getNextEntries(String afterHost, int limit);
+
     @Query("SELECT `type` FROM `host_entries` WHERE `host` == :host LIMIT 1")
     ListType getTypeOfHost(String host);
 
@@ -1,63 +1,248 @@
 package org.adaway.db.dao;
 
 import androidx.lifecycle.LiveData;
-import androidx.paging.PagingSource;
 import androidx.room.Dao;
-import androidx.room.Delete;
-import androidx.room.Insert;
 import androidx.room.Query;
-import androidx.room.Update;
+import androidx.room.Transaction;
 
 import org.adaway.db.entity.HostListItem;
+import org.adaway.db.entity.HostName;
+import org.adaway.db.entity.ListStat;
+import org.adaway.db.entity.ListType;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
 
-import static androidx.room.OnConflictStrategy.REPLACE;
-
 /**
- * This interface is the DAO for {@link HostListItem} entities.
+ * This interface is the DAO for {@link HostListItem} records.
+ * <p>
+ * Host names are stored once in the {@code host_names} dictionary and the lists reference them
+ * by id so counting, importing and toggling items work on integers.
+ * <p>
+ * Item edits adjust the {@link ListStat} statistics of the edited hosts only, imports recompute
+ * them once and bulk inserts leave them to the following {@link HostEntryDao#sync()}.
  *
  * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
  */
 @Dao
 public interface HostListItemDao {
-    @Insert(onConflict = REPLACE)
-    void insert(HostListItem... item);
-
-    @Insert(onConflict = REPLACE)
-    void insert(List<HostListItem> items);
-
-    @Update
-    void update(HostListItem item);
-
-    @Delete
-    void delete(HostListItem item);
-
-    @Query("DELETE FROM hosts_lists WHERE source_id = 1 AND host = :host")
-    void deleteUserFromHost(String host);
-
-    @Query("SELECT * FROM hosts_lists WHERE type = :type AND host LIKE :query AND ((:includeSources == 0 AND source_id == 1) || (:includeSources == 1)) GROUP BY host ORDER BY host ASC")
-    PagingSource<Integer, HostListItem> loadList(int type, boolean includeSources, String query);
-
-    @Query("SELECT * FROM hosts_lists ORDER BY host ASC")
+    @Transaction
+    default void insert(HostListItem... items) {
+        List<String> hosts = new ArrayList<>(items.length);
+        for (HostListItem item : items) {
+            hosts.add(item.getHost());
+        }
+        adjustListStats(hosts, -1);
+        insert(Arrays.asList(items));
+        adjustListStats(hosts, 1);
+    }
+
+    @Transaction
+    default void insert(List<HostListItem> items) {
+        for (HostListItem item : items) {
+            insertHostName(item.getHost());
+            insertRecord(
+                    item.getId(),
+                    item.getHost(),
+                    item.getType(),
+                    item.isEnabled(),
+                    item.getRedirection(),
+                    item.getSourceId()
+            );
+        }
+    }
+
+    @Transaction
+    default void update(HostListItem item) {
+        List<String> hosts = Arrays.asList(getRecordHost(item.getId()), item.getHost());
+        adjustListStats(hosts, -1);
+        updateItem(item);
+        adjustListStats(hosts, 1);
+    }
+
+    @Transaction
+    default void delete(HostListItem item) {
+        List<String> hosts = Collections.singletonList(getRecordHost(item.getId()));
+        adjustListStats(hosts, -1);
+        deleteRecord(item.getId());
+        adjustListStats(hosts, 1);
+    }
+
+    @Transaction
+    default void deleteUserFromHost(String host) {
+        List<String> hosts = Collections.singletonList(host);
+        adjustListStats(hosts, -1);
+        deleteUserRecordFromHost(host);
+        adjustListStats(hosts, 1);
+    }
+
+    /**
+     * Import user list items, updating the user items of the same hosts, and compute the
+     * statistics once all items are imported.
+     *
+     * @param items The user list items to import.
+     */
+    @Transaction
+    default void importUserItems(List<HostListItem> items) {
+        for (HostListItem item : items) {
+            Optional<Integer> id = getHostId(item.getHost());
+            if (id.isPresent()) {
+                item.setId(id.get());
+                updateItem(item);
+            } else {
+                insert(Collections.singletonList(item));
+            }
+        }
+        updateListStats();
+    }
+
+    default void updateItem(HostListItem item) {
+        insertHostName(item.getHost());
+        updateRecord(
+                item.getId(),
+                item.getHost(),
+                item.getType(),
+                item.isEnabled(),
+                item.getRedirection(),
+                item.getSourceId()
+        );
+    }
+
+    default void insertHostName(String host) {
+        insertHostName(host, HostName.reverse(host), HostName.getTrigrams(host));
+    }
+
+    @Query("INSERT OR IGNORE INTO host_names (name, reversed, trigrams) VALUES (:host, :reversed, :trigrams)")
+    void insertHostName(String host, String reversed, String trigrams);
+
+    @Query("INSERT OR REPLACE INTO hosts_lists (id, host_id, type, enabled, redirection, source_id) " +
+            "VALUES (NULLIF(:id, 0), (SELECT id FROM host_names WHERE name = :host), :type, :enabled, :redirection, :sourceId)")
+    void insertRecord(int id, String host, ListType type, boolean enabled, String redirection, int sourceId);
+
+    @Query("UPDATE hosts_lists SET host_id = (SELECT id FROM host_names WHERE name = :host), type = :type, " +
+            "enabled = :enabled, redirection = :redirection, source_id = :sourceId WHERE id = :id")
+    void updateRecord(int id, String host, ListType type, boolean enabled, String redirection, int sourceId);
+
+    @Query("DELETE FROM hosts_lists WHERE id = :id")
+    void deleteRecord(int id);
+
+    @Query("DELETE FROM hosts_lists WHERE source_id = 1 AND host_id = (SELECT id FROM host_names WHERE name = :host)")
+    void deleteUserRecordFromHost(String host);
+
+    @Query("SELECT * FROM host_list_items WHERE type = :type AND host >= :from AND (:inclusive OR host > :from) AND host LIKE :query AND ((:includeSources == 0 AND source_id == 1) OR (:includeSources == 1)) GROUP BY host ORDER BY host ASC LIMIT :limit")
+    List<HostListItem> loadPageAfter(int type, boolean includeSources, String query, String from, boolean inclusive, int limit);
+
+    @Query("SELECT * FROM host_list_items WHERE type = :type AND host < :before AND host LIKE :query AND ((:includeSources == 0 AND source_id == 1) OR (:includeSources == 1)) GROUP BY host ORDER BY host DESC LIMIT :limit")
+    List<HostListItem> loadPageBefore(int type, boolean includeSources, String query, String before, int limit);
+
+    @Query("SELECT * FROM host_list_items WHERE type = :type AND host >= :from AND (:inclusive OR host > :from) AND host IN (SELECT name FROM host_names WHERE id IN (SELECT docid FROM host_names_fts WHERE host_names_fts MATCH :match)) AND host LIKE :query AND ((:includeSources == 0 AND source_id == 1) OR (:includeSources == 1)) GROUP BY host ORDER BY host ASC LIMIT :limit")
+    List<HostListItem> searchPageAfter(int type, boolean includeSources, String match, String query, String from, boolean inclusive, int limit);
+
+    @Query("SELECT * FROM host_list_items WHERE type = :type AND host < :before AND host IN (SELECT name FROM host_names WHERE id IN (SELECT docid FROM host_names_fts WHERE host_names_fts MATCH :match)) AND host LIKE :query AND ((:includeSources == 0 AND source_id == 1) OR (:includeSources == 1)) GROUP BY host ORDER BY host DESC LIMIT :limit")
+    List<HostListItem> searchPageBefore(int type, boolean includeSources, String match, String query, String before, int limit);
+
+    @Query("SELECT * FROM host_list_items WHERE type = :type AND host >= :from AND (:inclusive OR host > :from) AND host IN (SELECT name FROM host_names WHERE reversed >= :reversedFrom AND reversed < :reversedTo) AND ((:includeSources == 0 AND source_id == 1) OR (:includeSources == 1)) GROUP BY host ORDER BY host ASC LIMIT :limit")
+    List<HostListItem> loadSubdomainPageAfter(int type, boolean includeSources, String reversedFrom, String reversedTo, String from, boolean inclusive, int limit);
+
+    @Query("SELECT * FROM host_list_items WHERE type = :type AND host < :before AND host IN (SELECT name FROM host_names WHERE reversed >= :reversedFrom AND reversed < :reversedTo) AND ((:includeSources == 0 AND source_id == 1) OR (:includeSources == 1)) GROUP BY host ORDER BY host DESC LIMIT :limit")
+    List<HostListItem> loadSubdomainPageBefore(int type, boolean includeSources, String reversedFrom, String reversedTo, String before, int limit);
+
+    @Query("SELECT * FROM host_list_items ORDER BY host ASC")
     List<HostListItem> getAll();
 
-    @Query("SELECT * FROM hosts_lists WHERE source_id = 1")
+    @Query("SELECT * FROM host_list_items WHERE source_id = 1")
     List<HostListItem> getUserList();
 
-    @Query("SELECT id FROM hosts_lists WHERE host = :host AND source_id = 1 LIMIT 1")
+    @Query("SELECT name FROM host_names WHERE id = (SELECT host_id FROM hosts_lists WHERE id = :id)")
+    String getRecordHost(int id);
+
+    @Query("SELECT id FROM hosts_lists WHERE host_id = (SELECT id FROM host_names WHERE name = :host) AND source_id = 1 LIMIT 1")
     Optional<Integer> getHostId(String host);
 
-    @Query("SELECT COUNT(DISTINCT host) FROM hosts_lists WHERE type = 0 AND enabled = 1")
+    @Query("SELECT IFNULL((SELECT count FROM list_stats WHERE type = 0), 0)")
     LiveData<Integer> getBlockedHostCount();
 
-    @Query("SELECT COUNT(DISTINCT host) FROM hosts_lists WHERE type = 1 AND enabled = 1")
+    @Query("SELECT IFNULL((SELECT count FROM list_stats WHERE type = 1), 0)")
     LiveData<Integer> getAllowedHostCount();
 
-    @Query("SELECT COUNT(DISTINCT host) FROM hosts_lists WHERE type = 2 AND enabled = 1")
+    @Query("SELECT IFNULL((SELECT count FROM list_stats WHERE type = 2), 0)")
     LiveData<Integer> getRedirectHostCount();
 
+    @Query(ListStat.UPDATE_QUERY)
+    void updateListStats();
+
+    /**
+     * Adjust the statistics by the count of the given hosts.<br>
+     * Called with {@code -1} before and {@code 1} after an edit of these hosts, it applies the
+     * edit delta using the host index instead of counting the whole lists.
+     *
+     * @param hosts The edited host names.
+     * @param sign  {@code -1} to remove the hosts from the statistics, {@code 1} to add them.
+     */
+    @Transaction
+    default void adjustListStats(List<String> hosts, int sign) {
+        initListStats();
+        addListStats(hosts, sign);
+    }
+
+    @Query(ListStat.INIT_QUERY)
+    void initListStats();
+
+    @Query(ListStat.ADJUST_QUERY)
+    void addListStats(List<String> hosts, int sign);
+
     @Query("DELETE FROM hosts_lists WHERE source_id = :sourceId")
     void clearSourceHosts(int sourceId);
+
+    @Transaction
+    default void stage(List<HostListItem> items) {
+        for (HostListItem item : items) {
+            insertStagedItem(
+                    item.getHost(),
+                    HostName.reverse(item.getHost()),
+                    HostName.getTrigrams(item.getHost()),
+                    item.getType(),
+                    item.isEnabled(),
+                    item.getRedirection(),
+                    item.getSourceId()
+            );
+        }
+    }
+
+    @Query("INSERT INTO hosts_lists_staging (host, reversed, trigrams, type, enabled, redirection, source_id) VALUES (:host, :reversed, :trigrams, :type, :enabled, :redirection, :sourceId)")
+    void insertStagedItem(String host, String reversed, String trigrams, ListType type, boolean enabled, String redirection, int sourceId);
+
+    @Query("DELETE FROM hosts_lists_staging WHERE source_id = :sourceId")
+    void clearStagedSourceHosts(int sourceId);
+
+    /**
+     * Replace the hosts of a source by its staged hosts in a single transaction.
+     *
+     * @param sourceId The source identifier.
+     */
+    @Transaction
+    default void publishStagedSourceHosts(int sourceId) {
+        insertStagedHostNames(sourceId);
+        clearSourceHosts(sourceId);
+        insertStagedRecords(sourceId);
+        clearStagedSourceHosts(sourceId);
+    }
+
+    @Query("INSERT OR IGNORE INTO host_names (name, reversed, trigrams) SELECT DISTINCT host, reversed, trigrams FROM hosts_lists_staging WHERE source_id = :sourceId")
+    void insertStagedHostNames(int sourceId);
+
+    @Query("INSERT INTO hosts_lists (host_id, type, enabled, redirection, source_id) " +
+            "SELECT host_names.id, hosts_lists_staging.type, hosts_lists_staging.enabled, hosts_lists_staging.redirection, hosts_lists_staging.source_id " +
+            "FROM hosts_lists_staging INNER JOIN host_names ON host_names.name = hosts_lists_staging.host " +
+            "WHERE hosts_lists_staging.source_id = :sourceId")
+    void insertStagedRecords(int sourceId);
+
+    @Query("DELETE FROM host_names WHERE id NOT IN (SELECT host_id FROM hosts_lists)")
+    void deleteOrphanHostNames();
+
+    @Query("DELETE FROM host_names WHERE id IN (SELECT id FROM host_names WHERE id NOT IN (SELECT host_id FROM hosts_lists) LIMIT :limit)")
+    int deleteOrphanHostNames(int limit);
 }
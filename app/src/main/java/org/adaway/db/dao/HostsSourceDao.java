@@ -5,9 +5,11 @@ import androidx.room.Dao;
 import androidx.room.Delete;
 import androidx.room.Insert;
 import androidx.room.Query;
+import androidx.room.Transaction;
 import androidx.room.Update;
 
 import org.adaway.db.entity.HostsSource;
+import org.adaway.db.entity.ListStat;
 
 import java.time.ZonedDateTime;
 import java.util.List;
@@ -31,30 +33,58 @@ public interface HostsSourceDao {
     @Delete
     void delete(HostsSource source);
 
+    /**
+     * Mark a source as deleted.<br>
+     * The source is hidden at once and its URL released, its hosts are reclaimed later by
+     * {@link org.adaway.db.DatabaseMaintenanceService#reclaimDeletedSources(android.content.Context)}.
+     *
+     * @param source The source to mark as deleted.
+     */
+    @Transaction
+    default void markDeleted(HostsSource source) {
+        source.setDeleted(true);
+        source.setEnabled(false);
+        setSourceDeleted(source.getId());
+        updateListStats();
+    }
+
+    @Query("UPDATE hosts_sources SET deleted = 1, enabled = 0, url = 'content://org.adaway/deleted/' || id WHERE id = :id")
+    void setSourceDeleted(int id);
+
+    @Query("SELECT id FROM hosts_sources WHERE deleted = 1")
+    List<Integer> getDeletedIds();
+
+    @Query("DELETE FROM hosts_lists WHERE id IN (SELECT id FROM hosts_lists WHERE source_id = :id LIMIT :limit)")
+    int deleteSourceHosts(int id, int limit);
+
+    @Query("DELETE FROM hosts_sources WHERE id = :id AND deleted = 1")
+    void purge(int id);
+
     @Query("SELECT * FROM hosts_sources WHERE enabled = 1 AND id != 1 ORDER BY url ASC")
     List<HostsSource> getEnabled();
 
+    @Transaction
     default void toggleEnabled(HostsSource source) {
         int id = source.getId();
         boolean enabled = !source.isEnabled();
         source.setEnabled(enabled);
         setSourceEnabled(id, enabled);
-        setSourceItemsEnabled(id, enabled);
+        updateListStats();
     }
 
     @Query("UPDATE hosts_sources SET enabled = :enabled WHERE id =:id")
     void setSourceEnabled(int id, boolean enabled);
 
-    @Query("UPDATE hosts_lists SET enabled = :enabled WHERE source_id =:id")
-    void setSourceItemsEnabled(int id, boolean enabled);
+    @Query(ListStat.UPDATE_QUERY)
+    void updateListStats();
 
     @Query("SELECT * FROM hosts_sources WHERE id = :id")
     Optional<HostsSource> getById(int id);
 
-    @Query("SELECT * FROM hosts_sources WHERE id != 1 ORDER BY label ASC")
+    @Query("SELECT * FROM hosts_sources WHERE id != 1 AND deleted = 0 ORDER BY label ASC")
     List<HostsSource> getAll();
 
-    @Query("SELECT * FROM hosts_sources WHERE id != 1 ORDER BY label ASC")
+    @Query("SELECT * FROM hosts_sources WHERE id != 1 AND deleted = 0 ORDER BY label ASC")
     LiveData<List<HostsSource>> loadAll();
 
     @Query("UPDATE hosts_sources SET last_modified_online = :dateTime WHERE id = :id")
@@ -2,36 +2,29 @@ package org.adaway.db.entity;
 
 import androidx.annotation.NonNull;
 import androidx.room.ColumnInfo;
-import androidx.room.Entity;
-import androidx.room.ForeignKey;
-import androidx.room.Index;
-import androidx.room.PrimaryKey;
+import androidx.room.DatabaseView;
 
 import java.util.Objects;
 
-import static androidx.room.ForeignKey.CASCADE;
-
 /**
- * This entity represents a black, white or redirect list item.
+ * This view represents a black, white or redirect list item with its host name.
+ * <p>
+ * Items are stored as {@link HostListRecord} referencing a shared {@link HostName}. An item is
+ * enabled only if its record and its {@link HostsSource} are enabled, so toggling a source does not
+ * update its records. Items of deleted sources are hidden until they are reclaimed.
  *
  * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
  */
-@Entity(
-        tableName = "hosts_lists",
-        indices = {
-                @Index(value = "host"),
-                @Index(value = "source_id")
-        },
-        foreignKeys = @ForeignKey(
-                entity = HostsSource.class,
-                parentColumns = "id",
-                childColumns = "source_id",
-                onUpdate = CASCADE,
-                onDelete = CASCADE
-        )
-)
+@DatabaseView(viewName = HostListItem.VIEW_NAME, value = HostListItem.VIEW_QUERY)
 public class HostListItem {
-    @PrimaryKey(autoGenerate = true)
+    /**
+     * The view name.
+     */
+    public static final String VIEW_NAME = "host_list_items";
+    /**
+     * The view query.
+     */
+    public static final String VIEW_QUERY = "SELECT `hosts_lists`.`id`, `host_names`.`name` AS `host`, `hosts_lists`.`type`, `hosts_lists`.`enabled` AND `hosts_sources`.`enabled` AS `enabled`, `hosts_lists`.`redirection`, `hosts_lists`.`source_id` FROM `hosts_lists` INNER JOIN `host_names` ON `host_names`.`id` = `hosts_lists`.`host_id` INNER JOIN `hosts_sources` ON `hosts_sources`.`id` = `hosts_lists`.`source_id` WHERE `hosts_sources`.`deleted` = 0";
     private int id;
     @NonNull
     private String host;
@@ -0,0 +1,101 @@
+package org.adaway.db.entity;
+
+import androidx.annotation.NonNull;
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.PrimaryKey;
+
+/**
+ * This entity represents a list item loaded from a source but not yet published to the lists.<br>
+ * Sources are loaded into the staging table then published at once, so readers never see a
+ * partially loaded source and the lists are invalidated only once per source.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+@Entity(tableName = "hosts_lists_staging")
+public class HostListStagedItem {
+    @PrimaryKey
+    private long id;
+    @NonNull
+    private String host;
+    @NonNull
+    @ColumnInfo(defaultValue = "")
+    private String reversed;
+    @NonNull
+    @ColumnInfo(defaultValue = "")
+    private String trigrams;
+    @NonNull
+    private ListType type;
+    private boolean enabled;
+    private String redirection;
+    @ColumnInfo(name = "source_id")
+    private int sourceId;
+
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    @NonNull
+    public String getHost() {
+        return host;
+    }
+
+    public void setHost(@NonNull String host) {
+        this.host = host;
+    }
+
+    @NonNull
+    public String getReversed() {
+        return reversed;
+    }
+
+    public void setReversed(@NonNull String reversed) {
+        this.reversed = reversed;
+    }
+
+    @NonNull
+    public String getTrigrams() {
+        return trigrams;
+    }
+
+    public void setTrigrams(@NonNull String trigrams) {
+        this.trigrams = trigrams;
+    }
+
+    @NonNull
+    public ListType getType() {
+        return type;
+    }
+
+    public void setType(@NonNull ListType type) {
+        this.type = type;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public String getRedirection() {
+        return redirection;
+    }
+
+    public void setRedirection(String redirection) {
+        this.redirection = redirection;
+    }
+
+    public int getSourceId() {
+        return sourceId;
+    }
+
+    public void setSourceId(int sourceId) {
+        this.sourceId = sourceId;
+    }
+}
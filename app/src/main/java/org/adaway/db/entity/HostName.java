@@ -0,0 +1,192 @@
+package org.adaway.db.entity;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.room.ColumnInfo;
+import androidx.room.Entity;
+import androidx.room.Index;
+import androidx.room.PrimaryKey;
+
+import java.util.Locale;
+
+/**
+ * This entity represents an host name, stored once whatever the number of lists it belongs to.
+ * <p>
+ * The host name is also stored with its labels in reversed order ({@code com.example.ads} for
+ * {@code ads.example.com}) so the subdomains of a domain are a range of the reversed index, and as
+ * its trigrams so the host names containing a text are found by the full text index.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+@Entity(
+        tableName = "host_names",
+        indices = {
+                @Index(value = "name", unique = true),
+                @Index(value = "reversed")
+        }
+)
+public class HostName {
+    @PrimaryKey(autoGenerate = true)
+    private int id;
+    @NonNull
+    private String name;
+    @NonNull
+    @ColumnInfo(defaultValue = "")
+    private String reversed;
+    @NonNull
+    @ColumnInfo(defaultValue = "")
+    private String trigrams;
+
+    /**
+     * Reverse the labels of a host name.<br>
+     * The reversed name is lower cased so ranges match host names ignoring case as {@code LIKE} does,
+     * and the final dot of fully qualified names is dropped so they share the range of their domain.
+     *
+     * @param name The host name to reverse.
+     * @return The lower case host name labels in reversed order.
+     */
+    public static String reverse(String name) {
+        name = name.toLowerCase(Locale.ROOT);
+        StringBuilder builder = new StringBuilder(name.length());
+        int labelEnd = name.endsWith(".") ? name.length() - 1 : name.length();
+        for (int i = labelEnd - 1; i >= -1; i--) {
+            if (i == -1 || name.charAt(i) == '.') {
+                builder.append(name, i + 1, labelEnd);
+                if (i != -1) {
+                    builder.append('.');
+                }
+                labelEnd = i;
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Get the trigrams of a host name, as full text index tokens.<br>
+     * The index tokenizer splits text on ASCII characters other than letters and digits, so those
+     * characters are shifted out of the ASCII range to keep each trigram a single token.
+     *
+     * @param name The host name to get the trigrams of.
+     * @return The space separated tokens of the lower case host name trigrams, empty if the name
+     * is shorter than three characters.
+     */
+    public static String getTrigrams(String name) {
+        name = name.toLowerCase(Locale.ROOT);
+        StringBuilder builder = new StringBuilder(name.length() * 4);
+        for (int i = 0; i + 3 <= name.length(); i++) {
+            if (i > 0) {
+                builder.append(' ');
+            }
+            appendTrigram(builder, name, i);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Get the full text match query of the host names containing a host pattern.<br>
+     * The query matches the host names with all the trigrams of the pattern text between
+     * wildcards. It may match host names without the pattern so the caller must check them with
+     * the pattern {@code LIKE} query.
+     *
+     * @param hostPattern The host pattern, with {@code *} and {@code ?} wildcards.
+     * @return The trigram match query, {@code null} if the pattern has no text of three characters
+     * or more between wildcards.
+     */
+    @Nullable
+    public static String getTrigramMatchQuery(String hostPattern) {
+        hostPattern = hostPattern.toLowerCase(Locale.ROOT);
+        StringBuilder builder = new StringBuilder();
+        int textStart = 0;
+        for (int i = 0; i <= hostPattern.length(); i++) {
+            if (i == hostPattern.length() || hostPattern.charAt(i) == '*' || hostPattern.charAt(i) == '?') {
+                for (int j = textStart; j + 3 <= i; j++) {
+                    if (builder.length() > 0) {
+                        builder.append(' ');
+                    }
+                    builder.append('"');
+                    appendTrigram(builder, hostPattern, j);
+                    builder.append('"');
+                }
+                textStart = i + 1;
+            }
+        }
+        return builder.length() == 0 ? null : builder.toString();
+    }
+
+    private static void appendTrigram(StringBuilder builder, String name, int index) {
+        for (int i = index; i < index + 3; i++) {
+            char c = name.charAt(i);
+            boolean separator = c < 0x80 && (c < 'a' || c > 'z') && (c < '0' || c > '9');
+            builder.append(separator ? (char) (0x100 + c) : c);
+        }
+    }
+
+    /**
+     * Check whether a host pattern matches all the subdomains of a domain ({@code *.example.com}).
+     *
+     * @param hostPattern The host pattern to check.
+     * @return {@code true} if the pattern only has a leading subdomain wildcard, {@code false} otherwise.
+     */
+    public static boolean isSubdomainPattern(String hostPattern) {
+        return hostPattern.length() > 2
+                && hostPattern.startsWith("*.")
+                && hostPattern.indexOf('*', 2) == -1
+                && hostPattern.indexOf('?') == -1;
+    }
+
+    /**
+     * Get the reversed name prefix of the subdomains of a subdomain pattern.
+     *
+     * @param subdomainPattern The subdomain pattern ({@code *.example.com}).
+     * @return The reversed name prefix of the subdomains ({@code com.example.}).
+     */
+    public static String getReversedSubdomainPrefix(String subdomainPattern) {
+        return reverse(subdomainPattern.substring(2)) + '.';
+    }
+
+    /**
+     * Get the exclusive upper bound of the reversed names starting with a prefix.
+     *
+     * @param prefix The reversed name prefix.
+     * @return The smallest reversed name greater than all the names starting with the prefix.
+     */
+    public static String getReversedUpperBound(String prefix) {
+        int lastIndex = prefix.length() - 1;
+        return prefix.substring(0, lastIndex) + (char) (prefix.charAt(lastIndex) + 1);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
+
+    @NonNull
+    public String getName() {
+        return name;
+    }
+
+    public void setName(@NonNull String name) {
+        this.name = name;
+    }
+
+    @NonNull
+    public String getReversed() {
+        return reversed;
+    }
+
+    public void setReversed(@NonNull String reversed) {
+        this.reversed = reversed;
+    }
+
+    @NonNull
+    public String getTrigrams() {
+        return trigrams;
+    }
+
+    public void setTrigrams(@NonNull String trigrams) {
+        this.trigrams = trigrams;
+    }
+}
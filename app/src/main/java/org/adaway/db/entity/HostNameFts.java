@@ -0,0 +1,30 @@
+package org.adaway.db.entity;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.Fts4;
+
+/**
+ * This entity represents the full text index of the host names.<br>
+ * It is an external content table over {@link HostName}, kept in sync by Room triggers. Host names
+ * are indexed by their trigrams so it answers substring searches, of three characters or more,
+ * without scanning the lists: the host names with all the trigrams of the searched text are the
+ * candidates to check with {@code LIKE}.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+@Fts4(contentEntity = HostName.class)
+@Entity(tableName = "host_names_fts")
+public class HostNameFts {
+    @NonNull
+    private String trigrams;
+
+    @NonNull
+    public String getTrigrams() {
+        return trigrams;
+    }
+
+    public void setTrigrams(@NonNull String trigrams) {
+        this.trigrams = trigrams;
+    }
+}
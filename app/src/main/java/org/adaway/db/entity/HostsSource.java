@@ -48,6 +48,11 @@ public class HostsSource {
     @ColumnInfo(name = "last_modified_online")
     private ZonedDateTime onlineModificationDate;
     private int size;
+    /**
+     * Whether the source was deleted and its hosts are waiting to be reclaimed.
+     */
+    @ColumnInfo(defaultValue = "0")
+    private boolean deleted;
 
     /**
      * Check whether an URL is valid for as host source.<br>
@@ -144,6 +149,14 @@ public class HostsSource {
         this.size = size;
     }
 
+    public boolean isDeleted() {
+        return this.deleted;
+    }
+
+    public void setDeleted(boolean deleted) {
+        this.deleted = deleted;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -0,0 +1,54 @@
+package org.adaway.db.entity;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.PrimaryKey;
+
+/**
+ * This entity represents the number of distinct enabled hosts of a list type.<br>
+ * Statistics are computed when a sync or an edit commits so readers do not count the lists.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+@Entity(tableName = "list_stats")
+public class ListStat {
+    /**
+     * The query to compute the statistics of each list type.
+     */
+    public static final String UPDATE_QUERY = "INSERT OR REPLACE INTO `list_stats` (`type`, `count`) VALUES " +
+            "(0, (SELECT COUNT(DISTINCT `host_id`) FROM `hosts_lists` WHERE `type` = 0 AND `enabled` = 1 AND `source_id` IN (SELECT `id` FROM `hosts_sources` WHERE `enabled` = 1))), " +
+            "(1, (SELECT COUNT(DISTINCT `host_id`) FROM `hosts_lists` WHERE `type` = 1 AND `enabled` = 1 AND `source_id` IN (SELECT `id` FROM `hosts_sources` WHERE `enabled` = 1))), " +
+            "(2, (SELECT COUNT(DISTINCT `host_id`) FROM `hosts_lists` WHERE `type` = 2 AND `enabled` = 1 AND `source_id` IN (SELECT `id` FROM `hosts_sources` WHERE `enabled` = 1)))";
+    /**
+     * The query to create the missing statistics of each list type.
+     */
+    public static final String INIT_QUERY = "INSERT OR IGNORE INTO `list_stats` (`type`, `count`) VALUES (0, 0), (1, 0), (2, 0)";
+    /**
+     * The query to add ({@code :sign} is {@code 1}) or remove ({@code :sign} is {@code -1}) the
+     * count of the {@code :hosts} host names to the statistics of each list type.
+     */
+    public static final String ADJUST_QUERY = "UPDATE `list_stats` SET `count` = `count` + :sign * " +
+            "(SELECT COUNT(DISTINCT `host_id`) FROM `hosts_lists` WHERE `host_id` IN (SELECT `id` FROM `host_names` WHERE `name` IN (:hosts)) " +
+            "AND `type` = `list_stats`.`type` AND `enabled` = 1 AND `source_id` IN (SELECT `id` FROM `hosts_sources` WHERE `enabled` = 1))";
+    @PrimaryKey
+    @NonNull
+    private ListType type;
+    private int count;
+
+    @NonNull
+    public ListType getType() {
+        return type;
+    }
+
+    public void setType(@NonNull ListType type) {
+        this.type = type;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public void setCount(int count) {
+        this.count = count;
+    }
+}
@@ -270,6 +270,28 @@ public class PreferenceHelper {
         );
     }
 
+    public static boolean getVpnServeStaleEnabled(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(
+                Constants.PREFS_NAME,
+                Context.MODE_PRIVATE
+        );
+        return prefs.getBoolean(
+                context.getString(R.string.pref_vpn_serve_stale_key),
+                context.getResources().getBoolean(R.bool.pref_vpn_serve_stale_def)
+        );
+    }
+
+    public static boolean getVpnPipelineEnabled(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(
+                Constants.PREFS_NAME,
+                Context.MODE_PRIVATE
+        );
+        return prefs.getBoolean(
+                context.getString(R.string.pref_vpn_pipeline_key),
+                context.getResources().getBoolean(R.bool.pref_vpn_pipeline_def)
+        );
+    }
+
     public static boolean getDebugEnabled(Context context) {
         SharedPreferences prefs = context.getSharedPreferences(
                 Constants.PREFS_NAME,
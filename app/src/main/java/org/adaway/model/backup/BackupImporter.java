@@ -23,7 +23,8 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.Optional;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Executor;
 
 import static org.adaway.db.entity.ListType.ALLOWED;
@@ -108,9 +109,11 @@ public final class BackupImporter {
         HostListItemDao hostListItemDao = database.hostsListItemDao();
 
         importSourceBackup(hostsSourceDao, backupObject.getJSONArray(SOURCES_KEY));
-        importListBackup(hostListItemDao, BLOCKED, backupObject.getJSONArray(BLOCKED_KEY));
-        importListBackup(hostListItemDao, ALLOWED, backupObject.getJSONArray(ALLOWED_KEY));
-        importListBackup(hostListItemDao, REDIRECTED, backupObject.getJSONArray(REDIRECTED_KEY));
+        List<HostListItem> items = new ArrayList<>();
+        importListBackup(items, BLOCKED, backupObject.getJSONArray(BLOCKED_KEY));
+        importListBackup(items, ALLOWED, backupObject.getJSONArray(ALLOWED_KEY));
+        importListBackup(items, REDIRECTED, backupObject.getJSONArray(REDIRECTED_KEY));
+        hostListItemDao.importUserItems(items);
     }
 
     private static void importSourceBackup(HostsSourceDao hostsSourceDao, JSONArray sources) throws JSONException {
@@ -120,18 +123,12 @@ public final class BackupImporter {
         }
     }
 
-    private static void importListBackup(HostListItemDao hostListItemDao, ListType type, JSONArray hosts) throws JSONException {
+    private static void importListBackup(List<HostListItem> items, ListType type, JSONArray hosts) throws JSONException {
         for (int index = 0; index < hosts.length(); index++) {
             JSONObject hostObject = hosts.getJSONObject(index);
             HostListItem host = hostFromJson(hostObject);
             host.setType(type);
-            Optional<Integer> id = hostListItemDao.getHostId(host.getHost());
-            if (id.isPresent()) {
-                host.setId(id.get());
-                hostListItemDao.update(host);
-            } else {
-                hostListItemDao.insert(host);
-            }
+            items.add(host);
         }
     }
 }
@@ -9,6 +9,8 @@ import org.adaway.util.RegexUtils;
 
 import java.io.BufferedReader;
 import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
@@ -29,14 +31,14 @@ import static org.adaway.util.Constants.LOCALHOST_IPv6;
 
 /**
  * This class is an {@link HostsSource} loader.<br>
- * It parses a source and loads it to database.
+ * It parses a source and stages it into database, then publishes it at once.
  *
  * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
  */
 class SourceLoader {
     private static final String TAG = "SourceLoader";
     private static final String END_OF_QUEUE_MARKER = "#EndOfQueueMarker";
-    private static final int INSERT_BATCH_SIZE = 100;
+    private static final int INSERT_BATCH_SIZE = 1000;
     private static final String HOSTS_PARSER = "^\\s*([^#\\s]+)\\s+([^#\\s]+).*$";
     static final Pattern HOSTS_PARSER_PATTERN = Pattern.compile(HOSTS_PARSER);
 
@@ -47,8 +49,9 @@ class SourceLoader {
     }
 
     void parse(Reader reader, HostListItemDao hostListItemDao) {
-        // Clear current hosts
-        hostListItemDao.clearSourceHosts(this.source.getId());
+        int sourceId = this.source.getId();
+        // Clear previously staged hosts
+        hostListItemDao.clearStagedSourceHosts(sourceId);
         // Create batch
         int parserCount = 3;
         LinkedBlockingQueue<String> hostsLineQueue = new LinkedBlockingQueue<>();
@@ -66,11 +69,15 @@ class SourceLoader {
         Future<Integer> inserterFuture = executorService.submit(inserter);
         try {
             Integer inserted = inserterFuture.get();
-            Log.i(TAG, inserted + " host list items inserted.");
+            Log.i(TAG, inserted + " host list items staged.");
+            // Publish staged hosts at once
+            hostListItemDao.publishStagedSourceHosts(sourceId);
         } catch (ExecutionException e) {
             Log.w(TAG, "Failed to parse hosts sources.", e);
+            hostListItemDao.clearStagedSourceHosts(sourceId);
         } catch (InterruptedException e) {
             Log.w(TAG, "Interrupted while parsing sources.", e);
+            hostListItemDao.clearStagedSourceHosts(sourceId);
             Thread.currentThread().interrupt();
         }
         executorService.shutdown();
@@ -145,6 +152,16 @@ class SourceLoader {
         }
 
         private HostListItem parseHostListItem(String line) {
+            // Check domain rule
+            String trimmedLine = line.trim();
+            if (RegexUtils.isDomainRule(trimmedLine)) {
+                HostListItem item = new HostListItem();
+                item.setType(BLOCKED);
+                item.setHost(trimmedLine);
+                item.setEnabled(true);
+                item.setSourceId(this.source.getId());
+                return item;
+            }
             Matcher matcher = HOSTS_PARSER_PATTERN.matcher(line);
             if (!matcher.matches()) {
                 Log.d(TAG, "Does not match: " + line);
@@ -202,11 +219,8 @@ class SourceLoader {
 
         private boolean isHostValid(HostListItem item) {
             String hostname = item.getHost();
-            if (item.getType() == BLOCKED) {
-                if (hostname.indexOf('?') != -1 || hostname.indexOf('*') != -1) {
-                    return false;
-                }
-                return RegexUtils.isValidHostname(hostname);
+            if (item.getType() == BLOCKED && RegexUtils.isDomainRule(hostname)) {
+                return RegexUtils.isValidDomainRule(hostname);
             }
             return RegexUtils.isValidWildcardHostname(hostname);
         }
@@ -227,8 +241,7 @@ class SourceLoader {
         public Integer call() {
             int inserted = 0;
             int workerStopped = 0;
-            HostListItem[] batch = new HostListItem[INSERT_BATCH_SIZE];
-            int cacheSize = 0;
+            List<HostListItem> batch = new ArrayList<>(INSERT_BATCH_SIZE);
             boolean queueEmptied = false;
             while (!queueEmptied) {
                 try {
@@ -241,11 +254,11 @@ class SourceLoader {
                             queueEmptied = true;
                         }
                     } else {
-                        batch[cacheSize++] = item;
-                        if (cacheSize >= batch.length) {
-                            this.hostListItemDao.insert(batch);
-                            cacheSize = 0;
-                            inserted += cacheSize;
+                        batch.add(item);
+                        if (batch.size() >= INSERT_BATCH_SIZE) {
+                            this.hostListItemDao.stage(batch);
+                            inserted += batch.size();
+                            batch.clear();
                         }
                     }
                 } catch (InterruptedException e) {
@@ -255,10 +268,8 @@ class SourceLoader {
                 }
             }
             // Flush current batch
-            HostListItem[] remaining = new HostListItem[cacheSize];
-            System.arraycopy(batch, 0, remaining, 0, remaining.length);
-            this.hostListItemDao.insert(remaining);
-            inserted += cacheSize;
+            this.hostListItemDao.stage(batch);
+            inserted += batch.size();
             // Return number of inserted items
             return inserted;
         }
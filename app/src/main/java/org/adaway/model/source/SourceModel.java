@@ -15,6 +15,7 @@ import androidx.lifecycle.MutableLiveData;
 
 import org.adaway.R;
 import org.adaway.db.AppDatabase;
+import org.adaway.db.StorageProfile;
 import org.adaway.db.converter.ZonedDateTimeConverter;
 import org.adaway.db.dao.HostEntryDao;
 import org.adaway.db.dao.HostListItemDao;
@@ -24,8 +25,12 @@ import org.adaway.db.entity.HostListItem;
 import org.adaway.db.entity.HostsSource;
 import org.adaway.model.error.HostErrorException;
 import org.adaway.model.git.GitHostsSource;
+import org.adaway.model.vpn.HostBloomFilter;
+import org.adaway.model.vpn.HostIndex;
+import org.adaway.model.vpn.HostIndexBuilder;
 import org.adaway.util.Log;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -67,10 +72,18 @@ public class SourceModel {
      * The HTTP client cache size (100Mo).
      */
     private static final long CACHE_SIZE = 100L * 1024L * 1024L;
+    /**
+     * The number of host entries to read at once when building the host index.
+     */
+    private static final int INDEX_BATCH_SIZE = 10_000;
     /**
      * The application context.
      */
     private final Context context;
+    /**
+     * The application database.
+     */
+    private final AppDatabase database;
     /**
      * The {@link HostsSource} DAO.
      */
@@ -103,10 +116,10 @@ public class SourceModel {
      */
     public SourceModel(Context context) {
         this.context = context;
-        AppDatabase database = AppDatabase.getInstance(this.context);
-        this.hostsSourceDao = database.hostsSourceDao();
-        this.hostListItemDao = database.hostsListItemDao();
-        this.hostEntryDao = database.hostEntryDao();
+        this.database = AppDatabase.getInstance(this.context);
+        this.hostsSourceDao = this.database.hostsSourceDao();
+        this.hostListItemDao = this.database.hostsListItemDao();
+        this.hostEntryDao = this.database.hostEntryDao();
         this.state = new MutableLiveData<>("");
         this.updateAvailable = new MutableLiveData<>();
         this.updateAvailable.setValue(false);
@@ -317,6 +330,24 @@ public class SourceModel {
         if (isDeviceOffline()) {
             throw new HostErrorException(NO_CONNECTION);
         }
+        // Load hosts sources with the bulk load storage profile
+        long startTime = System.currentTimeMillis();
+        StorageProfile.BULK_LOAD.apply(this.database);
+        try {
+            loadHostsSources();
+        } finally {
+            endBulkLoad();
+            long endTime = System.currentTimeMillis();
+            Log.i(TAG, "Hosts sources retrieved in " + (endTime - startTime) + "ms.");
+        }
+    }
+
+    /**
+     * Download or read each hosts source and load them into the database.
+     *
+     * @throws HostErrorException If the hosts sources could not be downloaded.
+     */
+    private void loadHostsSources() throws HostErrorException {
         // Update state to downloading
         setState(R.string.status_retrieve);
         // Initialize copy counters
@@ -374,6 +405,8 @@ public class SourceModel {
         if (numberOfCopies == numberOfFailedCopies && numberOfCopies != 0) {
             throw new HostErrorException(DOWNLOAD_FAILED);
         }
+        // Remove host names no more referenced by any list
+        this.hostListItemDao.deleteOrphanHostNames();
         // Synchronize hosts entries
         syncHostEntries();
         // Mark no update available
@@ -385,7 +418,60 @@ public class SourceModel {
      */
     public void syncHostEntries() {
         setState(R.string.status_sync_database);
-        this.hostEntryDao.sync();
+        long startTime = System.currentTimeMillis();
+        StorageProfile.BULK_LOAD.apply(this.database);
+        try {
+            this.hostEntryDao.sync();
+        } finally {
+            endBulkLoad();
+        }
+        long endTime = System.currentTimeMillis();
+        Log.i(TAG, "Host entries synchronized in " + (endTime - startTime) + "ms.");
+        buildHostIndex();
+    }
+
+    /**
+     * Restore the default storage profile after a bulk load and checkpoint the written data.
+     */
+    private void endBulkLoad() {
+        StorageProfile.DEFAULT.apply(this.database);
+        StorageProfile.checkpoint(this.database);
+    }
+
+    /**
+     * Build the host index snapshot and its Bloom filter from the current host entries.
+     */
+    private void buildHostIndex() {
+        long startTime = System.currentTimeMillis();
+        HostIndexBuilder builder = new HostIndexBuilder();
+        HostBloomFilter bloomFilter = HostBloomFilter.create(this.hostEntryDao.count());
+        List<HostEntry> entries = this.hostEntryDao.getNextEntries("", INDEX_BATCH_SIZE);
+        while (!entries.isEmpty()) {
+            for (HostEntry entry : entries) {
+                builder.add(entry);
+                bloomFilter.put(entry.getHost());
+            }
+            String lastHost = entries.get(entries.size() - 1).getHost();
+            entries = this.hostEntryDao.getNextEntries(lastHost, INDEX_BATCH_SIZE);
+        }
+        File indexFile = HostIndex.getFile(this.context);
+        File bloomFilterFile = HostBloomFilter.getFile(this.context);
+        try {
+            // Remove previous filter first as it must never be used with another index
+            //noinspection ResultOfMethodCallIgnored
+            bloomFilterFile.delete();
+            builder.write(indexFile);
+            bloomFilter.write(bloomFilterFile);
+            long endTime = System.currentTimeMillis();
+            Log.i(TAG, "Host index built in " + (endTime - startTime) + "ms.");
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write host index.", e);
+            // Remove outdated index to fall back to database lookups
+            //noinspection ResultOfMethodCallIgnored
+            indexFile.delete();
+            //noinspection ResultOfMethodCallIgnored
+            bloomFilterFile.delete();
+        }
     }
 
     /**
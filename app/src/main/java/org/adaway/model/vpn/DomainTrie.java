@@ -0,0 +1,172 @@
+package org.adaway.model.vpn;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This class is a reversed-label trie of domain blocking rules.<br>
+ * A rule blocks a domain and all its subdomains. The trie is walked from the top level domain
+ * label of the queried host name, so a lookup costs one binary search per label whatever the
+ * number of rules.
+ * <p>
+ * Rules must all be added then the trie frozen before lookups. Once frozen, the trie is immutable
+ * and can be shared by the lookup threads when safely published.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public class DomainTrie {
+    private final BuildNode buildRoot;
+    private Node root;
+    private int size;
+
+    /**
+     * Constructor.
+     */
+    public DomainTrie() {
+        this.buildRoot = new BuildNode();
+        this.size = 0;
+    }
+
+    /**
+     * Add a domain to block with all its subdomains.
+     *
+     * @param domain The domain to block.
+     */
+    public void addDomain(String domain) {
+        BuildNode node = getOrCreateNode(domain);
+        if (!node.blocked) {
+            node.blocked = true;
+            this.size++;
+        }
+    }
+
+    /**
+     * Get the number of domain rules.
+     *
+     * @return The number of domain rules.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Freeze the trie for lookups, no more rule can be added.
+     */
+    public void freeze() {
+        if (this.root == null) {
+            this.root = this.buildRoot.freeze();
+        }
+    }
+
+    /**
+     * Check whether a host is blocked by a domain rule.
+     *
+     * @param host The lower case host name to check.
+     * @return {@code true} if the host or one of its parent domains is blocked, {@code false} otherwise.
+     */
+    public boolean isBlocked(CharSequence host) {
+        Node node = this.root;
+        if (node == null) {
+            throw new IllegalStateException("The trie must be frozen before lookups.");
+        }
+        int labelEnd = host.length();
+        while (true) {
+            int labelStart = labelEnd;
+            while (labelStart > 0 && host.charAt(labelStart - 1) != '.') {
+                labelStart--;
+            }
+            node = node.getChild(host, labelStart, labelEnd);
+            if (node == null) {
+                return false;
+            }
+            if (node.blocked) {
+                return true;
+            }
+            if (labelStart == 0) {
+                return false;
+            }
+            labelEnd = labelStart - 1;
+        }
+    }
+
+    private BuildNode getOrCreateNode(String domain) {
+        if (this.root != null) {
+            throw new IllegalStateException("The trie was already frozen.");
+        }
+        String[] labels = domain.toLowerCase(Locale.ROOT).split("\\.", -1);
+        BuildNode node = this.buildRoot;
+        for (int i = labels.length - 1; i >= 0; i--) {
+            BuildNode child = node.children.get(labels[i]);
+            if (child == null) {
+                child = new BuildNode();
+                node.children.put(labels[i], child);
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    /**
+     * This class is a trie node while adding rules.
+     */
+    private static class BuildNode {
+        private final Map<String, BuildNode> children = new TreeMap<>();
+        private boolean blocked;
+
+        private Node freeze() {
+            String[] labels = new String[this.children.size()];
+            Node[] nodes = new Node[labels.length];
+            int index = 0;
+            for (Map.Entry<String, BuildNode> entry : this.children.entrySet()) {
+                labels[index] = entry.getKey();
+                nodes[index] = entry.getValue().freeze();
+                index++;
+            }
+            return new Node(labels, nodes, this.blocked);
+        }
+    }
+
+    /**
+     * This class is an immutable trie node with children sorted by label.
+     */
+    private static class Node {
+        private final String[] labels;
+        private final Node[] children;
+        private final boolean blocked;
+
+        private Node(String[] labels, Node[] children, boolean blocked) {
+            this.labels = labels;
+            this.children = children;
+            this.blocked = blocked;
+        }
+
+        private Node getChild(CharSequence host, int start, int end) {
+            int low = 0;
+            int high = this.labels.length - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int compare = compare(this.labels[middle], host, start, end);
+                if (compare < 0) {
+                    low = middle + 1;
+                } else if (compare > 0) {
+                    high = middle - 1;
+                } else {
+                    return this.children[middle];
+                }
+            }
+            return null;
+        }
+
+        private static int compare(String label, CharSequence host, int start, int end) {
+            int length = Math.min(label.length(), end - start);
+            for (int i = 0; i < length; i++) {
+                int compare = label.charAt(i) - host.charAt(start + i);
+                if (compare != 0) {
+                    return compare;
+                }
+            }
+            return label.length() - (end - start);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package org.adaway.model.vpn;
+
+import android.content.Context;
+
+import androidx.annotation.Nullable;
+
+import org.adaway.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * This class is a Bloom filter over the host entries.<br>
+ * It answers allowed host lookups (the vast majority of DNS queries) without reaching the host
+ * index, the cache nor the database. Hashing walks the host name characters so checks do not
+ * allocate.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public final class HostBloomFilter {
+    /**
+     * The filter file name.
+     */
+    public static final String FILE_NAME = "host_entries.bloom";
+    private static final String TAG = "HostBloomFilter";
+    private static final int MAGIC = 0x41414246; // AABF
+    private static final int VERSION = 1;
+    /**
+     * The number of bits per entry (~1% false positive rate with 7 hash functions).
+     */
+    private static final int BITS_PER_ENTRY = 10;
+    private static final int HASH_FUNCTION_COUNT = 7;
+    private final long[] words;
+    private final int mask;
+    private final int hashFunctionCount;
+
+    private HostBloomFilter(long[] words, int hashFunctionCount) {
+        this.words = words;
+        this.mask = words.length * Long.SIZE - 1;
+        this.hashFunctionCount = hashFunctionCount;
+    }
+
+    /**
+     * Create an empty filter.
+     *
+     * @param expectedEntries The expected number of entries.
+     * @return The created filter.
+     */
+    public static HostBloomFilter create(int expectedEntries) {
+        long bits = Math.max(Long.SIZE, (long) expectedEntries * BITS_PER_ENTRY);
+        // Round up to a power of two to compute bit positions with a mask
+        int wordCount = (int) Math.min(1 << 26, Long.highestOneBit(bits - 1) << 1) / Long.SIZE;
+        return new HostBloomFilter(new long[Math.max(1, wordCount)], HASH_FUNCTION_COUNT);
+    }
+
+    /**
+     * Get the filter file.
+     *
+     * @param context The application context.
+     * @return The filter file.
+     */
+    public static File getFile(Context context) {
+        return new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    /**
+     * Load a filter from a file.
+     *
+     * @param file The filter file to load.
+     * @return The loaded filter, {@code null} if the file is missing or invalid.
+     */
+    @Nullable
+    public static HostBloomFilter open(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (inputStream.readInt() != MAGIC || inputStream.readInt() != VERSION) {
+                throw new IOException("Invalid filter header.");
+            }
+            int hashFunctionCount = inputStream.readInt();
+            int wordCount = inputStream.readInt();
+            if (hashFunctionCount <= 0 || wordCount <= 0 || Integer.bitCount(wordCount) != 1) {
+                throw new IOException("Invalid filter size.");
+            }
+            long[] words = new long[wordCount];
+            for (int i = 0; i < wordCount; i++) {
+                words[i] = inputStream.readLong();
+            }
+            return new HostBloomFilter(words, hashFunctionCount);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to load host filter " + file + ".", e);
+            return null;
+        }
+    }
+
+    /**
+     * Add a host to the filter.
+     *
+     * @param host The lower case host name to add.
+     */
+    public void put(CharSequence host) {
+        long hash = hash(host);
+        int hash1 = (int) hash;
+        int hash2 = (int) (hash >>> 32);
+        for (int i = 0; i < this.hashFunctionCount; i++) {
+            int bit = (hash1 + i * hash2) & this.mask;
+            this.words[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Check whether a host might be in the filter.
+     *
+     * @param host The lower case host name to check.
+     * @return {@code true} if the host might be in the filter, {@code false} if it is definitely not.
+     */
+    public boolean mightContain(CharSequence host) {
+        long hash = hash(host);
+        int hash1 = (int) hash;
+        int hash2 = (int) (hash >>> 32);
+        for (int i = 0; i < this.hashFunctionCount; i++) {
+            int bit = (hash1 + i * hash2) & this.mask;
+            if ((this.words[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Write the filter to a file.<br>
+     * The filter is written into a temporary file first then renamed to be published atomically.
+     *
+     * @param file The file to write the filter to.
+     * @throws IOException If the filter could not be written.
+     */
+    public void write(File file) throws IOException {
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)))) {
+            outputStream.writeInt(MAGIC);
+            outputStream.writeInt(VERSION);
+            outputStream.writeInt(this.hashFunctionCount);
+            outputStream.writeInt(this.words.length);
+            for (long word : this.words) {
+                outputStream.writeLong(word);
+            }
+        }
+        if (!temporaryFile.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            temporaryFile.delete();
+            throw new IOException("Failed to publish host filter " + file + ".");
+        }
+    }
+
+    /**
+     * Compute a 64 bits hash of a host name (FNV-1a followed by a MurmurHash3 finalizer).
+     *
+     * @param host The host name to hash.
+     * @return The host name hash.
+     */
+    private static long hash(CharSequence host) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0, length = host.length(); i < length; i++) {
+            hash ^= host.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
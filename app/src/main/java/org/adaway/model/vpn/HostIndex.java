@@ -0,0 +1,276 @@
+package org.adaway.model.vpn;
+
+import android.content.Context;
+
+import androidx.annotation.Nullable;
+
+import org.adaway.db.entity.HostEntry;
+import org.adaway.db.entity.ListType;
+import org.adaway.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.adaway.db.entity.ListType.REDIRECTED;
+
+/**
+ * This class is a compact read-only index of the host entries, memory mapped from the binary
+ * snapshot written by {@link HostIndexBuilder}.<br>
+ * Host names are stored as sorted reversed-label keys ({@code ads.example.com} is stored as
+ * {@code com.example.ads}) so lookups are a binary search over the mapped file, without database
+ * query nor allocation.
+ * <p>
+ * File layout (big endian):
+ * <pre>
+ * int     magic
+ * int     version
+ * int     entry count (n)
+ * int     redirection count (r)
+ * int[n+1] key offsets
+ * byte[n]  entry types
+ * int[r]   redirected entry indexes (sorted)
+ * int[r+1] redirection offsets
+ * byte[]   keys
+ * byte[]   redirections
+ * </pre>
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public final class HostIndex {
+    /**
+     * The index file name.
+     */
+    public static final String FILE_NAME = "host_entries.idx";
+    static final int MAGIC = 0x41414849; // AAHI
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    private static final String TAG = "HostIndex";
+    private final ByteBuffer buffer;
+    private final int count;
+    private final int redirectionCount;
+    private final int keyOffsetsPosition;
+    private final int typesPosition;
+    private final int redirectedIndexesPosition;
+    private final int redirectionOffsetsPosition;
+    private final int keysPosition;
+    private final int redirectionsPosition;
+    private final HostEntry[] typeEntries;
+    private final HostEntry[] redirectedEntries;
+
+    private HostIndex(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Invalid index header.");
+        }
+        this.count = buffer.getInt(8);
+        this.redirectionCount = buffer.getInt(12);
+        if (this.count < 0 || this.redirectionCount < 0 || this.redirectionCount > this.count) {
+            throw new IOException("Invalid index entry counts.");
+        }
+        this.keyOffsetsPosition = HEADER_SIZE;
+        this.typesPosition = this.keyOffsetsPosition + 4 * (this.count + 1);
+        this.redirectedIndexesPosition = this.typesPosition + this.count;
+        this.redirectionOffsetsPosition = this.redirectedIndexesPosition + 4 * this.redirectionCount;
+        this.keysPosition = this.redirectionOffsetsPosition + 4 * (this.redirectionCount + 1);
+        if (this.keysPosition > buffer.capacity()) {
+            throw new IOException("Truncated index tables.");
+        }
+        this.redirectionsPosition = this.keysPosition + buffer.getInt(this.keyOffsetsPosition + 4 * this.count);
+        int end = this.redirectionsPosition + buffer.getInt(this.redirectionOffsetsPosition + 4 * this.redirectionCount);
+        if (this.redirectionsPosition > buffer.capacity() || end != buffer.capacity()) {
+            throw new IOException("Truncated index data.");
+        }
+        // Create the entries shared by the host names so lookups do not allocate
+        ListType[] types = ListType.values();
+        this.typeEntries = new HostEntry[types.length];
+        for (ListType type : types) {
+            this.typeEntries[type.getValue()] = createEntry(type, null);
+        }
+        this.redirectedEntries = new HostEntry[this.redirectionCount];
+        for (int i = 0; i < this.redirectionCount; i++) {
+            this.redirectedEntries[i] = createEntry(REDIRECTED, readRedirection(i));
+        }
+    }
+
+    private static HostEntry createEntry(ListType type, @Nullable String redirection) {
+        HostEntry entry = new HostEntry();
+        entry.setHost("");
+        entry.setType(type);
+        entry.setRedirection(redirection);
+        return entry;
+    }
+
+    /**
+     * Get the index file.
+     *
+     * @param context The application context.
+     * @return The index file.
+     */
+    public static File getFile(Context context) {
+        return new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    /**
+     * Map an index file into memory.
+     *
+     * @param file The index file to map.
+     * @return The mapped index, {@code null} if the file is missing or invalid.
+     */
+    @Nullable
+    public static HostIndex open(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+             FileChannel channel = randomAccessFile.getChannel()) {
+            return new HostIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Failed to map host index " + file + ".", e);
+            return null;
+        }
+    }
+
+    /**
+     * Get the number of indexed entries.
+     *
+     * @return The number of indexed entries.
+     */
+    public int size() {
+        return this.count;
+    }
+
+    /**
+     * Find the entry of a host name.
+     *
+     * @param host The lower case host name to look for.
+     * @return The entry index, {@code -1} if the host is not indexed.
+     */
+    public int find(CharSequence host) {
+        int low = 0;
+        int high = this.count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int compare = compareKey(middle, host);
+            if (compare < 0) {
+                low = middle + 1;
+            } else if (compare > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the type of an entry.
+     *
+     * @param index The entry index.
+     * @return The entry type.
+     */
+    public ListType getType(int index) {
+        return ListType.fromValue(this.buffer.get(this.typesPosition + index));
+    }
+
+    /**
+     * Get an entry.<br>
+     * Entries are shared by the host names with the same type and redirection: their host name is
+     * empty and they must not be modified.
+     *
+     * @param index The entry index.
+     * @return The shared entry.
+     */
+    public HostEntry getEntry(int index) {
+        int type = this.buffer.get(this.typesPosition + index);
+        if (type == REDIRECTED.getValue()) {
+            int redirection = findRedirection(index);
+            if (redirection >= 0) {
+                return this.redirectedEntries[redirection];
+            }
+        }
+        return this.typeEntries[type];
+    }
+
+    /**
+     * Get the redirection of an entry.
+     *
+     * @param index The entry index.
+     * @return The entry redirection, {@code null} if the entry is not redirected.
+     */
+    @Nullable
+    public String getRedirection(int index) {
+        int redirection = findRedirection(index);
+        return redirection < 0 ? null : this.redirectedEntries[redirection].getRedirection();
+    }
+
+    private int findRedirection(int index) {
+        int low = 0;
+        int high = this.redirectionCount - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int redirectedIndex = this.buffer.getInt(this.redirectedIndexesPosition + 4 * middle);
+            if (redirectedIndex < index) {
+                low = middle + 1;
+            } else if (redirectedIndex > index) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -1;
+    }
+
+    private String readRedirection(int redirection) {
+        int start = this.buffer.getInt(this.redirectionOffsetsPosition + 4 * redirection);
+        int end = this.buffer.getInt(this.redirectionOffsetsPosition + 4 * (redirection + 1));
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = this.buffer.get(this.redirectionsPosition + start + i);
+        }
+        return new String(bytes, US_ASCII);
+    }
+
+    /**
+     * Compare an indexed key to a host name, walking the host name labels from the last one.
+     *
+     * @param index The index of the key to compare.
+     * @param host  The host name to compare.
+     * @return A negative integer, zero, or a positive integer as the key is less than, equal to,
+     * or greater than the reversed host name.
+     */
+    private int compareKey(int index, CharSequence host) {
+        int position = this.keysPosition + this.buffer.getInt(this.keyOffsetsPosition + 4 * index);
+        int end = this.keysPosition + this.buffer.getInt(this.keyOffsetsPosition + 4 * (index + 1));
+        int labelEnd = host.length();
+        while (true) {
+            int labelStart = labelEnd;
+            while (labelStart > 0 && host.charAt(labelStart - 1) != '.') {
+                labelStart--;
+            }
+            for (int i = labelStart; i < labelEnd; i++) {
+                if (position >= end) {
+                    return -1;
+                }
+                int compare = (this.buffer.get(position++) & 0xFF) - host.charAt(i);
+                if (compare != 0) {
+                    return compare;
+                }
+            }
+            if (labelStart == 0) {
+                return position < end ? 1 : 0;
+            }
+            if (position >= end) {
+                return -1;
+            }
+            int compare = (this.buffer.get(position++) & 0xFF) - '.';
+            if (compare != 0) {
+                return compare;
+            }
+            labelEnd = labelStart - 1;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package org.adaway.model.vpn;
+
+import org.adaway.db.entity.HostEntry;
+import org.adaway.db.entity.ListType;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.adaway.db.entity.ListType.REDIRECTED;
+import static org.adaway.model.vpn.HostIndex.MAGIC;
+import static org.adaway.model.vpn.HostIndex.VERSION;
+
+/**
+ * This class builds the binary snapshot of host entries read by {@link HostIndex}.<br>
+ * Keys are accumulated into a single byte array to keep the memory footprint low while
+ * building large indexes.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public class HostIndexBuilder {
+    private byte[] keys;
+    private int keysLength;
+    private int[] keyOffsets;
+    private byte[] types;
+    private final List<Integer> redirectedEntries;
+    private final List<String> redirections;
+    private int count;
+
+    /**
+     * Constructor.
+     */
+    public HostIndexBuilder() {
+        this.keys = new byte[64 * 1024];
+        this.keysLength = 0;
+        this.keyOffsets = new int[1024 + 1];
+        this.types = new byte[1024];
+        this.redirectedEntries = new ArrayList<>();
+        this.redirections = new ArrayList<>();
+        this.count = 0;
+    }
+
+    /**
+     * Add an host entry to the index.
+     *
+     * @param entry The entry to add.
+     */
+    public void add(HostEntry entry) {
+        add(entry.getHost(), entry.getType(), entry.getRedirection());
+    }
+
+    /**
+     * Add an host to the index.
+     *
+     * @param host        The lower case host name.
+     * @param type        The host type.
+     * @param redirection The host redirection, {@code null} if not redirected.
+     */
+    public void add(String host, ListType type, String redirection) {
+        if (this.count >= this.types.length) {
+            this.types = Arrays.copyOf(this.types, this.types.length * 2);
+            this.keyOffsets = Arrays.copyOf(this.keyOffsets, this.types.length + 1);
+        }
+        ensureKeyCapacity(host.length());
+        this.keyOffsets[this.count] = this.keysLength;
+        appendReversedLabels(host);
+        this.types[this.count] = (byte) type.getValue();
+        if (type == REDIRECTED && redirection != null) {
+            this.redirectedEntries.add(this.count);
+            this.redirections.add(redirection);
+        }
+        this.count++;
+        this.keyOffsets[this.count] = this.keysLength;
+    }
+
+    /**
+     * Write the index to a file.<br>
+     * The index is written into a temporary file first then renamed to be published atomically.
+     *
+     * @param file The file to write index to.
+     * @throws IOException If the index could not be written.
+     */
+    public void write(File file) throws IOException {
+        int[] order = sortedOrder();
+        // Compute redirections in sorted entry order
+        int[] newIndexes = new int[this.count];
+        for (int i = 0; i < this.count; i++) {
+            newIndexes[order[i]] = i;
+        }
+        int redirectionCount = this.redirectedEntries.size();
+        long[] redirectionOrder = new long[redirectionCount];
+        for (int i = 0; i < redirectionCount; i++) {
+            redirectionOrder[i] = ((long) newIndexes[this.redirectedEntries.get(i)] << 32) | i;
+        }
+        Arrays.sort(redirectionOrder);
+        // Write index to temporary file
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)))) {
+            outputStream.writeInt(MAGIC);
+            outputStream.writeInt(VERSION);
+            outputStream.writeInt(this.count);
+            outputStream.writeInt(redirectionCount);
+            // Key offsets
+            int offset = 0;
+            for (int i = 0; i < this.count; i++) {
+                outputStream.writeInt(offset);
+                offset += keyLength(order[i]);
+            }
+            outputStream.writeInt(offset);
+            // Types
+            for (int i = 0; i < this.count; i++) {
+                outputStream.writeByte(this.types[order[i]]);
+            }
+            // Redirected entry indexes and redirection offsets
+            byte[][] redirectionData = new byte[redirectionCount][];
+            for (int i = 0; i < redirectionCount; i++) {
+                outputStream.writeInt((int) (redirectionOrder[i] >>> 32));
+                redirectionData[i] = this.redirections.get((int) redirectionOrder[i]).getBytes(US_ASCII);
+            }
+            offset = 0;
+            for (int i = 0; i < redirectionCount; i++) {
+                outputStream.writeInt(offset);
+                offset += redirectionData[i].length;
+            }
+            outputStream.writeInt(offset);
+            // Keys
+            for (int i = 0; i < this.count; i++) {
+                int index = order[i];
+                outputStream.write(this.keys, this.keyOffsets[index], keyLength(index));
+            }
+            // Redirections
+            for (byte[] data : redirectionData) {
+                outputStream.write(data);
+            }
+        }
+        if (!temporaryFile.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            temporaryFile.delete();
+            throw new IOException("Failed to publish host index " + file + ".");
+        }
+    }
+
+    private void ensureKeyCapacity(int length) {
+        if (this.keysLength + length > this.keys.length) {
+            this.keys = Arrays.copyOf(this.keys, Math.max(this.keys.length * 2, this.keysLength + length));
+        }
+    }
+
+    private void appendReversedLabels(String host) {
+        int labelEnd = host.length();
+        while (true) {
+            int labelStart = host.lastIndexOf('.', labelEnd - 1) + 1;
+            for (int i = labelStart; i < labelEnd; i++) {
+                this.keys[this.keysLength++] = (byte) host.charAt(i);
+            }
+            if (labelStart == 0) {
+                return;
+            }
+            this.keys[this.keysLength++] = '.';
+            labelEnd = labelStart - 1;
+        }
+    }
+
+    private int keyLength(int index) {
+        return this.keyOffsets[index + 1] - this.keyOffsets[index];
+    }
+
+    private int compareKeys(int index1, int index2) {
+        int position1 = this.keyOffsets[index1];
+        int end1 = this.keyOffsets[index1 + 1];
+        int position2 = this.keyOffsets[index2];
+        int end2 = this.keyOffsets[index2 + 1];
+        while (position1 < end1 && position2 < end2) {
+            int compare = (this.keys[position1++] & 0xFF) - (this.keys[position2++] & 0xFF);
+            if (compare != 0) {
+                return compare;
+            }
+        }
+        return (end1 - position1) - (end2 - position2);
+    }
+
+    /**
+     * Sort the entries by key using a merge sort on entry indexes, without boxing them.
+     *
+     * @return The entry indexes, ordered by key.
+     */
+    private int[] sortedOrder() {
+        int[] order = new int[this.count];
+        for (int i = 0; i < this.count; i++) {
+            order[i] = i;
+        }
+        int[] buffer = new int[this.count];
+        for (int width = 1; width < this.count; width *= 2) {
+            for (int low = 0; low < this.count; low += 2 * width) {
+                int middle = Math.min(low + width, this.count);
+                int high = Math.min(low + 2 * width, this.count);
+                int left = low;
+                int right = middle;
+                int position = low;
+                while (left < middle && right < high) {
+                    buffer[position++] = compareKeys(order[left], order[right]) <= 0 ? order[left++] : order[right++];
+                }
+                while (left < middle) {
+                    buffer[position++] = order[left++];
+                }
+                while (right < high) {
+                    buffer[position++] = order[right++];
+                }
+            }
+            int[] swap = order;
+            order = buffer;
+            buffer = swap;
+        }
+        return order;
+    }
+}
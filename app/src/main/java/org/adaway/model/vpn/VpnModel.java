@@ -11,12 +11,15 @@ import org.adaway.model.adblocking.AdBlockMethod;
 import org.adaway.model.adblocking.AdBlockModel;
 import org.adaway.model.error.HostErrorException;
 import org.adaway.util.Log;
+import org.adaway.util.RegexUtils;
 import org.adaway.vpn.VpnService;
 
 import java.util.ArrayList;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static org.adaway.db.entity.ListType.BLOCKED;
 import static org.adaway.model.adblocking.AdBlockMethod.VPN;
 import static org.adaway.model.error.HostError.ENABLE_VPN_FAIL;
 
@@ -27,11 +30,19 @@ import static org.adaway.model.error.HostError.ENABLE_VPN_FAIL;
  */
 public class VpnModel extends AdBlockModel {
     private static final String TAG = "VpnModel";
+    /**
+     * The entry shared by the hosts blocked by domain or wildcard rules.
+     */
+    private static final HostEntry RULE_BLOCKED_ENTRY = createRuleBlockedEntry();
     private final HostEntryDao hostEntryDao;
     private final LruCache<String, HostEntry> blockCache;
+    private volatile HostBloomFilter bloomFilter;
+    private volatile HostIndex hostIndex;
+    private final Object blockingRulesLock;
+    private volatile BlockingRules blockingRules;
     private final LinkedHashSet<String> logs;
-    private boolean recordingLogs;
-    private int requestCount;
+    private volatile boolean recordingLogs;
+    private final AtomicInteger requestCount;
 
     /**
      * Constructor.
@@ -48,9 +59,11 @@ public class VpnModel extends AdBlockModel {
                 return VpnModel.this.hostEntryDao.getEntry(key);
             }
         };
+        loadHostIndex();
+        this.blockingRulesLock = new Object();
         this.logs = new LinkedHashSet<>();
         this.recordingLogs = false;
-        this.requestCount = 0;
+        this.requestCount = new AtomicInteger();
         this.applied.postValue(VpnService.isStarted(context));
     }
 
@@ -63,6 +76,14 @@ public class VpnModel extends AdBlockModel {
     public void apply() throws HostErrorException {
         // Clear cache
         this.blockCache.evictAll();
+        // Load the host index built at sync time
+        loadHostIndex();
+        // Build the new blocking rules here, lookups keeping the previous ones meanwhile
+        BlockingRules rules = loadBlockingRules();
+        // Publish them after any pending first load so they are not replaced by older rules
+        synchronized (this.blockingRulesLock) {
+            this.blockingRules = rules;
+        }
         // Start VPN
         boolean started = VpnService.start(this.context);
         this.applied.postValue(started);
@@ -90,35 +111,161 @@ public class VpnModel extends AdBlockModel {
 
     @Override
     public List<String> getLogs() {
-        return new ArrayList<>(this.logs);
+        synchronized (this.logs) {
+            return new ArrayList<>(this.logs);
+        }
     }
 
     @Override
     public void clearLogs() {
-        this.logs.clear();
+        synchronized (this.logs) {
+            this.logs.clear();
+        }
+    }
+
+    /**
+     * Load the host index and its Bloom filter built at sync time.
+     */
+    private void loadHostIndex() {
+        HostIndex index = HostIndex.open(HostIndex.getFile(this.context));
+        // The filter is only valid along the index it was built with
+        this.bloomFilter = index == null ? null : HostBloomFilter.open(HostBloomFilter.getFile(this.context));
+        this.hostIndex = index;
+    }
+
+    /**
+     * Prepare the host lookups before the VPN threads check host names.<br>
+     * It loads the blocking rules from the calling thread as the database can't be queried from the
+     * main thread.
+     */
+    public void prepareLookups() {
+        getBlockingRules();
+    }
+
+    /**
+     * Get the blocking rules, loading them once if needed.
+     *
+     * @return The blocking rules.
+     */
+    private BlockingRules getBlockingRules() {
+        BlockingRules rules = this.blockingRules;
+        if (rules == null) {
+            synchronized (this.blockingRulesLock) {
+                rules = this.blockingRules;
+                if (rules == null) {
+                    rules = loadBlockingRules();
+                    this.blockingRules = rules;
+                }
+            }
+        }
+        return rules;
     }
 
     /**
-     * Checks host entry related to an host name.
+     * Load the enabled domain and wildcard rules and their allowed host exceptions.<br>
+     * The rules are built for lookups before being returned, so they are immutable once published.
      *
-     * @param host A hostname to check.
-     * @return The related host entry.
+     * @return The loaded rules.
      */
-    public HostEntry getEntry(String host) {
+    private BlockingRules loadBlockingRules() {
+        DomainTrie domains = new DomainTrie();
+        for (String rule : this.hostEntryDao.getEnabledBlockedDomainRules()) {
+            domains.addDomain(RegexUtils.getRuleDomain(rule));
+        }
+        WildcardMatcher wildcards = new WildcardMatcher();
+        for (String wildcard : this.hostEntryDao.getEnabledBlockedWildcards()) {
+            wildcards.add(wildcard);
+        }
+        WildcardMatcher allowedHosts = new WildcardMatcher();
+        if (domains.size() > 0 || wildcards.size() > 0) {
+            for (String allowedHost : this.hostEntryDao.getEnabledAllowedHosts()) {
+                allowedHosts.add(allowedHost);
+            }
+        }
+        domains.freeze();
+        wildcards.compile();
+        allowedHosts.compile();
+        Log.d(TAG, "Loaded " + domains.size() + " domain rules and " + wildcards.size() + " wildcard rules.");
+        return new BlockingRules(domains, wildcards, allowedHosts);
+    }
+
+    private static HostEntry createRuleBlockedEntry() {
+        HostEntry entry = new HostEntry();
+        entry.setHost("");
+        entry.setType(BLOCKED);
+        return entry;
+    }
+
+    /**
+     * Checks host entry related to an host name.<br>
+     * Checking a host name does not allocate unless logs are recorded or the host index is
+     * missing. Entries from the host index and the blocking rules are shared between host names:
+     * their host name is empty and they must not be modified.
+     *
+     * @param host A lower case hostname to check.
+     * @return The related host entry, {@code null} if the host name is allowed.
+     */
+    public HostEntry getEntry(CharSequence host) {
         // Compute miss rate periodically
-        this.requestCount++;
-        if (this.requestCount >= 1000) {
+        if (this.requestCount.incrementAndGet() % 1000 == 0) {
             int hits = this.blockCache.hitCount();
             int misses = this.blockCache.missCount();
-            double missRate = 100D * (hits + misses) / misses;
+            double missRate = 100D * misses / Math.max(1, hits + misses);
             Log.d(TAG, "Host cache miss rate: " + missRate);
-            this.requestCount = 0;
         }
-        // Add host to logs
+        // Add host to logs (hosts are checked from several VPN threads)
         if (this.recordingLogs) {
-            this.logs.add(host);
+            synchronized (this.logs) {
+                this.logs.add(host.toString());
+            }
+        }
+        // Check exact host entries
+        HostEntry entry = getExactEntry(host);
+        if (entry != null) {
+            return entry;
+        }
+        // Check blocking rules (built before the lookups start or when applying an update)
+        if (getBlockingRules().isBlocked(host)) {
+            return RULE_BLOCKED_ENTRY;
+        }
+        return null;
+    }
+
+    private HostEntry getExactEntry(CharSequence host) {
+        // Check Bloom filter to quickly answer allowed hosts
+        HostBloomFilter filter = this.bloomFilter;
+        if (filter != null && !filter.mightContain(host)) {
+            return null;
+        }
+        // Check host index
+        HostIndex index = this.hostIndex;
+        if (index != null) {
+            int entryIndex = index.find(host);
+            return entryIndex < 0 ? null : index.getEntry(entryIndex);
         }
         // Check cache
-        return this.blockCache.get(host);
+        return this.blockCache.get(host.toString());
+    }
+
+    /**
+     * This class holds the domain and wildcard rules with the allowed hosts to exclude from them.
+     */
+    private static class BlockingRules {
+        private final DomainTrie domains;
+        private final WildcardMatcher wildcards;
+        private final WildcardMatcher allowedHosts;
+
+        private BlockingRules(DomainTrie domains, WildcardMatcher wildcards, WildcardMatcher allowedHosts) {
+            this.domains = domains;
+            this.wildcards = wildcards;
+            this.allowedHosts = allowedHosts;
+        }
+
+        private boolean isBlocked(CharSequence host) {
+            if ((this.domains.size() == 0 || !this.domains.isBlocked(host)) && !this.wildcards.matches(host)) {
+                return false;
+            }
+            return !this.allowedHosts.matches(host);
+        }
     }
 }
@@ -0,0 +1,273 @@
+package org.adaway.model.vpn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This class matches host names against a set of wildcard patterns at once.<br>
+ * Wildcard {@code *} matches any sequence of characters and {@code ?} matches any single character,
+ * as {@link org.adaway.util.RegexUtils#wildcardToRegex(String)} does.
+ * <p>
+ * Patterns are compiled into a trie of their reversed characters with wildcard edges, simulated
+ * as a non deterministic automaton. Reversing the patterns makes them share their top level
+ * domain prefixes so a lookup only follows a few states per character of the queried host name,
+ * whatever the number of patterns.
+ * <p>
+ * Patterns must all be added then the matcher compiled before lookups. Once compiled, the
+ * automaton is immutable and can be shared by the lookup threads when safely published, each
+ * thread using its own lookup state sets.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public class WildcardMatcher {
+    private static final int NONE = -1;
+    private final BuildNode buildRoot;
+    private int size;
+    // Compiled automaton
+    private char[][] keys;
+    private int[][] transitions;
+    private int[] anyTransitions;
+    private int[] starTransitions;
+    private boolean[] loops;
+    private boolean[] accepts;
+    // Lookup state sets of each thread
+    private ThreadLocal<LookupState> lookupStates;
+
+    /**
+     * Constructor.
+     */
+    public WildcardMatcher() {
+        this.buildRoot = new BuildNode();
+        this.size = 0;
+    }
+
+    /**
+     * Add a wildcard pattern.
+     *
+     * @param pattern The pattern to add.
+     */
+    public void add(String pattern) {
+        if (this.keys != null) {
+            throw new IllegalStateException("The matcher was already compiled.");
+        }
+        String lowerCasePattern = pattern.toLowerCase(Locale.ROOT);
+        BuildNode node = this.buildRoot;
+        for (int i = lowerCasePattern.length() - 1; i >= 0; i--) {
+            char c = lowerCasePattern.charAt(i);
+            if (c == '*') {
+                // Consecutive stars are equivalent to a single one
+                if (!node.loop) {
+                    if (node.star == null) {
+                        node.star = new BuildNode();
+                        node.star.loop = true;
+                    }
+                    node = node.star;
+                }
+            } else if (c == '?') {
+                if (node.any == null) {
+                    node.any = new BuildNode();
+                }
+                node = node.any;
+            } else {
+                BuildNode child = node.children.get(c);
+                if (child == null) {
+                    child = new BuildNode();
+                    node.children.put(c, child);
+                }
+                node = child;
+            }
+        }
+        if (!node.accept) {
+            node.accept = true;
+            this.size++;
+        }
+    }
+
+    /**
+     * Get the number of patterns.
+     *
+     * @return The number of patterns.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Check whether a host name matches any pattern.
+     *
+     * @param host The lower case host name to check.
+     * @return {@code true} if the host name matches at least one pattern, {@code false} otherwise.
+     */
+    public boolean matches(CharSequence host) {
+        if (this.size == 0) {
+            return false;
+        }
+        if (this.keys == null) {
+            throw new IllegalStateException("The matcher must be compiled before lookups.");
+        }
+        LookupState lookupState = this.lookupStates.get();
+        int[] currentStates = lookupState.currentStates;
+        int[] nextStates = lookupState.nextStates;
+        int currentCount = addState(lookupState, currentStates, 0, 0, lookupState.nextMark());
+        for (int i = host.length() - 1; i >= 0 && currentCount > 0; i--) {
+            char c = host.charAt(i);
+            int stepMark = lookupState.nextMark();
+            int nextCount = 0;
+            for (int j = 0; j < currentCount; j++) {
+                int state = currentStates[j];
+                if (this.loops[state]) {
+                    nextCount = addState(lookupState, nextStates, nextCount, state, stepMark);
+                }
+                int transition = findTransition(state, c);
+                if (transition != NONE) {
+                    nextCount = addState(lookupState, nextStates, nextCount, transition, stepMark);
+                }
+                if (this.anyTransitions[state] != NONE) {
+                    nextCount = addState(lookupState, nextStates, nextCount, this.anyTransitions[state], stepMark);
+                }
+            }
+            int[] swap = currentStates;
+            currentStates = nextStates;
+            nextStates = swap;
+            currentCount = nextCount;
+        }
+        for (int j = 0; j < currentCount; j++) {
+            if (this.accepts[currentStates[j]]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Add a state and the states reachable through empty star matches to a state set.
+     *
+     * @param lookupState The lookup state of the thread.
+     * @param states      The state set.
+     * @param count       The state set size.
+     * @param state       The state to add.
+     * @param setMark     The mark of the state set.
+     * @return The new state set size.
+     */
+    private int addState(LookupState lookupState, int[] states, int count, int state, int setMark) {
+        int[] marks = lookupState.marks;
+        while (state != NONE && marks[state] != setMark) {
+            marks[state] = setMark;
+            states[count++] = state;
+            state = this.starTransitions[state];
+        }
+        return count;
+    }
+
+    private int findTransition(int state, char c) {
+        char[] stateKeys = this.keys[state];
+        int low = 0;
+        int high = stateKeys.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            char key = stateKeys[middle];
+            if (key < c) {
+                low = middle + 1;
+            } else if (key > c) {
+                high = middle - 1;
+            } else {
+                return this.transitions[state][middle];
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Compile the patterns for lookups, no more pattern can be added.
+     */
+    public void compile() {
+        if (this.keys != null) {
+            return;
+        }
+        // Number nodes in breadth first order
+        List<BuildNode> nodes = new ArrayList<>();
+        nodes.add(this.buildRoot);
+        for (int i = 0; i < nodes.size(); i++) {
+            BuildNode node = nodes.get(i);
+            for (BuildNode child : node.children.values()) {
+                child.id = nodes.size();
+                nodes.add(child);
+            }
+            if (node.any != null) {
+                node.any.id = nodes.size();
+                nodes.add(node.any);
+            }
+            if (node.star != null) {
+                node.star.id = nodes.size();
+                nodes.add(node.star);
+            }
+        }
+        int count = nodes.size();
+        char[][] compiledKeys = new char[count][];
+        int[][] compiledTransitions = new int[count][];
+        this.anyTransitions = new int[count];
+        this.starTransitions = new int[count];
+        this.loops = new boolean[count];
+        this.accepts = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            BuildNode node = nodes.get(i);
+            compiledKeys[i] = new char[node.children.size()];
+            compiledTransitions[i] = new int[node.children.size()];
+            int index = 0;
+            for (Map.Entry<Character, BuildNode> entry : node.children.entrySet()) {
+                compiledKeys[i][index] = entry.getKey();
+                compiledTransitions[i][index] = entry.getValue().id;
+                index++;
+            }
+            this.anyTransitions[i] = node.any == null ? NONE : node.any.id;
+            this.starTransitions[i] = node.star == null ? NONE : node.star.id;
+            this.loops[i] = node.loop;
+            this.accepts[i] = node.accept;
+        }
+        this.transitions = compiledTransitions;
+        this.lookupStates = ThreadLocal.withInitial(() -> new LookupState(count));
+        this.keys = compiledKeys;
+    }
+
+    /**
+     * This class holds the state sets of the lookups of a thread.
+     */
+    private static class LookupState {
+        private final int[] currentStates;
+        private final int[] nextStates;
+        private final int[] marks;
+        private int mark;
+
+        private LookupState(int stateCount) {
+            this.currentStates = new int[stateCount];
+            this.nextStates = new int[stateCount];
+            this.marks = new int[stateCount];
+            this.mark = 0;
+        }
+
+        private int nextMark() {
+            this.mark++;
+            if (this.mark == Integer.MAX_VALUE) {
+                Arrays.fill(this.marks, 0);
+                this.mark = 1;
+            }
+            return this.mark;
+        }
+    }
+
+    /**
+     * This class is an automaton node while adding patterns.
+     */
+    private static class BuildNode {
+        private final Map<Character, BuildNode> children = new TreeMap<>();
+        private BuildNode any;
+        private BuildNode star;
+        private boolean loop;
+        private boolean accept;
+        private int id;
+    }
+}
@@ -0,0 +1,151 @@
+package org.adaway.ui.lists;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.paging.ListenableFuturePagingSource;
+import androidx.paging.PagingState;
+import androidx.room.InvalidationTracker;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import org.adaway.db.AppDatabase;
+import org.adaway.db.dao.HostListItemDao;
+import org.adaway.db.entity.HostListItem;
+import org.adaway.db.entity.ListType;
+import org.adaway.util.AppExecutors;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import kotlin.Unit;
+
+import static org.adaway.db.entity.HostName.getReversedUpperBound;
+
+/**
+ * This class is a {@link androidx.paging.PagingSource} of a host list keyed on host names.<br>
+ * Pages are seeked from the host name of the previous or next page rather than skipped with an
+ * offset, so loading a page walks the host name index from the key and costs the same however
+ * deep the list is scrolled.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+class HostListItemPagingSource extends ListenableFuturePagingSource<String, HostListItem> {
+    private static final String[] TABLES = {"hosts_lists", "host_names", "hosts_sources"};
+    private final AppDatabase database;
+    private final HostListItemDao hostListItemDao;
+    private final ListType type;
+    private final ListsFilter filter;
+    private final InvalidationTracker.Observer observer;
+    private final AtomicBoolean observing;
+
+    HostListItemPagingSource(AppDatabase database, ListType type, ListsFilter filter) {
+        this.database = database;
+        this.hostListItemDao = database.hostsListItemDao();
+        this.type = type;
+        this.filter = filter;
+        this.observer = new InvalidationTracker.Observer(TABLES) {
+            @Override
+            public void onInvalidated(@NonNull Set<String> tables) {
+                invalidate();
+            }
+        };
+        this.observing = new AtomicBoolean(false);
+        registerInvalidatedCallback(() -> {
+            this.database.getInvalidationTracker().removeObserver(this.observer);
+            return Unit.INSTANCE;
+        });
+    }
+
+    @NonNull
+    @Override
+    public ListenableFuture<LoadResult<String, HostListItem>> loadFuture(@NonNull LoadParams<String> params) {
+        return Futures.submit(() -> load(params), AppExecutors.getInstance().diskIO());
+    }
+
+    @Nullable
+    @Override
+    public String getRefreshKey(@NonNull PagingState<String, HostListItem> state) {
+        // Reload from the item at the anchor position
+        Integer anchorPosition = state.getAnchorPosition();
+        if (anchorPosition == null) {
+            return null;
+        }
+        HostListItem item = state.closestItemToPosition(anchorPosition);
+        return item == null ? null : item.getHost();
+    }
+
+    private LoadResult<String, HostListItem> load(LoadParams<String> params) {
+        // Observe list changes from the first load to not access the database from the main thread
+        if (this.observing.compareAndSet(false, true) && !isInvalid()) {
+            this.database.getInvalidationTracker().addObserver(this.observer);
+        }
+        String key = params.getKey();
+        int limit = params.getLoadSize();
+        if (params instanceof LoadParams.Prepend) {
+            List<HostListItem> items = loadBefore(key, limit);
+            Collections.reverse(items);
+            return new LoadResult.Page<>(
+                    items,
+                    items.size() < limit ? null : getFirstHost(items),
+                    getLastHost(items)
+            );
+        }
+        List<HostListItem> items;
+        if (params instanceof LoadParams.Append) {
+            items = loadAfter(key, false, limit);
+        } else {
+            items = loadAfter(key == null ? "" : key, true, limit);
+            // Restart from the list beginning if the anchor item and the following ones were removed
+            if (items.isEmpty() && key != null) {
+                key = null;
+                items = loadAfter("", true, limit);
+            }
+        }
+        return new LoadResult.Page<>(
+                items,
+                key == null ? null : getFirstHost(items),
+                items.size() < limit ? null : getLastHost(items)
+        );
+    }
+
+    private List<HostListItem> loadAfter(String from, boolean inclusive, int limit) {
+        int typeValue = this.type.getValue();
+        boolean includeSources = this.filter.sourcesIncluded;
+        // Use the reversed host name index for subdomain queries
+        if (this.filter.reversedPrefix != null) {
+            String reversedPrefix = this.filter.reversedPrefix;
+            return this.hostListItemDao.loadSubdomainPageAfter(typeValue, includeSources, reversedPrefix, getReversedUpperBound(reversedPrefix), from, inclusive, limit);
+        }
+        // Use the trigram index to find candidates when the query allows it
+        if (this.filter.matchQuery != null) {
+            return this.hostListItemDao.searchPageAfter(typeValue, includeSources, this.filter.matchQuery, this.filter.sqlQuery, from, inclusive, limit);
+        }
+        return this.hostListItemDao.loadPageAfter(typeValue, includeSources, this.filter.sqlQuery, from, inclusive, limit);
+    }
+
+    private List<HostListItem> loadBefore(String before, int limit) {
+        int typeValue = this.type.getValue();
+        boolean includeSources = this.filter.sourcesIncluded;
+        if (this.filter.reversedPrefix != null) {
+            String reversedPrefix = this.filter.reversedPrefix;
+            return this.hostListItemDao.loadSubdomainPageBefore(typeValue, includeSources, reversedPrefix, getReversedUpperBound(reversedPrefix), before, limit);
+        }
+        if (this.filter.matchQuery != null) {
+            return this.hostListItemDao.searchPageBefore(typeValue, includeSources, this.filter.matchQuery, this.filter.sqlQuery, before, limit);
+        }
+        return this.hostListItemDao.loadPageBefore(typeValue, includeSources, this.filter.sqlQuery, before, limit);
+    }
+
+    @Nullable
+    private static String getFirstHost(List<HostListItem> items) {
+        return items.isEmpty() ? null : items.get(0).getHost();
+    }
+
+    @Nullable
+    private static String getLastHost(List<HostListItem> items) {
+        return items.isEmpty() ? null : items.get(items.size() - 1).getHost();
+    }
+}
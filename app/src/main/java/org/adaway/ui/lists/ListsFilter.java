@@ -1,5 +1,9 @@
 package org.adaway.ui.lists;
 
+import androidx.annotation.Nullable;
+
+import org.adaway.db.entity.HostName;
+
 /**
  * This class represents the filter to apply to host lists.
  *
@@ -19,11 +23,26 @@ public class ListsFilter {
      * The query filter to apply to hosts name (sql like format).
      */
     public final String sqlQuery;
+    /**
+     * The query filter to find candidate hosts name (full text trigram match format), to check
+     * with {@link #sqlQuery}, {@code null} if the query has no text long enough to use the full
+     * text index. Shorter queries match most hosts so a {@code LIKE} scan quickly fills a page.
+     */
+    @Nullable
+    public final String matchQuery;
+    /**
+     * The reversed host name prefix of the subdomains to list ({@code com.example.} for
+     * {@code *.example.com}), {@code null} if the query is not a subdomain query.
+     */
+    @Nullable
+    public final String reversedPrefix;
 
     public ListsFilter(boolean sourcesIncluded, String query) {
         this.sourcesIncluded = sourcesIncluded;
         this.query = query;
         this.sqlQuery = convertToLikeQuery(query);
+        this.matchQuery = HostName.getTrigramMatchQuery(query);
+        this.reversedPrefix = HostName.isSubdomainPattern(query) ? HostName.getReversedSubdomainPrefix(query) : null;
     }
 
     private static String convertToLikeQuery(String query) {
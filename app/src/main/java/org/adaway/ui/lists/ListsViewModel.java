@@ -35,6 +35,7 @@ import static org.adaway.ui.lists.ListsFilter.ALL;
  */
 public class ListsViewModel extends AndroidViewModel {
     private static final Executor EXECUTOR = AppExecutors.getInstance().diskIO();
+    private final AppDatabase database;
     private final HostListItemDao hostListItemDao;
     private final MutableLiveData<ListsFilter> filter;
     private final LiveData<PagingData<HostListItem>> blockedListItems;
@@ -44,25 +45,26 @@ public class ListsViewModel extends AndroidViewModel {
 
     public ListsViewModel(@NonNull Application application) {
         super(application);
-        this.hostListItemDao = AppDatabase.getInstance(application).hostsListItemDao();
+        this.database = AppDatabase.getInstance(application);
+        this.hostListItemDao = this.database.hostsListItemDao();
         this.filter = new MutableLiveData<>(ALL);
         PagingConfig pagingConfig = new PagingConfig(50, 150, true);
         this.blockedListItems = switchMap(
                 this.filter,
                 filter -> getLiveData(new Pager<>(pagingConfig, () ->
-                        this.hostListItemDao.loadList(BLOCKED.getValue(), filter.sourcesIncluded, filter.sqlQuery)
+                        loadList(BLOCKED, filter)
                 ))
         );
         this.allowedListItems = switchMap(
                 this.filter,
                 filter -> getLiveData(new Pager<>(pagingConfig, () ->
-                        this.hostListItemDao.loadList(ALLOWED.getValue(), filter.sourcesIncluded, filter.sqlQuery)
+                        loadList(ALLOWED, filter)
                 ))
         );
         this.redirectedListItems = switchMap(
                 this.filter,
                 filter -> getLiveData(new Pager<>(pagingConfig, () ->
-                        this.hostListItemDao.loadList(REDIRECTED.getValue(), filter.sourcesIncluded, filter.sqlQuery)
+                        loadList(REDIRECTED, filter)
                 ))
         );
         this.modelChanged = new MutableLiveData<>(false);
@@ -149,6 +151,10 @@ public class ListsViewModel extends AndroidViewModel {
         setFilter(newFilter);
     }
 
+    private HostListItemPagingSource loadList(ListType type, ListsFilter filter) {
+        return new HostListItemPagingSource(this.database, type, filter);
+    }
+
     private ListsFilter getFilter() {
         ListsFilter filter = this.filter.getValue();
         return filter == null ? ALL : filter;
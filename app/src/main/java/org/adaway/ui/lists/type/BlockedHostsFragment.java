@@ -34,10 +34,12 @@ import com.google.android.material.dialog.MaterialAlertDialogBuilder;
 
 import org.adaway.R;
 import org.adaway.db.entity.HostListItem;
+import org.adaway.helper.PreferenceHelper;
 import org.adaway.ui.dialog.AlertDialogValidator;
 import org.adaway.util.RegexUtils;
 
 import static org.adaway.db.entity.ListType.BLOCKED;
+import static org.adaway.model.adblocking.AdBlockMethod.ROOT;
 
 /**
  * This class is a {@link AbstractListFragment} to display and manage blocked hosts.
@@ -55,6 +57,7 @@ public class BlockedHostsFragment extends AbstractListFragment {
         // Create dialog view
         LayoutInflater factory = LayoutInflater.from(this.mActivity);
         View view = factory.inflate(R.layout.lists_blocked_dialog, null);
+        boolean rulesSupported = bindRulesSupport(view);
         EditText inputEditText = view.findViewById(R.id.list_dialog_hostname);
         // Create dialog
         AlertDialog alertDialog = new MaterialAlertDialogBuilder(this.mActivity)
@@ -69,7 +72,7 @@ public class BlockedHostsFragment extends AbstractListFragment {
                             dialog.dismiss();
                             // Check if hostname is valid
                             String hostname = inputEditText.getText().toString();
-                            if (RegexUtils.isValidHostname(hostname)) {
+                            if (isValidBlockedHost(hostname, rulesSupported)) {
                                 // Insert host to black list
                                 this.mViewModel.addListItem(BLOCKED, hostname, null);
                             }
@@ -83,7 +86,7 @@ public class BlockedHostsFragment extends AbstractListFragment {
         alertDialog.show();
         // Set button validation behavior
         inputEditText.addTextChangedListener(
-                new AlertDialogValidator(alertDialog, RegexUtils::isValidHostname, false)
+                new AlertDialogValidator(alertDialog, hostname -> isValidBlockedHost(hostname, rulesSupported), false)
         );
     }
 
@@ -92,6 +95,7 @@ public class BlockedHostsFragment extends AbstractListFragment {
         // Create dialog view
         LayoutInflater factory = LayoutInflater.from(this.mActivity);
         View view = factory.inflate(R.layout.lists_blocked_dialog, null);
+        boolean rulesSupported = bindRulesSupport(view);
         // Set hostname
         EditText inputEditText = view.findViewById(R.id.list_dialog_hostname);
         inputEditText.setText(item.getHost());
@@ -111,7 +115,7 @@ public class BlockedHostsFragment extends AbstractListFragment {
                             dialog.dismiss();
                             // Check hostname validity
                             String hostname = inputEditText.getText().toString();
-                            if (RegexUtils.isValidHostname(hostname)) {
+                            if (isValidBlockedHost(hostname, rulesSupported)) {
                                 // Update list item
                                 this.mViewModel.updateListItem(item, hostname, null);
                             }
@@ -125,7 +129,39 @@ public class BlockedHostsFragment extends AbstractListFragment {
         alertDialog.show();
         // Set button validation behavior
         inputEditText.addTextChangedListener(
-                new AlertDialogValidator(alertDialog, RegexUtils::isValidHostname, true)
+                new AlertDialogValidator(alertDialog, hostname -> isValidBlockedHost(hostname, rulesSupported), true)
         );
     }
-}
\ No newline at end of file
+
+    /**
+     * Check whether the ad block method supports the wildcard and domain rules and show the dialog
+     * hints accordingly.<br>
+     * The root method writes the blocked host names to the hosts file so it ignores the rules.
+     *
+     * @param view The dialog view.
+     * @return {@code true} if the wildcard and domain rules are supported, {@code false} otherwise.
+     */
+    private boolean bindRulesSupport(View view) {
+        boolean rulesSupported = PreferenceHelper.getAdBlockMethod(this.mActivity) != ROOT;
+        int ruleHintVisibility = rulesSupported ? View.VISIBLE : View.GONE;
+        view.findViewById(R.id.list_dialog_wildcard).setVisibility(ruleHintVisibility);
+        view.findViewById(R.id.list_dialog_subdomains).setVisibility(ruleHintVisibility);
+        view.findViewById(R.id.list_dialog_rules_vpn_only).setVisibility(rulesSupported ? View.GONE : View.VISIBLE);
+        return rulesSupported;
+    }
+
+    /**
+     * Check whether a blocked host is valid.
+     *
+     * @param host           The host to check.
+     * @param rulesSupported {@code true} if the wildcard and domain rules are supported, {@code false} otherwise.
+     * @return {@code true} if the host is a valid host name, or a valid wildcard host name or domain
+     * rule if supported, {@code false} otherwise.
+     */
+    private static boolean isValidBlockedHost(String host, boolean rulesSupported) {
+        if (!rulesSupported) {
+            return RegexUtils.isValidHostname(host);
+        }
+        return RegexUtils.isValidWildcardHostname(host) || RegexUtils.isValidDomainRule(host);
+    }
+}
@@ -0,0 +1,86 @@
+package org.adaway.ui.prefs;
+
+import android.content.Context;
+import android.os.Bundle;
+
+import androidx.annotation.NonNull;
+import androidx.preference.Preference;
+import androidx.preference.PreferenceCategory;
+import androidx.preference.PreferenceFragmentCompat;
+
+import org.adaway.R;
+import org.adaway.db.DatabaseStats;
+import org.adaway.util.AppExecutors;
+
+import java.util.Map;
+
+import static android.text.format.Formatter.formatShortFileSize;
+import static org.adaway.util.Constants.PREFS_NAME;
+
+/**
+ * This fragment is the preferences fragment to report the database storage.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public class PrefsStorageFragment extends PreferenceFragmentCompat {
+    @Override
+    public void onCreatePreferences(Bundle savedInstanceState, String rootKey) {
+        // Configure preferences
+        getPreferenceManager().setSharedPreferencesName(PREFS_NAME);
+        addPreferencesFromResource(R.xml.preferences_storage);
+        // Compute statistics
+        Context context = requireContext().getApplicationContext();
+        AppExecutors executors = AppExecutors.getInstance();
+        executors.diskIO().execute(() -> {
+            DatabaseStats stats = DatabaseStats.compute(context);
+            executors.mainThread().execute(() -> bindStats(stats));
+        });
+    }
+
+    @Override
+    public void onAttach(@NonNull Context context) {
+        super.onAttach(context);
+        PrefsActivity.setAppBarTitle(this, R.string.pref_storage_title);
+    }
+
+    private void bindStats(DatabaseStats stats) {
+        Context context = getContext();
+        if (context == null) {
+            return;
+        }
+        Preference databaseSizePreference = findPreference(getString(R.string.pref_storage_database_size_key));
+        assert databaseSizePreference != null : "preference not found";
+        databaseSizePreference.setSummary(getString(
+                R.string.pref_storage_database_size_summary,
+                formatShortFileSize(context, stats.databaseSize),
+                formatShortFileSize(context, stats.walSize)
+        ));
+        Preference freePagesPreference = findPreference(getString(R.string.pref_storage_free_pages_key));
+        assert freePagesPreference != null : "preference not found";
+        freePagesPreference.setSummary(getString(
+                R.string.pref_storage_free_pages_summary,
+                stats.freePages,
+                formatShortFileSize(context, stats.freePages * stats.pageSize)
+        ));
+        PreferenceCategory indexesCategory = findPreference(getString(R.string.pref_storage_indexes_key));
+        assert indexesCategory != null : "preference not found";
+        if (stats.indexSizes.isEmpty()) {
+            indexesCategory.setSummary(R.string.pref_storage_indexes_unavailable);
+        }
+        addSizePreferences(context, indexesCategory, stats.indexSizes);
+        PreferenceCategory sourcesCategory = findPreference(getString(R.string.pref_storage_sources_key));
+        assert sourcesCategory != null : "preference not found";
+        addSizePreferences(context, sourcesCategory, stats.sourceSizes);
+    }
+
+    private void addSizePreferences(Context context, PreferenceCategory category, Map<String, Long> sizes) {
+        for (Map.Entry<String, Long> entry : sizes.entrySet()) {
+            Preference preference = new Preference(context);
+            preference.setSelectable(false);
+            preference.setIconSpaceReserved(false);
+            preference.setTitle(entry.getKey());
+            preference.setSummary(formatShortFileSize(context, entry.getValue()));
+            category.addPreference(preference);
+        }
+    }
+}
@@ -43,6 +43,12 @@ public class PrefsVpnFragment extends PreferenceFragmentCompat {
         PrefsActivity.setAppBarTitle(this, R.string.pref_vpn_title);
     }
 
+    @Override
+    public void onResume() {
+        super.onResume();
+        bindCacheStats();
+    }
+
     private void registerForStartActivity() {
         this.startActivityLauncher = registerForActivityResult(
                 new StartActivityForResult(),
@@ -70,6 +76,16 @@ public class PrefsVpnFragment extends PreferenceFragmentCompat {
         });
     }
 
+    private void bindCacheStats() {
+        Preference cacheStatsPreference = findPreference(getString(R.string.pref_vpn_cache_stats_key));
+        assert cacheStatsPreference != null : "preference not found";
+        cacheStatsPreference.setSummary(getString(
+                R.string.pref_vpn_cache_stats_summary,
+                VpnService.getDnsCacheHitRatio() * 100,
+                VpnService.getDnsCacheLatencySaved() / 1000D
+        ));
+    }
+
     private void restartVpn() {
         Context context = requireContext();
         if (VpnService.isStarted(context)) {
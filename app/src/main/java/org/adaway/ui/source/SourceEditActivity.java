@@ -18,6 +18,7 @@ import androidx.appcompat.app.AppCompatActivity;
 import org.adaway.R;
 import org.adaway.databinding.SourceEditActivityBinding;
 import org.adaway.db.AppDatabase;
+import org.adaway.db.DatabaseMaintenanceService;
 import org.adaway.db.dao.HostsSourceDao;
 import org.adaway.db.entity.HostsSource;
 import org.adaway.helper.ThemeHelper;
@@ -195,7 +196,10 @@ public class SourceEditActivity extends AppCompatActivity {
     public boolean onOptionsItemSelected(@NonNull MenuItem item) {
         // Check item identifier
         if (item.getItemId() == R.id.delete_action) {
-            DISK_IO_EXECUTOR.execute(() -> this.hostsSourceDao.delete(this.edited));
+            DISK_IO_EXECUTOR.execute(() -> {
+                this.hostsSourceDao.markDeleted(this.edited);
+                DatabaseMaintenanceService.reclaimDeletedSources(this);
+            });
             finish();
             return true;
         } else if (item.getItemId() == R.id.apply_action) {
@@ -205,7 +209,8 @@ public class SourceEditActivity extends AppCompatActivity {
             }
             DISK_IO_EXECUTOR.execute(() -> {
                 if (this.editing) {
-                    this.hostsSourceDao.delete(this.edited);
+                    this.hostsSourceDao.markDeleted(this.edited);
+                    DatabaseMaintenanceService.reclaimDeletedSources(this);
                 }
                 this.hostsSourceDao.insert(source);
                 finish();
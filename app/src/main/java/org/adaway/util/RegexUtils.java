@@ -30,6 +30,14 @@ import static org.adaway.util.Constants.TAG;
 
 public class RegexUtils {
     private static final Pattern WILDCARD_PATTERN = Pattern.compile("[*?]");
+    /**
+     * The domain rule prefix (Adblock syntax).
+     */
+    private static final String DOMAIN_RULE_PREFIX = "||";
+    /**
+     * The domain rule suffix (Adblock syntax).
+     */
+    private static final String DOMAIN_RULE_SUFFIX = "^";
 
     /**
      * Check whether a hostname is valid.
@@ -67,6 +75,42 @@ public class RegexUtils {
         return isValidHostname(clearedHostname) || isValidHostname(replacedHostname);
     }
 
+    /**
+     * Check whether an host is a domain rule.
+     * Domain rules use the Adblock syntax {@code ||example.com^} to match a domain and all its
+     * subdomains.
+     *
+     * @param host The host to check.
+     * @return {@code true} if the host is a domain rule, {@code false} otherwise.
+     */
+    public static boolean isDomainRule(String host) {
+        return host.length() > DOMAIN_RULE_PREFIX.length() + DOMAIN_RULE_SUFFIX.length()
+                && host.startsWith(DOMAIN_RULE_PREFIX)
+                && host.endsWith(DOMAIN_RULE_SUFFIX);
+    }
+
+    /**
+     * Check whether a domain rule is valid.
+     *
+     * @param host The domain rule to validate.
+     * @return {@code true} if the host is a domain rule of a valid domain, {@code false} otherwise.
+     * @see #isDomainRule(String)
+     */
+    public static boolean isValidDomainRule(String host) {
+        return isDomainRule(host) && isValidHostname(getRuleDomain(host));
+    }
+
+    /**
+     * Get the domain of a domain rule.
+     *
+     * @param rule The domain rule.
+     * @return The domain the rule applies to.
+     * @see #isDomainRule(String)
+     */
+    public static String getRuleDomain(String rule) {
+        return rule.substring(DOMAIN_RULE_PREFIX.length(), rule.length() - DOMAIN_RULE_SUFFIX.length());
+    }
+
     /**
      * Check if an IP address is valid.
      *
@@ -0,0 +1,356 @@
+package org.adaway.vpn;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class is a bounded cache of the upstream DNS answers, keyed by question name, type, class
+ * and the query DO and CD flags.<br>
+ * Both positive and negative answers are cached: a positive answer lives as long as its lowest
+ * record TTL, a negative answer as long as its SOA record TTL or minimum field, whichever is
+ * lower. On replay, the answer transaction ID and question name are replaced by the query ones,
+ * keeping the name case the client may have randomized (0x20 encoding), and the record TTLs are
+ * decreased by the answer age. Answers with an OPT record are only replayed to clients using EDNS.<br>
+ * When serving stale answers is enabled, an expired answer of a hot question is still served for a
+ * while with a short TTL, and the caller is asked to refresh it in the background.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+class DnsAnswerCache {
+    private static final int HEADER_LENGTH = 12;
+    private static final int TYPE_SOA = 6;
+    private static final int TYPE_OPT = 41;
+    private static final int RCODE_NOERROR = 0;
+    private static final int RCODE_NXDOMAIN = 3;
+    private static final int MAXIMUM_ENTRIES = 512;
+    /**
+     * The maximum TTL of a positive answer (in seconds).
+     */
+    private static final int MAXIMUM_TTL = 24 * 60 * 60;
+    /**
+     * The maximum TTL of a negative answer (in seconds).
+     */
+    private static final int MAXIMUM_NEGATIVE_TTL = 60 * 60;
+    /**
+     * The TTL of the stale answers (in seconds), as recommended by RFC 8767.
+     */
+    private static final int STALE_TTL = 30;
+    /**
+     * How long an expired answer can be served (in milliseconds).
+     */
+    private static final long MAXIMUM_STALE_MS = 24 * 60 * 60 * 1000L;
+    /**
+     * The number of hits for a question to be hot.
+     */
+    private static final int HOT_HIT_COUNT = 2;
+    /**
+     * The delay before retrying to refresh a stale answer (in milliseconds).
+     */
+    private static final long REFRESH_RETRY_MS = 10_000;
+    private final Map<String, Answer> answers;
+    private final byte[] answer;
+    private boolean serveStale;
+    private boolean refreshNeeded;
+    private volatile long hitCount;
+    private volatile long missCount;
+    private volatile long latencySaved;
+
+    /**
+     * Constructor.
+     *
+     * @param maximumAnswerLength The maximum length of the cached answers (in bytes).
+     */
+    DnsAnswerCache(int maximumAnswerLength) {
+        this.answers = new LinkedHashMap<String, Answer>(16, 0.75F, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Answer> eldest) {
+                return size() > MAXIMUM_ENTRIES;
+            }
+        };
+        this.answer = new byte[maximumAnswerLength];
+    }
+
+    /**
+     * Initialize the cache, forgetting all the answers.
+     *
+     * @param serveStale {@code true} to serve the expired answers of hot questions while they are refreshed, {@code false} otherwise.
+     */
+    void initialize(boolean serveStale) {
+        this.serveStale = serveStale;
+        this.answers.clear();
+    }
+
+    /**
+     * Get the ratio of the questions answered from the cache.
+     *
+     * @return The ratio of the questions answered from the cache, from {@code 0} to {@code 1}.
+     */
+    double getHitRatio() {
+        long hitCount = this.hitCount;
+        long total = hitCount + this.missCount;
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    /**
+     * Get the upstream latency saved by answering from the cache.
+     *
+     * @return The upstream latency saved (in milliseconds).
+     */
+    long getLatencySaved() {
+        return this.latencySaved;
+    }
+
+    /**
+     * Get the buffer of the last looked up answer.
+     *
+     * @return The buffer of the last looked up answer, starting at index {@code 0}.
+     */
+    byte[] getAnswer() {
+        return this.answer;
+    }
+
+    /**
+     * Check whether the last looked up answer is stale and must be refreshed.
+     *
+     * @return {@code true} if the caller must forward the question upstream to refresh the answer, {@code false} otherwise.
+     */
+    boolean isRefreshNeeded() {
+        return this.refreshNeeded;
+    }
+
+    /**
+     * Look up the answer of a question and write it to the answer buffer.
+     *
+     * @param key           The question key.
+     * @param query         The packet of the query to answer.
+     * @param offset        The DNS message offset in the query packet.
+     * @param maximumLength The maximum answer length the client accepts (in bytes).
+     * @param edns          {@code true} if the client query has an OPT record, {@code false} otherwise.
+     * @param now           The current time (in milliseconds).
+     * @return The answer length, {@code -1} if there is no answer to replay.
+     * @see DnsQuestion#getKey()
+     */
+    int lookup(String key, ByteBuffer query, int offset, int maximumLength, boolean edns, long now) {
+        this.refreshNeeded = false;
+        Answer answer = this.answers.get(key);
+        // Clients without EDNS must not receive an OPT record (RFC 6891)
+        boolean replayable = answer != null && answer.length <= maximumLength && (edns || !answer.opt);
+        int length = replayable ? write(key, answer, query, offset, now) : -1;
+        if (length < 0) {
+            this.missCount++;
+        } else {
+            this.hitCount++;
+            this.latencySaved += answer.latency;
+        }
+        return length;
+    }
+
+    /**
+     * Add an upstream answer to the cache, if it can be cached.
+     *
+     * @param key     The question key.
+     * @param payload The answer.
+     * @param length  The answer length.
+     * @param latency The time the upstream server took to answer (in milliseconds).
+     * @param now     The current time (in milliseconds).
+     */
+    void put(String key, byte[] payload, int length, long latency, long now) {
+        if (length > this.answer.length) {
+            return;
+        }
+        Answer answer = parse(payload, length);
+        if (answer == null) {
+            return;
+        }
+        answer.latency = latency;
+        answer.time = now;
+        answer.expiration = now + answer.ttl * 1000L;
+        // Keep refreshed questions hot
+        Answer previous = this.answers.put(key, answer);
+        if (previous != null) {
+            answer.hits = previous.hits;
+        }
+    }
+
+    private int write(String key, Answer answer, ByteBuffer query, int offset, long now) {
+        int ttl;
+        if (now < answer.expiration) {
+            ttl = -1;
+        } else if (this.serveStale && answer.hits >= HOT_HIT_COUNT && now < answer.expiration + MAXIMUM_STALE_MS) {
+            ttl = STALE_TTL;
+            if (now - answer.refreshTime >= REFRESH_RETRY_MS) {
+                answer.refreshTime = now;
+                this.refreshNeeded = true;
+            }
+        } else {
+            this.answers.remove(key);
+            return -1;
+        }
+        answer.hits++;
+        byte[] buffer = this.answer;
+        System.arraycopy(answer.payload, 0, buffer, 0, answer.length);
+        // Copy query transaction ID and question name, of the same length as the answer one
+        buffer[0] = query.get(offset);
+        buffer[1] = query.get(offset + 1);
+        for (int i = HEADER_LENGTH; i < answer.questionEnd; i++) {
+            buffer[i] = query.get(offset + i);
+        }
+        // Decrease record TTLs by the answer age, or use the stale TTL
+        int age = (int) ((now - answer.time) / 1000);
+        for (int i = 0; i < answer.ttlOffsets.length; i++) {
+            writeInt(buffer, answer.ttlOffsets[i], ttl < 0 ? Math.max(0, answer.ttls[i] - age) : ttl);
+        }
+        return answer.length;
+    }
+
+    private static Answer parse(byte[] payload, int length) {
+        if (length < HEADER_LENGTH) {
+            return null;
+        }
+        // Check complete standard query response
+        int rcode = payload[3] & 0x0F;
+        if ((payload[2] & 0xFA) != 0x80 || (rcode != RCODE_NOERROR && rcode != RCODE_NXDOMAIN)) {
+            return null;
+        }
+        if (readShort(payload, 4) != 1) {
+            return null;
+        }
+        int answerCount = readShort(payload, 6);
+        int authorityCount = readShort(payload, 8);
+        int recordCount = answerCount + authorityCount + readShort(payload, 10);
+        // Skip question, whose name must not be compressed as it is replaced on replay
+        int position = HEADER_LENGTH;
+        while (position < length && (payload[position] & 0xFF) != 0 && (payload[position] & 0xC0) == 0) {
+            position += 1 + (payload[position] & 0xFF);
+        }
+        if (position >= length || payload[position] != 0 || position + 5 > length) {
+            return null;
+        }
+        position++;
+        int questionEnd = position;
+        position += 4;
+        // Read record TTLs
+        int[] ttlOffsets = new int[recordCount];
+        int[] ttls = new int[recordCount];
+        int ttlCount = 0;
+        int minimumTtl = Integer.MAX_VALUE;
+        int negativeTtl = -1;
+        boolean opt = false;
+        for (int i = 0; i < recordCount; i++) {
+            position = skipName(payload, position, length);
+            if (position < 0 || position + 10 > length) {
+                return null;
+            }
+            int type = readShort(payload, position);
+            int ttl = readInt(payload, position + 4);
+            int dataLength = readShort(payload, position + 8);
+            int dataEnd = position + 10 + dataLength;
+            if (dataEnd > length) {
+                return null;
+            }
+            // The OPT pseudo record has no TTL
+            if (type == TYPE_OPT) {
+                opt = true;
+            } else {
+                // TTL with the most significant bit set are treated as zero (RFC 2181)
+                ttl = Math.max(0, ttl);
+                ttlOffsets[ttlCount] = position + 4;
+                ttls[ttlCount] = ttl;
+                ttlCount++;
+                minimumTtl = Math.min(minimumTtl, ttl);
+                // Negative caching TTL is the lower of the SOA TTL and minimum field (RFC 2308)
+                if (type == TYPE_SOA && i >= answerCount && i < answerCount + authorityCount && dataLength >= 4) {
+                    negativeTtl = Math.min(ttl, Math.max(0, readInt(payload, dataEnd - 4)));
+                }
+            }
+            position = dataEnd;
+        }
+        int ttl;
+        if (rcode == RCODE_NXDOMAIN || answerCount == 0) {
+            // Negative answers without SOA record must not be cached
+            if (negativeTtl < 0) {
+                return null;
+            }
+            ttl = Math.min(negativeTtl, MAXIMUM_NEGATIVE_TTL);
+        } else {
+            ttl = Math.min(minimumTtl, MAXIMUM_TTL);
+        }
+        if (ttl <= 0) {
+            return null;
+        }
+        Answer answer = new Answer();
+        answer.payload = new byte[length];
+        System.arraycopy(payload, 0, answer.payload, 0, length);
+        answer.length = length;
+        answer.questionEnd = questionEnd;
+        answer.opt = opt;
+        answer.ttl = ttl;
+        answer.ttlOffsets = ttlCount == recordCount ? ttlOffsets : copyOf(ttlOffsets, ttlCount);
+        answer.ttls = ttlCount == recordCount ? ttls : copyOf(ttls, ttlCount);
+        return answer;
+    }
+
+    private static int skipName(byte[] payload, int position, int length) {
+        while (position < length) {
+            int labelLength = payload[position] & 0xFF;
+            if (labelLength == 0) {
+                return position + 1;
+            } else if ((labelLength & 0xC0) == 0xC0) {
+                return position + 2;
+            } else if ((labelLength & 0xC0) != 0) {
+                return -1;
+            }
+            position += 1 + labelLength;
+        }
+        return -1;
+    }
+
+    private static int[] copyOf(int[] array, int length) {
+        int[] copy = new int[length];
+        System.arraycopy(array, 0, copy, 0, length);
+        return copy;
+    }
+
+    private static int readShort(byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 8 | data[offset + 1] & 0xFF;
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 24 | (data[offset + 1] & 0xFF) << 16 | (data[offset + 2] & 0xFF) << 8 | data[offset + 3] & 0xFF;
+    }
+
+    private static void writeInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >> 24);
+        data[offset + 1] = (byte) (value >> 16);
+        data[offset + 2] = (byte) (value >> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    /**
+     * This class is a cached answer.
+     */
+    private static class Answer {
+        private byte[] payload;
+        private int length;
+        /**
+         * The end of the question name in the payload.
+         */
+        private int questionEnd;
+        /**
+         * Whether the payload has an OPT record.
+         */
+        private boolean opt;
+        /**
+         * The offsets of the record TTLs in the payload, and their original values (in seconds).
+         */
+        private int[] ttlOffsets;
+        private int[] ttls;
+        private int ttl;
+        private long latency;
+        private long time;
+        private long expiration;
+        private long refreshTime;
+        private int hits;
+    }
+}
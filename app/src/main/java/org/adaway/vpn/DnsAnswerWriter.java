@@ -0,0 +1,156 @@
+package org.adaway.vpn;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class writes the answers of the blocked and redirected queries from templates.<br>
+ * An answer is the query header and question, with patched flags and counts, followed by a
+ * prebuilt record: the negative caching SOA record for blocked hosts or an address record for
+ * redirected hosts. Address records are encoded once per redirection and cached. The query
+ * additional records, like EDNS options, are not echoed.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+class DnsAnswerWriter {
+    /**
+     * The maximum answer length (in bytes), enough for the longest question and the records.
+     */
+    static final int MAXIMUM_ANSWER_LENGTH = 512;
+    private static final int HEADER_LENGTH = 12;
+    private static final int TYPE_A = 1;
+    private static final int TYPE_AAAA = 28;
+    private static final int CLASS_IN = 1;
+    private static final int MAXIMUM_CACHED_REDIRECTIONS = 256;
+    /**
+     * The compression pointer to the question name, right after the header.
+     */
+    private static final int QUESTION_NAME_POINTER = 0xC000 | HEADER_LENGTH;
+    private static final byte[] NO_RECORD = new byte[0];
+    private final byte[] soaRecord;
+    private final int redirectionTtl;
+    /**
+     * The encoded redirection records, from the type to the data, by redirection.
+     */
+    private final Map<String, byte[]> redirectionRecords;
+    private final byte[] answer;
+
+    /**
+     * Constructor.
+     *
+     * @param soaRecord      The encoded SOA record to answer blocked queries with.
+     * @param redirectionTtl The TTL of the redirection records (in seconds).
+     */
+    DnsAnswerWriter(byte[] soaRecord, int redirectionTtl) {
+        this.soaRecord = soaRecord;
+        this.redirectionTtl = redirectionTtl;
+        this.redirectionRecords = new LinkedHashMap<String, byte[]>(16, 0.75F, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                return size() > MAXIMUM_CACHED_REDIRECTIONS;
+            }
+        };
+        this.answer = new byte[MAXIMUM_ANSWER_LENGTH];
+    }
+
+    /**
+     * Get the buffer of the last written answer.
+     *
+     * @return The buffer of the last written answer, starting at index {@code 0}.
+     */
+    byte[] getAnswer() {
+        return this.answer;
+    }
+
+    /**
+     * Write the answer of a blocked query.
+     *
+     * @param query       The packet of the query.
+     * @param offset      The DNS message offset in the packet.
+     * @param questionEnd The packet offset after the query question.
+     * @return The answer length, {@code -1} if the question is too long.
+     */
+    int writeBlocked(ByteBuffer query, int offset, int questionEnd) {
+        byte[] soaRecord = this.soaRecord;
+        int length = writeHeaderAndQuestion(query, offset, questionEnd, soaRecord.length);
+        if (length < 0) {
+            return -1;
+        }
+        byte[] answer = this.answer;
+        answer[2] |= (byte) 0x80; // QR
+        answer[9] = 1; // NSCOUNT
+        System.arraycopy(soaRecord, 0, answer, length, soaRecord.length);
+        return length + soaRecord.length;
+    }
+
+    /**
+     * Write the answer of a redirected query.
+     *
+     * @param query       The packet of the query.
+     * @param offset      The DNS message offset in the packet.
+     * @param questionEnd The packet offset after the query question.
+     * @param redirection The redirection address.
+     * @return The answer length, {@code -1} if the question is too long.
+     */
+    int writeRedirected(ByteBuffer query, int offset, int questionEnd, String redirection) {
+        byte[] record = this.redirectionRecords.get(redirection);
+        if (record == null) {
+            record = encodeRedirection(redirection);
+            this.redirectionRecords.put(redirection, record);
+        }
+        int length = writeHeaderAndQuestion(query, offset, questionEnd, 2 + record.length);
+        if (length < 0) {
+            return -1;
+        }
+        byte[] answer = this.answer;
+        // Set QR and AA, clear RD
+        answer[2] = (byte) ((answer[2] | 0x84) & ~0x01);
+        if (record.length == 0) {
+            return length;
+        }
+        answer[7] = 1; // ANCOUNT
+        answer[length] = (byte) (QUESTION_NAME_POINTER >> 8);
+        answer[length + 1] = (byte) QUESTION_NAME_POINTER;
+        System.arraycopy(record, 0, answer, length + 2, record.length);
+        return length + 2 + record.length;
+    }
+
+    private int writeHeaderAndQuestion(ByteBuffer query, int offset, int questionEnd, int recordsLength) {
+        int length = questionEnd - offset;
+        if (length + recordsLength > MAXIMUM_ANSWER_LENGTH) {
+            return -1;
+        }
+        byte[] answer = this.answer;
+        for (int i = 0; i < length; i++) {
+            answer[i] = query.get(offset + i);
+        }
+        // Clear RCODE, then set one question and no record
+        answer[3] &= (byte) 0xF0;
+        for (int i = 4; i < HEADER_LENGTH; i++) {
+            answer[i] = 0;
+        }
+        answer[5] = 1; // QDCOUNT
+        return length;
+    }
+
+    private byte[] encodeRedirection(String redirection) {
+        InetAddress address;
+        try {
+            address = InetAddress.getByName(redirection);
+        } catch (UnknownHostException e) {
+            return NO_RECORD;
+        }
+        byte[] data = address.getAddress();
+        ByteBuffer record = ByteBuffer.allocate(10 + data.length);
+        record.putShort((short) (address instanceof Inet6Address ? TYPE_AAAA : TYPE_A));
+        record.putShort((short) CLASS_IN);
+        record.putInt(this.redirectionTtl);
+        record.putShort((short) data.length);
+        record.put(data);
+        return record.array();
+    }
+}
@@ -0,0 +1,183 @@
+package org.adaway.vpn;
+
+import android.system.ErrnoException;
+import android.system.OsConstants;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * This class forwards the allowed DNS queries to the upstream servers.<br>
+ * Common queries are answered from the answer cache when possible, or coalesced with the
+ * identical queries in flight. The other queries are sent through the upstream socket pool and
+ * their responses are cached then written to the device write ring.<br>
+ * It is not thread safe and must be used from the thread doing the upstream I/O.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+class DnsForwarder {
+    private static final String TAG = "DnsForwarder";
+    /**
+     * The maximum answer length for clients without EDNS (RFC 1035).
+     */
+    private static final int MAXIMUM_UDP_ANSWER_LENGTH = 512;
+    private final DnsServerMapper dnsServerMapper;
+    private final PacketRing deviceWrites;
+    private final UpstreamSocketPool upstreamSocketPool;
+    private final DnsQuestion question;
+    private final DnsAnswerCache answerCache;
+
+    /**
+     * Constructor.
+     *
+     * @param vpnService      The VPN service to protect the upstream sockets with.
+     * @param dnsServerMapper The mapping between fake and real DNS server addresses.
+     * @param deviceWrites    The ring of the packets to write to the device.
+     */
+    DnsForwarder(android.net.VpnService vpnService, DnsServerMapper dnsServerMapper, PacketRing deviceWrites) {
+        this.dnsServerMapper = dnsServerMapper;
+        this.deviceWrites = deviceWrites;
+        this.upstreamSocketPool = new UpstreamSocketPool(vpnService, dnsServerMapper, this::handleUpstreamResponse);
+        this.question = new DnsQuestion();
+        this.answerCache = new DnsAnswerCache(UpstreamSocketPool.MAXIMUM_RESPONSE_SIZE);
+    }
+
+    /**
+     * Initialize the forwarder, forgetting the cached answers.
+     *
+     * @param serveStale {@code true} to serve the expired answers of hot questions while they are refreshed, {@code false} otherwise.
+     */
+    void initialize(boolean serveStale) {
+        this.answerCache.initialize(serveStale);
+    }
+
+    /**
+     * Get the pool of sockets to the upstream servers.
+     *
+     * @return The pool of sockets to the upstream servers.
+     */
+    UpstreamSocketPool getUpstreamSocketPool() {
+        return this.upstreamSocketPool;
+    }
+
+    /**
+     * Get the ratio of the common queries answered from the cache.
+     *
+     * @return The ratio of the common queries answered from the cache, from {@code 0} to {@code 1}.
+     */
+    double getCacheHitRatio() {
+        return this.answerCache.getHitRatio();
+    }
+
+    /**
+     * Get the upstream latency saved by answering queries from the cache.
+     *
+     * @return The upstream latency saved (in milliseconds).
+     */
+    long getCacheLatencySaved() {
+        return this.answerCache.getLatencySaved();
+    }
+
+    /**
+     * Forward a DNS query packet, reading its question.
+     *
+     * @param packet The IP packet of the query, from index {@code 0} to its limit, backed by an array.
+     * @throws VpnWorker.VpnNetworkException If the network is unreachable.
+     */
+    void forward(ByteBuffer packet) throws VpnWorker.VpnNetworkException {
+        int headerLength = UdpPacketCodec.getHeaderLength(packet);
+        if (headerLength < 0) {
+            return;
+        }
+        InetAddress dnsAddress = this.dnsServerMapper.translate(UdpPacketCodec.getDestinationAddress(packet));
+        if (dnsAddress == null) {
+            return;
+        }
+        int payloadLength = UdpPacketCodec.getPayloadLength(packet, headerLength);
+        boolean read = this.question.read(packet, headerLength, payloadLength);
+        forward(packet, headerLength, dnsAddress, read ? this.question : null);
+    }
+
+    /**
+     * Forward a DNS query packet.
+     *
+     * @param packet       The IP packet of the query, from index {@code 0} to its limit, backed by an array.
+     * @param headerLength The length of the query IP and UDP headers.
+     * @param dnsAddress   The address of the upstream server the query is mapped to.
+     * @param question     The question of the query, {@code null} if it could not be read.
+     * @throws VpnWorker.VpnNetworkException If the network is unreachable.
+     */
+    void forward(ByteBuffer packet, int headerLength, InetAddress dnsAddress, @Nullable DnsQuestion question) throws VpnWorker.VpnNetworkException {
+        int packetPort = UdpPacketCodec.getDestinationPort(packet, headerLength);
+        int payloadLength = UdpPacketCodec.getPayloadLength(packet, headerLength);
+        try {
+            if (payloadLength == 0) {
+                DatagramPacket outPacket = new DatagramPacket(new byte[0], 0, 0 /* length */, dnsAddress, packetPort);
+                this.upstreamSocketPool.forward(outPacket, null, 0, null, null);
+                return;
+            }
+            int requestHeaderLength = headerLength;
+            String key = null;
+            String coalescingKey = null;
+            if (question != null) {
+                // Answer from the cache, clients without EDNS only accepting short answers
+                key = question.getKey();
+                boolean edns = question.isEdns();
+                int maximumLength = edns ? UpstreamSocketPool.MAXIMUM_RESPONSE_SIZE : MAXIMUM_UDP_ANSWER_LENGTH;
+                int answerLength = this.answerCache.lookup(key, packet, headerLength, maximumLength, edns, System.currentTimeMillis());
+                if (answerLength >= 0) {
+                    writeResponse(packet, headerLength, this.answerCache.getAnswer(), answerLength);
+                    if (!this.answerCache.isRefreshNeeded()) {
+                        return;
+                    }
+                    // Forward the query only to refresh the cache
+                    requestHeaderLength = 0;
+                }
+                // Coalesce with identical queries in flight with the same answer size limit
+                coalescingKey = edns ? key + "/edns" : key;
+            }
+            // Send the query to the fastest upstream server
+            InetAddress server = this.dnsServerMapper.select(dnsAddress, System.currentTimeMillis());
+            DatagramPacket outPacket = new DatagramPacket(packet.array(), packet.arrayOffset() + headerLength, payloadLength, server, packetPort);
+            this.upstreamSocketPool.forward(outPacket, packet, requestHeaderLength, key, coalescingKey);
+        } catch (IOException e) {
+            if (e.getCause() instanceof ErrnoException) {
+                ErrnoException errnoExc = (ErrnoException) e.getCause();
+                if ((errnoExc.errno == OsConstants.ENETUNREACH) || (errnoExc.errno == OsConstants.EPERM)) {
+                    throw new VpnWorker.VpnNetworkException("Cannot send message:", e);
+                }
+            }
+            Log.w(TAG, "forward: Could not send packet to upstream", e);
+        }
+    }
+
+    private void handleUpstreamResponse(ByteBuffer requestPacket, int requestHeaderLength, @Nullable String question, byte[] responsePayload, int responseLength, long latency) {
+        // Cache under the query question, the socket pool having checked the response answers it
+        if (question != null) {
+            this.answerCache.put(question, responsePayload, responseLength, latency, System.currentTimeMillis());
+        }
+        // Skip responses only refreshing the cache
+        if (requestHeaderLength > 0) {
+            writeResponse(requestPacket, requestHeaderLength, responsePayload, responseLength);
+        }
+    }
+
+    private void writeResponse(ByteBuffer requestPacket, int requestHeaderLength, byte[] responsePayload, int responseLength) {
+        ByteBuffer responsePacket = this.deviceWrites.claim();
+        if (responsePacket == null) {
+            Log.w(TAG, "writeResponse: Dropping response as too many packets are waiting to be written");
+            return;
+        }
+        int length = UdpPacketCodec.writeResponse(requestPacket, requestHeaderLength, responsePayload, 0, responseLength, responsePacket);
+        if (length < 0) {
+            Log.w(TAG, "writeResponse: Dropping response too large to be written");
+            return;
+        }
+        this.deviceWrites.commit(length);
+    }
+}
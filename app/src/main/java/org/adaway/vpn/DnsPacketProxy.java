@@ -20,15 +20,8 @@ import android.util.Log;
 import org.adaway.AdAwayApplication;
 import org.adaway.db.entity.HostEntry;
 import org.adaway.db.entity.ListType;
+import org.adaway.model.adblocking.AdBlockModel;
 import org.adaway.model.vpn.VpnModel;
-import org.pcap4j.packet.IpPacket;
-import org.pcap4j.packet.IpSelector;
-import org.pcap4j.packet.IpV4Packet;
-import org.pcap4j.packet.IpV6Packet;
-import org.pcap4j.packet.Packet;
-import org.pcap4j.packet.UdpPacket;
-import org.pcap4j.packet.UnknownPacket;
-import org.pcap4j.packet.namednumber.IpNumber;
 import org.xbill.DNS.AAAARecord;
 import org.xbill.DNS.ARecord;
 import org.xbill.DNS.DClass;
@@ -42,11 +35,10 @@ import org.xbill.DNS.Section;
 import org.xbill.DNS.TextParseException;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.Locale;
 
 /**
@@ -74,11 +66,18 @@ public class DnsPacketProxy {
 
     private final EventLoop eventLoop;
     private final DnsServerMapper dnsServerMapper;
+    private final DnsQuestion question;
+    private final DnsAnswerWriter answerWriter;
     private VpnModel vpnModel;
 
     DnsPacketProxy(EventLoop eventLoop, DnsServerMapper dnsServerMapper) {
         this.eventLoop = eventLoop;
         this.dnsServerMapper = dnsServerMapper;
+        this.question = new DnsQuestion();
+        this.answerWriter = new DnsAnswerWriter(
+                NEGATIVE_CACHE_SOA_RECORD.toWire(Section.AUTHORITY),
+                NEGATIVE_CACHE_TTL_SECONDS
+        );
     }
 
     /**
@@ -87,100 +86,101 @@ public class DnsPacketProxy {
      * @param context The context we are operating in (for the database).
      */
     void initialize(Context context) {
-        this.vpnModel = (VpnModel) ((AdAwayApplication) context.getApplicationContext()).getAdBlockModel();
+        // Forward all queries if the ad block method was switched away from VPN meanwhile
+        AdBlockModel model = ((AdAwayApplication) context.getApplicationContext()).getAdBlockModel();
+        this.vpnModel = model instanceof VpnModel ? (VpnModel) model : null;
+        // Build the blocking rules before the lookup threads share them
+        if (this.vpnModel != null) {
+            this.vpnModel.prepareLookups();
+        }
     }
 
     /**
-     * Handles a responsePayload from an upstream DNS server
+     * Handles a responsePayload to a DNS request
      *
-     * @param requestPacket   The original request packet
-     * @param responsePayload The payload of the response
+     * @param requestPacket       The original request packet, or at least its IP and UDP headers
+     * @param requestHeaderLength The length of the request IP and UDP headers
+     * @param responsePayload     The payload of the response
+     * @param responseLength      The length of the response payload
      */
-    void handleDnsResponse(IpPacket requestPacket, byte[] responsePayload) {
-        UdpPacket udpOutPacket = (UdpPacket) requestPacket.getPayload();
-        UdpPacket.Builder payLoadBuilder = new UdpPacket.Builder(udpOutPacket)
-                .srcPort(udpOutPacket.getHeader().getDstPort())
-                .dstPort(udpOutPacket.getHeader().getSrcPort())
-                .srcAddr(requestPacket.getHeader().getDstAddr())
-                .dstAddr(requestPacket.getHeader().getSrcAddr())
-                .correctChecksumAtBuild(true)
-                .correctLengthAtBuild(true)
-                .payloadBuilder(
-                        new UnknownPacket.Builder().rawData(responsePayload)
-                );
-
-        IpPacket ipOutPacket;
-        if (requestPacket instanceof IpV4Packet) {
-            ipOutPacket = new IpV4Packet.Builder((IpV4Packet) requestPacket)
-                    .srcAddr((Inet4Address) requestPacket.getHeader().getDstAddr())
-                    .dstAddr((Inet4Address) requestPacket.getHeader().getSrcAddr())
-                    .correctChecksumAtBuild(true)
-                    .correctLengthAtBuild(true)
-                    .payloadBuilder(payLoadBuilder)
-                    .build();
-
-        } else {
-            ipOutPacket = new IpV6Packet.Builder((IpV6Packet) requestPacket)
-                    .srcAddr((Inet6Address) requestPacket.getHeader().getDstAddr())
-                    .dstAddr((Inet6Address) requestPacket.getHeader().getSrcAddr())
-                    .correctLengthAtBuild(true)
-                    .payloadBuilder(payLoadBuilder)
-                    .build();
+    private void handleDnsResponse(ByteBuffer requestPacket, int requestHeaderLength, byte[] responsePayload, int responseLength) {
+        ByteBuffer responsePacket = this.eventLoop.getDeviceWriteBuffer();
+        if (responsePacket == null) {
+            Log.w(TAG, "handleDnsResponse: Dropping response as too many packets are waiting to be written");
+            return;
         }
-
-        this.eventLoop.queueDeviceWrite(ipOutPacket);
+        int length = UdpPacketCodec.writeResponse(requestPacket, requestHeaderLength, responsePayload, 0, responseLength, responsePacket);
+        if (length < 0) {
+            Log.w(TAG, "handleDnsResponse: Dropping response too large to be written");
+            return;
+        }
+        this.eventLoop.queueDeviceWrite(length);
     }
 
     /**
      * Handles a DNS request, by either blocking it or forwarding it to the remote location.
      *
-     * @param packetData The packet data to read
+     * @param packet The packet to read, from index {@code 0} to its limit, backed by an array
      * @throws VpnWorker.VpnNetworkException If some network error occurred
      */
-    void handleDnsRequest(byte[] packetData) throws VpnWorker.VpnNetworkException {
-        IpPacket ipPacket;
-        try {
-            ipPacket = (IpPacket) IpSelector.newPacket(packetData, 0, packetData.length);
-        } catch (Exception e) {
-            Log.i(TAG, "handleDnsRequest: Discarding invalid IP packet", e);
-            return;
-        }
-
+    void handleDnsRequest(ByteBuffer packet) throws VpnWorker.VpnNetworkException {
         // Check UDP protocol
-        if (ipPacket.getHeader().getProtocol() != IpNumber.UDP) {
+        int headerLength = UdpPacketCodec.getHeaderLength(packet);
+        if (headerLength < 0) {
+            Log.d(TAG, "handleDnsRequest: Discarding invalid or non UDP packet");
             return;
         }
 
-        UdpPacket updPacket;
-        Packet udpPayload;
-
-        try {
-            updPacket = (UdpPacket) ipPacket.getPayload();
-            udpPayload = updPacket.getPayload();
-        } catch (Exception e) {
-            Log.i(TAG, "handleDnsRequest: Discarding unknown packet type " + ipPacket.getHeader(), e);
-            return;
-        }
-
-        InetAddress packetAddress = ipPacket.getHeader().getDstAddr();
-        int packetPort = updPacket.getHeader().getDstPort().valueAsInt();
+        InetAddress packetAddress = UdpPacketCodec.getDestinationAddress(packet);
         InetAddress dnsAddress = this.dnsServerMapper.translate(packetAddress);
         if (dnsAddress == null) {
             return;
         }
 
-        if (udpPayload == null) {
-            Log.i(TAG, "handleDnsRequest: Sending UDP packet without payload: " + updPacket);
+        int payloadLength = UdpPacketCodec.getPayloadLength(packet, headerLength);
+        if (payloadLength == 0) {
+            Log.i(TAG, "handleDnsRequest: Sending UDP packet without payload");
 
             // Let's be nice to Firefox. Firefox uses an empty UDP packet to
             // the gateway to reduce the RTT. For further details, please see
             // https://bugzilla.mozilla.org/show_bug.cgi?id=888268
-            DatagramPacket outPacket = new DatagramPacket(new byte[0], 0, 0 /* length */, dnsAddress, packetPort);
-            eventLoop.forwardPacket(outPacket, null);
+            eventLoop.forwardPacket(packet, headerLength, dnsAddress, null);
             return;
         }
 
-        byte[] dnsRawData = udpPayload.getRawData();
+        // Read the question in place to handle common queries without parsing them
+        HostEntry entry = null;
+        if (this.question.read(packet, headerLength, payloadLength)) {
+            CharSequence dnsQueryName = this.question.getName();
+            entry = this.vpnModel == null ? null : this.vpnModel.getEntry(dnsQueryName);
+            int answerLength;
+            if (entry == null || entry.getType() == ListType.ALLOWED) {
+                if (Log.isLoggable(TAG, Log.DEBUG)) {
+                    Log.d(TAG, "handleDnsRequest: DNS Name " + dnsQueryName + " Allowed, sending to " + dnsAddress);
+                }
+                eventLoop.forwardPacket(packet, headerLength, dnsAddress, this.question);
+                return;
+            } else if (entry.getType() == ListType.BLOCKED) {
+                if (Log.isLoggable(TAG, Log.INFO)) {
+                    Log.i(TAG, "handleDnsRequest: DNS Name " + dnsQueryName + " blocked!");
+                }
+                answerLength = this.answerWriter.writeBlocked(packet, headerLength, this.question.getEnd());
+            } else {
+                if (Log.isLoggable(TAG, Log.INFO)) {
+                    Log.i(TAG, "handleDnsRequest: DNS Name " + dnsQueryName + " redirected to " + entry.getRedirection() + ".");
+                }
+                answerLength = this.answerWriter.writeRedirected(packet, headerLength, this.question.getEnd(), entry.getRedirection());
+            }
+            if (answerLength >= 0) {
+                handleDnsResponse(packet, headerLength, this.answerWriter.getAnswer(), answerLength);
+                return;
+            }
+        }
+
+        byte[] dnsRawData = new byte[payloadLength];
+        packet.position(headerLength);
+        packet.get(dnsRawData);
+        packet.rewind();
         Message dnsMsg;
         try {
             dnsMsg = new Message(dnsRawData);
@@ -194,19 +194,20 @@ public class DnsPacketProxy {
         }
         Name name = dnsMsg.getQuestion().getName();
         String dnsQueryName = name.toString(true);
-        HostEntry entry = getHostEntry(dnsQueryName);
+        if (entry == null) {
+            entry = getHostEntry(dnsQueryName);
+        }
         switch (entry.getType()) {
             case BLOCKED:
                 Log.i(TAG, "handleDnsRequest: DNS Name " + dnsQueryName + " blocked!");
                 dnsMsg.getHeader().setFlag(Flags.QR);
                 dnsMsg.getHeader().setRcode(Rcode.NOERROR);
                 dnsMsg.addRecord(NEGATIVE_CACHE_SOA_RECORD, Section.AUTHORITY);
-                handleDnsResponse(ipPacket, dnsMsg.toWire());
+                respond(packet, headerLength, dnsMsg.toWire());
                 break;
             case ALLOWED:
                 Log.i(TAG, "handleDnsRequest: DNS Name " + dnsQueryName + " Allowed, sending to " + dnsAddress);
-                DatagramPacket outPacket = new DatagramPacket(dnsRawData, 0, dnsRawData.length, dnsAddress, packetPort);
-                eventLoop.forwardPacket(outPacket, ipPacket);
+                eventLoop.forwardPacket(packet, headerLength, dnsAddress, null);
                 break;
             case REDIRECTED:
                 Log.i(TAG, "handleDnsRequest: DNS Name " + dnsQueryName + " redirected to " + entry.getRedirection() + ".");
@@ -226,11 +227,15 @@ public class DnsPacketProxy {
                 } catch (UnknownHostException e) {
                     org.adaway.util.Log.w(TAG, "Failed to get inet address for host " + dnsQueryName + ".", e);
                 }
-                handleDnsResponse(ipPacket, dnsMsg.toWire());
+                respond(packet, headerLength, dnsMsg.toWire());
                 break;
         }
     }
 
+    private void respond(ByteBuffer requestPacket, int requestHeaderLength, byte[] responsePayload) {
+        handleDnsResponse(requestPacket, requestHeaderLength, responsePayload, responsePayload.length);
+    }
+
     private HostEntry getHostEntry(String dnsQueryName) {
         String hostname = dnsQueryName.toLowerCase(Locale.ENGLISH);
         HostEntry entry = null;
@@ -250,20 +255,30 @@ public class DnsPacketProxy {
      */
     interface EventLoop {
         /**
-         * Called to send a packet to a remote location
+         * Called to forward an allowed DNS request to its upstream server, the event loop then
+         * writes the response with {@link #getDeviceWriteBuffer()} and {@link #queueDeviceWrite(int)}
+         *
+         * @param packet       The request packet, from index {@code 0} to its limit, backed by an array
+         * @param headerLength The length of the request IP and UDP headers
+         * @param dnsAddress   The address of the upstream DNS server
+         * @param question     The request question, {@code null} if it could not be read. It is
+         *                     only valid until the call returns
+         */
+        void forwardPacket(ByteBuffer packet, int headerLength, InetAddress dnsAddress, DnsQuestion question) throws VpnWorker.VpnNetworkException;
+
+        /**
+         * Get the buffer to write the next IP packet for the local TUN device
          *
-         * @param packet        The packet to send
-         * @param requestPacket If specified, the event loop must wait for a response, and then
-         *                      call {@link #handleDnsResponse(IpPacket, byte[])} for the data
-         *                      of the response, with this packet as the first argument.
+         * @return The cleared buffer to write the packet to, {@code null} if too many packets are
+         * waiting to be written
          */
-        void forwardPacket(DatagramPacket packet, IpPacket requestPacket) throws VpnWorker.VpnNetworkException;
+        ByteBuffer getDeviceWriteBuffer();
 
         /**
-         * Write an IP packet to the local TUN device
+         * Queue the IP packet written to the device write buffer for the local TUN device
          *
-         * @param packet The packet to write (a response to a DNS request)
+         * @param length The packet length (a response to a DNS request)
          */
-        void queueDeviceWrite(IpPacket packet);
+        void queueDeviceWrite(int length);
     }
 }
@@ -0,0 +1,235 @@
+package org.adaway.vpn;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class reads the question of a DNS query in place.<br>
+ * It only handles the common case: a standard query with a single question whose name is made of
+ * letters, digits, hyphens and underscores, and an optional EDNS OPT record. The name is lower cased
+ * to a reusable buffer so reading a question does not allocate. Other messages are left to dnsjava.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+class DnsQuestion {
+    private static final int HEADER_LENGTH = 12;
+    private static final int MAXIMUM_LABEL_LENGTH = 63;
+    private static final int MAXIMUM_NAME_LENGTH = 253;
+    private static final int TYPE_OPT = 41;
+    /**
+     * The length of an OPT record owned by the root name, up to its data.
+     */
+    private static final int OPT_RECORD_LENGTH = 11;
+    /**
+     * The query flag asking for DNSSEC records (DO bit of the OPT record, RFC 3225).
+     */
+    private static final int FLAG_DNSSEC_OK = 1;
+    /**
+     * The query flag disabling DNSSEC validation (CD bit of the header, RFC 4035).
+     */
+    private static final int FLAG_CHECKING_DISABLED = 2;
+    private final StringBuilder name;
+    private int type;
+    private int dnsClass;
+    private int end;
+    private boolean edns;
+    private int flags;
+
+    DnsQuestion() {
+        this.name = new StringBuilder(MAXIMUM_NAME_LENGTH);
+    }
+
+    /**
+     * Read the question of a DNS query.
+     *
+     * @param packet The packet to read.
+     * @param offset The DNS message offset in the packet.
+     * @param length The DNS message length.
+     * @return {@code true} if the question was read, {@code false} if the message is not a common query.
+     */
+    boolean read(ByteBuffer packet, int offset, int length) {
+        if (length < HEADER_LENGTH) {
+            return false;
+        }
+        // Check standard query with one question and at most an OPT record
+        int additionalCount = packet.getShort(offset + 10);
+        if ((packet.get(offset + 2) & 0xF8) != 0
+                || packet.getShort(offset + 4) != 1
+                || packet.getShort(offset + 6) != 0
+                || packet.getShort(offset + 8) != 0
+                || (additionalCount & 0xFFFF) > 1) {
+            return false;
+        }
+        if (!readQuestion(packet, offset, offset + length)) {
+            return false;
+        }
+        this.flags = (packet.get(offset + 3) & 0x10) != 0 ? FLAG_CHECKING_DISABLED : 0;
+        this.edns = additionalCount != 0;
+        if (this.edns) {
+            // Read the OPT record right after the question, owned by the root name
+            int position = this.end;
+            if (position + OPT_RECORD_LENGTH > offset + length
+                    || packet.get(position) != 0
+                    || (packet.getShort(position + 1) & 0xFFFF) != TYPE_OPT) {
+                return false;
+            }
+            // The DO bit is the most significant bit of the flags, after the extended code and version
+            if ((packet.get(position + 7) & 0x80) != 0) {
+                this.flags |= FLAG_DNSSEC_OK;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read the question of a DNS response.
+     *
+     * @param packet The packet to read.
+     * @param offset The DNS message offset in the packet.
+     * @param length The DNS message length.
+     * @return {@code true} if the question was read, {@code false} if the message is not a common response.
+     */
+    boolean readResponse(ByteBuffer packet, int offset, int length) {
+        if (length < HEADER_LENGTH) {
+            return false;
+        }
+        // Check standard query response with one question
+        if ((packet.get(offset + 2) & 0xF8) != 0x80 || packet.getShort(offset + 4) != 1) {
+            return false;
+        }
+        // The query flags are not read from responses
+        this.edns = false;
+        this.flags = 0;
+        return readQuestion(packet, offset, offset + length);
+    }
+
+    /**
+     * Read the question of a DNS response and check it is the question of the query it answers
+     * (RFC 5452).
+     *
+     * @param packet The packet to read.
+     * @param offset The DNS message offset in the packet.
+     * @param length The DNS message length.
+     * @param key    The question key of the query.
+     * @return {@code true} if the response question is the query one, {@code false} if the message is not a common response or answers another question.
+     */
+    boolean readResponse(ByteBuffer packet, int offset, int length, String key) {
+        // Compare the name, type and class only as the key ends with the query flags
+        return readResponse(packet, offset, length) && key.startsWith(getQuestionKey());
+    }
+
+    /**
+     * Check whether a DNS message is an error response without question, as servers may send to
+     * queries they could not parse or refuse (FORMERR, REFUSED or SERVFAIL).
+     *
+     * @param packet The packet to read.
+     * @param offset The DNS message offset in the packet.
+     * @param length The DNS message length.
+     * @return {@code true} if the message is a response with an error code and no question, {@code false} otherwise.
+     */
+    static boolean isErrorWithoutQuestion(ByteBuffer packet, int offset, int length) {
+        return length >= HEADER_LENGTH
+                && (packet.get(offset + 2) & 0x80) != 0
+                && (packet.get(offset + 3) & 0x0F) != 0
+                && packet.getShort(offset + 4) == 0;
+    }
+
+    private boolean readQuestion(ByteBuffer packet, int offset, int limit) {
+        // Read name labels, compression is not expected in the first question
+        StringBuilder name = this.name;
+        name.setLength(0);
+        int position = offset + HEADER_LENGTH;
+        while (true) {
+            if (position >= limit) {
+                return false;
+            }
+            int labelLength = packet.get(position++) & 0xFF;
+            if (labelLength == 0) {
+                break;
+            }
+            if (name.length() > 0) {
+                name.append('.');
+            }
+            if (labelLength > MAXIMUM_LABEL_LENGTH
+                    || position + labelLength > limit
+                    || name.length() + labelLength > MAXIMUM_NAME_LENGTH) {
+                return false;
+            }
+            for (int i = 0; i < labelLength; i++) {
+                char c = (char) (packet.get(position++) & 0xFF);
+                if (c >= 'A' && c <= 'Z') {
+                    c += 'a' - 'A';
+                } else if ((c < 'a' || c > 'z') && (c < '0' || c > '9') && c != '-' && c != '_') {
+                    return false;
+                }
+                name.append(c);
+            }
+        }
+        if (name.length() == 0 || position + 4 > limit) {
+            return false;
+        }
+        this.type = packet.getShort(position) & 0xFFFF;
+        this.dnsClass = packet.getShort(position + 2) & 0xFFFF;
+        this.end = position + 4;
+        return true;
+    }
+
+    /**
+     * Get the lower case name of the last read question.<br>
+     * The name is only valid until the next read.
+     *
+     * @return The lower case name, without final dot.
+     */
+    CharSequence getName() {
+        return this.name;
+    }
+
+    /**
+     * Get the type of the last read question.
+     *
+     * @return The question type.
+     */
+    int getType() {
+        return this.type;
+    }
+
+    /**
+     * Get the class of the last read question.
+     *
+     * @return The question class.
+     */
+    int getDnsClass() {
+        return this.dnsClass;
+    }
+
+    /**
+     * Check whether the last read query has an OPT record (EDNS, RFC 6891).
+     *
+     * @return {@code true} if the query has an OPT record, {@code false} otherwise or for a response.
+     */
+    boolean isEdns() {
+        return this.edns;
+    }
+
+    /**
+     * Get the key of the last read question, made of its name, type, class and the query DO and CD
+     * flags as they change the answer records.
+     *
+     * @return The question key.
+     */
+    String getKey() {
+        return getQuestionKey() + this.flags;
+    }
+
+    private String getQuestionKey() {
+        return this.name.toString() + '/' + this.type + '/' + this.dnsClass + '/';
+    }
+
+    /**
+     * Get the end of the last read question.
+     *
+     * @return The packet offset after the question.
+     */
+    int getEnd() {
+        return this.end;
+    }
+}
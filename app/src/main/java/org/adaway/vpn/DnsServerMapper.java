@@ -15,7 +15,9 @@ import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import static android.content.Context.CONNECTIVITY_SERVICE;
 
@@ -24,10 +26,15 @@ class DnsServerMapper {
 
     private final Context context;
     private final List<InetAddress> upstreamDnsServers;
+    /*
+     * The response time and loss of the upstream DNS servers, only used from the upstream I/O thread.
+     */
+    private final Map<InetAddress, UpstreamServerStats> serverStats;
 
     DnsServerMapper(Context context) {
         this.context = context;
         this.upstreamDnsServers = new ArrayList<>();
+        this.serverStats = new LinkedHashMap<>();
     }
 
     InetAddress configure(VpnService.Builder builder) throws VpnWorker.VpnNetworkException {
@@ -73,6 +80,12 @@ class DnsServerMapper {
             }
         }
 
+        // Track the servers from scratch as the network changed
+        this.serverStats.clear();
+        for (InetAddress upstreamDnsServer : this.upstreamDnsServers) {
+            this.serverStats.put(upstreamDnsServer, new UpstreamServerStats(upstreamDnsServer));
+        }
+
         // Return last DNS server added
         return this.upstreamDnsServers.get(this.upstreamDnsServers.size() - 1);
     }
@@ -91,6 +104,116 @@ class DnsServerMapper {
         return dnsAddress;
     }
 
+    /**
+     * Select the upstream server to send a query to: the fastest available one.<br>
+     * The translated server is kept unless another server is faster. Unhealthy servers are
+     * only selected once in a while to probe them.
+     *
+     * @param dnsAddress The translated upstream server of the query.
+     * @param now        The current time (in milliseconds).
+     * @return The upstream server to send the query to.
+     */
+    InetAddress select(InetAddress dnsAddress, long now) {
+        UpstreamServerStats best = this.serverStats.get(dnsAddress);
+        if (best != null && !best.isAvailable(now)) {
+            best = null;
+        }
+        for (UpstreamServerStats stats : this.serverStats.values()) {
+            if (stats.isAvailable(now) && (best == null || stats.getSmoothedRtt() < best.getSmoothedRtt())) {
+                best = stats;
+            }
+        }
+        if (best == null) {
+            return dnsAddress;
+        }
+        best.notifySent(now);
+        return best.getAddress();
+    }
+
+    /**
+     * Select the upstream server to send a hedged query to: the fastest available one apart from
+     * the server the query was sent to.
+     *
+     * @param dnsAddress The upstream server the query was sent to.
+     * @param now        The current time (in milliseconds).
+     * @return The upstream server to send the hedged query to, {@code null} if there is none.
+     */
+    InetAddress selectHedge(InetAddress dnsAddress, long now) {
+        UpstreamServerStats best = null;
+        for (UpstreamServerStats stats : this.serverStats.values()) {
+            if (!stats.getAddress().equals(dnsAddress) && stats.isAvailable(now) &&
+                    (best == null || stats.getSmoothedRtt() < best.getSmoothedRtt())) {
+                best = stats;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        best.notifySent(now);
+        return best.getAddress();
+    }
+
+    /**
+     * Get the delay before hedging a query to another upstream server.
+     *
+     * @param dnsAddress The upstream server the query was sent to.
+     * @return The delay before hedging the query (in milliseconds), {@code -1} to not hedge it.
+     */
+    int getHedgeDelay(InetAddress dnsAddress) {
+        if (this.serverStats.size() < 2) {
+            return -1;
+        }
+        UpstreamServerStats stats = this.serverStats.get(dnsAddress);
+        return stats == null ? -1 : stats.getHedgeDelay();
+    }
+
+    /**
+     * Record a response of an upstream server.
+     *
+     * @param dnsAddress The upstream server.
+     * @param rtt        The time the server took to respond (in milliseconds).
+     */
+    void recordResponse(InetAddress dnsAddress, long rtt) {
+        UpstreamServerStats stats = this.serverStats.get(dnsAddress);
+        if (stats != null) {
+            stats.recordResponse(rtt);
+        }
+    }
+
+    /**
+     * Record a query of an upstream server answered first by its hedge to another server.
+     *
+     * @param dnsAddress The upstream server of the hedged query.
+     */
+    void recordHedgeLoss(InetAddress dnsAddress) {
+        UpstreamServerStats stats = this.serverStats.get(dnsAddress);
+        if (stats != null) {
+            stats.recordHedgeLoss();
+        }
+    }
+
+    /**
+     * Record a query lost by an upstream server.
+     *
+     * @param dnsAddress The upstream server.
+     * @param now        The current time (in milliseconds).
+     */
+    void recordLoss(InetAddress dnsAddress, long now) {
+        UpstreamServerStats stats = this.serverStats.get(dnsAddress);
+        if (stats != null) {
+            stats.recordLoss(now);
+        }
+    }
+
+    /**
+     * Get the response time and loss of the upstream servers.
+     *
+     * @return The response time and loss of the upstream servers.
+     */
+    Collection<UpstreamServerStats> getServerStats() {
+        return this.serverStats.values();
+    }
+
     private List<InetAddress> getNetworkDnsServers() {
         ConnectivityManager cm = (ConnectivityManager) this.context.getSystemService(CONNECTIVITY_SERVICE);
         if (cm == null) {
@@ -0,0 +1,127 @@
+package org.adaway.vpn;
+
+/**
+ * This class is a bounded priority queue of the queries to hedge, ordered by hedge time.<br>
+ * Hedge delays differ between servers so queries are not scheduled in hedge time order: the
+ * queue is a binary min-heap of query keys by hedge time, stored in arrays allocated once.<br>
+ * The queue is not thread safe.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+class HedgeQueue {
+    private final int[] keys;
+    private final long[] times;
+    private int size;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity The maximum number of queries to hedge.
+     */
+    HedgeQueue(int capacity) {
+        this.keys = new int[capacity];
+        this.times = new long[capacity];
+        this.size = 0;
+    }
+
+    /**
+     * Check whether the queue is empty.
+     *
+     * @return {@code true} if there is no query to hedge, {@code false} otherwise.
+     */
+    boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * Check whether the queue is full.
+     *
+     * @return {@code true} if no more query can be added, {@code false} otherwise.
+     */
+    boolean isFull() {
+        return this.size == this.keys.length;
+    }
+
+    /**
+     * Add a query to hedge.
+     *
+     * @param key  The query key.
+     * @param time The query hedge time (in milliseconds).
+     * @return {@code true} if the query was added, {@code false} if the queue is full.
+     */
+    boolean add(int key, long time) {
+        if (isFull()) {
+            return false;
+        }
+        // Sift the new query up from the last leaf
+        int index = this.size++;
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (this.times[parent] <= time) {
+                break;
+            }
+            this.keys[index] = this.keys[parent];
+            this.times[index] = this.times[parent];
+            index = parent;
+        }
+        this.keys[index] = key;
+        this.times[index] = time;
+        return true;
+    }
+
+    /**
+     * Get the earliest hedge time.
+     *
+     * @return The earliest hedge time (in milliseconds), {@code -1} if the queue is empty.
+     */
+    long peekTime() {
+        return this.size == 0 ? -1 : this.times[0];
+    }
+
+    /**
+     * Get the key of the query with the earliest hedge time.
+     *
+     * @return The query key, {@code -1} if the queue is empty.
+     */
+    int peekKey() {
+        return this.size == 0 ? -1 : this.keys[0];
+    }
+
+    /**
+     * Remove the query with the earliest hedge time.
+     */
+    void remove() {
+        if (this.size == 0) {
+            return;
+        }
+        // Sift the last leaf down from the root
+        int size = --this.size;
+        int key = this.keys[size];
+        long time = this.times[size];
+        int index = 0;
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && this.times[child + 1] < this.times[child]) {
+                child++;
+            }
+            if (time <= this.times[child]) {
+                break;
+            }
+            this.keys[index] = this.keys[child];
+            this.times[index] = this.times[child];
+            index = child;
+        }
+        this.keys[index] = key;
+        this.times[index] = time;
+    }
+
+    /**
+     * Remove all the queries.
+     */
+    void clear() {
+        this.size = 0;
+    }
+}
@@ -0,0 +1,500 @@
+package org.adaway.vpn;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class tracks the DNS queries waiting for an upstream response.<br>
+ * Queries are stored in an open addressing hash table keyed by socket and transaction ID, and
+ * expired by a hashed timer wheel so adding, finding, removing and expiring a query do not depend
+ * on the number of queries in flight. Query entries are allocated once and recycled.<br>
+ * Identical queries can be coalesced: later requesters are attached to the query in flight for
+ * the same question so a single response answers them all. Each requester keeps its own question
+ * name as clients may randomize its case (0x20 encoding) and expect it back in the response.<br>
+ * A query can be hedged: its duplicate sent to another server is a query linked to it, and the
+ * first response answers both.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+class InFlightQueries {
+    /**
+     * The duration of a timer wheel tick (in milliseconds).
+     */
+    private static final long TICK_MS = 500;
+    /**
+     * The number of timer wheel slots, a power of two covering the timeout.
+     */
+    private static final int WHEEL_SIZE = 32;
+    /**
+     * The DNS header length, and the maximum length of a question name in wire format.
+     */
+    private static final int DNS_HEADER_LENGTH = 12;
+    private static final int MAXIMUM_NAME_LENGTH = 255;
+    private final long timeoutTicks;
+    /**
+     * The hash table of the queries, twice the capacity rounded to a power of two.
+     */
+    private final Query[] table;
+    private final int tableMask;
+    /**
+     * The timer wheel slots, each one a list of queries ordered by addition.
+     */
+    private final Query[] wheelHeads;
+    private final Query[] wheelTails;
+    /**
+     * The queries in flight by coalescing key, to attach identical queries to.
+     */
+    private final Map<String, Query> questions;
+    /**
+     * The unused query entries, linked by their next field.
+     */
+    private Query free;
+    private long currentTick;
+    private volatile int size;
+    private volatile long timeoutCount;
+    private volatile long coalescedCount;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity  The maximum number of queries in flight.
+     * @param timeoutMs The time to wait for a response (in milliseconds).
+     */
+    InFlightQueries(int capacity, long timeoutMs) {
+        this.timeoutTicks = (timeoutMs + TICK_MS - 1) / TICK_MS;
+        if (this.timeoutTicks >= WHEEL_SIZE) {
+            throw new IllegalArgumentException("Timeout must be less than " + WHEEL_SIZE * TICK_MS + "ms.");
+        }
+        this.table = new Query[Integer.highestOneBit(capacity * 2 - 1) << 1];
+        this.tableMask = this.table.length - 1;
+        this.wheelHeads = new Query[WHEEL_SIZE];
+        this.wheelTails = new Query[WHEEL_SIZE];
+        this.questions = new HashMap<>();
+        for (int i = 0; i < capacity; i++) {
+            Query query = new Query();
+            query.next = this.free;
+            this.free = query;
+        }
+        this.currentTick = System.currentTimeMillis() / TICK_MS;
+    }
+
+    /**
+     * Get the number of queries in flight.
+     *
+     * @return The number of queries in flight.
+     */
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * Get the number of queries dropped without response, either timed out or evicted to add
+     * a query when full.
+     *
+     * @return The number of queries dropped without response.
+     */
+    long getTimeoutCount() {
+        return this.timeoutCount;
+    }
+
+    /**
+     * Get the number of queries attached to an identical query in flight.
+     *
+     * @return The number of queries attached to an identical query in flight.
+     */
+    long getCoalescedCount() {
+        return this.coalescedCount;
+    }
+
+    /**
+     * Check whether all the query entries are used.
+     *
+     * @return {@code true} if adding a query would drop another one, {@code false} otherwise.
+     */
+    boolean isFull() {
+        return this.free == null;
+    }
+
+    /**
+     * Check whether a query is in flight.
+     *
+     * @param key The query key.
+     * @return {@code true} if a query is in flight for the key, {@code false} otherwise.
+     */
+    boolean contains(int key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Get a query in flight.
+     *
+     * @param key The query key.
+     * @return The query in flight for the key, {@code null} if none.
+     */
+    Query get(int key) {
+        for (int index = hash(key); ; index = (index + 1) & this.tableMask) {
+            Query query = this.table[index];
+            if (query == null || query.key == key) {
+                return query;
+            }
+        }
+    }
+
+    /**
+     * Find the query in flight for a question.
+     *
+     * @param coalescingKey The key of the question and the answer constraints.
+     * @return The query in flight for the question, {@code null} if none.
+     */
+    Query find(String coalescingKey) {
+        return this.questions.get(coalescingKey);
+    }
+
+    /**
+     * Attach a requester to a query in flight, to be answered with the same response.
+     *
+     * @param query               The query in flight.
+     * @param requestPacket       The IP packet of the requester query.
+     * @param requestHeaderLength The length of the requester query IP and UDP headers, copied to the requester with the question name.
+     * @param transactionId       The transaction ID of the requester query.
+     * @return {@code true} if the requester was attached, {@code false} if there is no entry left.
+     */
+    boolean attach(Query query, ByteBuffer requestPacket, int requestHeaderLength, int transactionId) {
+        Query follower = this.free;
+        if (follower == null) {
+            return false;
+        }
+        this.free = follower.next;
+        copyRequestHeader(follower, requestPacket, requestHeaderLength, true);
+        follower.transactionId = transactionId;
+        follower.next = null;
+        follower.follower = query.follower;
+        query.follower = follower;
+        this.coalescedCount++;
+        return true;
+    }
+
+    /**
+     * Add a query in flight.<br>
+     * The query expiring first is dropped if there are already as many queries as the capacity.
+     *
+     * @param key                 The query key, not already in flight.
+     * @param requestPacket       The IP packet of the query, or the request header of the query it hedges.
+     * @param requestHeaderLength The length of the query IP and UDP headers, copied to the query with the question name if known.
+     * @param server              The server the query was sent to.
+     * @param transactionId       The original transaction ID of the query.
+     * @param now                 The current time (in milliseconds), when the query was sent.
+     * @param question            The question key of the query, {@code null} if unknown.
+     * @param coalescingKey       The key to attach identical queries to, {@code null} to not coalesce queries.
+     * @return The added query.
+     */
+    Query add(int key, ByteBuffer requestPacket, int requestHeaderLength, SocketAddress server, int transactionId, long now, String question, String coalescingKey) {
+        if (this.free == null) {
+            evictFirst();
+        }
+        Query query = this.free;
+        this.free = query.next;
+        query.key = key;
+        copyRequestHeader(query, requestPacket, requestHeaderLength, question != null && requestHeaderLength > 0);
+        query.server = server;
+        query.question = question;
+        if (coalescingKey != null && this.questions.putIfAbsent(coalescingKey, query) == null) {
+            query.coalescingKey = coalescingKey;
+        }
+        query.transactionId = transactionId;
+        query.sentTime = now;
+        query.hedgeTime = 0;
+        query.expirationTick = Math.max(now / TICK_MS, this.currentTick) + this.timeoutTicks;
+        // Insert into hash table
+        int index = hash(key);
+        while (this.table[index] != null) {
+            index = (index + 1) & this.tableMask;
+        }
+        this.table[index] = query;
+        // Append to timer wheel slot
+        int slot = (int) (query.expirationTick & (WHEEL_SIZE - 1));
+        query.previous = this.wheelTails[slot];
+        query.next = null;
+        if (query.previous == null) {
+            this.wheelHeads[slot] = query;
+        } else {
+            query.previous.next = query;
+        }
+        this.wheelTails[slot] = query;
+        this.size++;
+        return query;
+    }
+
+    /**
+     * Link a query to the query in flight it hedges.
+     *
+     * @param query The query in flight.
+     * @param hedge The query sent to another server for the same requesters.
+     */
+    void link(Query query, Query hedge) {
+        query.hedge = hedge;
+        hedge.primary = query;
+    }
+
+    /**
+     * Release a query in flight and its attached requesters, unlinking it from its hedge or hedged
+     * query which stays in flight.<br>
+     * If the query has a hedge in flight, its attached requesters and question are handed over to
+     * the hedge so they are still answered by its response.<br>
+     * The query must not be used after being released as its entry will be recycled.
+     *
+     * @param query The query to release.
+     */
+    void release(Query query) {
+        // Remove from hash table, shifting back the following entries of the probe sequence
+        int index = hash(query.key);
+        while (this.table[index] != query) {
+            index = (index + 1) & this.tableMask;
+        }
+        int next = index;
+        while (true) {
+            next = (next + 1) & this.tableMask;
+            Query nextQuery = this.table[next];
+            if (nextQuery == null) {
+                break;
+            }
+            int home = hash(nextQuery.key);
+            // Move the entry if its home is not between the hole and itself (cyclically)
+            if (((next - home) & this.tableMask) >= ((next - index) & this.tableMask)) {
+                this.table[index] = nextQuery;
+                index = next;
+            }
+        }
+        this.table[index] = null;
+        // Remove from timer wheel slot
+        int slot = (int) (query.expirationTick & (WHEEL_SIZE - 1));
+        if (query.previous == null) {
+            this.wheelHeads[slot] = query.next;
+        } else {
+            query.previous.next = query.next;
+        }
+        if (query.next == null) {
+            this.wheelTails[slot] = query.previous;
+        } else {
+            query.next.previous = query.previous;
+        }
+        // Hand over the requesters and question to the hedge still waiting for a response
+        Query hedge = query.hedge;
+        if (hedge != null) {
+            hedge.follower = query.follower;
+            query.follower = null;
+            if (query.coalescingKey != null) {
+                this.questions.put(query.coalescingKey, hedge);
+                hedge.coalescingKey = query.coalescingKey;
+                query.coalescingKey = null;
+            }
+        }
+        // Remove from questions
+        if (query.coalescingKey != null) {
+            this.questions.remove(query.coalescingKey);
+            query.coalescingKey = null;
+        }
+        // Unlink hedge
+        if (hedge != null) {
+            hedge.primary = null;
+            query.hedge = null;
+        }
+        if (query.primary != null) {
+            query.primary.hedge = null;
+            query.primary = null;
+        }
+        // Recycle entries
+        Query follower = query.follower;
+        while (follower != null) {
+            Query nextFollower = follower.follower;
+            follower.follower = null;
+            follower.next = this.free;
+            this.free = follower;
+            follower = nextFollower;
+        }
+        query.follower = null;
+        query.server = null;
+        query.question = null;
+        query.previous = null;
+        query.next = this.free;
+        this.free = query;
+        this.size--;
+    }
+
+    /**
+     * Drop the queries whose timeout elapsed.
+     *
+     * @param now The current time (in milliseconds).
+     */
+    void expire(long now) {
+        expire(now, null);
+    }
+
+    /**
+     * Drop the queries whose timeout elapsed.
+     *
+     * @param now            The current time (in milliseconds).
+     * @param timeoutHandler The handler to notify of each query before it is dropped, {@code null} if none.
+     */
+    void expire(long now, TimeoutHandler timeoutHandler) {
+        long tick = now / TICK_MS;
+        long elapsedTicks = Math.min(tick - this.currentTick, WHEEL_SIZE);
+        for (long i = 1; i <= elapsedTicks && this.size > 0; i++) {
+            int slot = (int) ((this.currentTick + i) & (WHEEL_SIZE - 1));
+            Query query = this.wheelHeads[slot];
+            while (query != null) {
+                Query next = query.next;
+                if (query.expirationTick <= tick) {
+                    if (timeoutHandler != null) {
+                        timeoutHandler.handle(query);
+                    }
+                    release(query);
+                    this.timeoutCount++;
+                }
+                query = next;
+            }
+        }
+        if (tick > this.currentTick) {
+            this.currentTick = tick;
+        }
+    }
+
+    /**
+     * Get the time until the next timer wheel tick.
+     *
+     * @param now The current time (in milliseconds).
+     * @return The time until the next tick (in milliseconds), {@code -1} if there is no query in flight.
+     */
+    int getTickTimeout(long now) {
+        if (this.size == 0) {
+            return -1;
+        }
+        return (int) Math.max((this.currentTick + 1) * TICK_MS - now, 0);
+    }
+
+    /**
+     * Drop all the queries in flight.
+     */
+    void clear() {
+        for (int index = 0; index < this.table.length; index++) {
+            // Releasing a query may shift back another one to its index
+            while (this.table[index] != null) {
+                release(this.table[index]);
+            }
+        }
+    }
+
+    private void evictFirst() {
+        for (int i = 1; i <= WHEEL_SIZE; i++) {
+            Query query = this.wheelHeads[(int) ((this.currentTick + i) & (WHEEL_SIZE - 1))];
+            if (query != null) {
+                release(query);
+                this.timeoutCount++;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Write the question name of a requester to a response to its question.
+     *
+     * @param query    The query or attached requester to answer.
+     * @param response The DNS response, whose question name has the same length.
+     */
+    static void writeQuestionName(Query query, byte[] response) {
+        int offset = query.requestHeaderLength + DNS_HEADER_LENGTH;
+        for (int i = 0; i < query.nameLength; i++) {
+            response[DNS_HEADER_LENGTH + i] = query.requestHeader.get(offset + i);
+        }
+    }
+
+    private static void copyRequestHeader(Query query, ByteBuffer requestPacket, int requestHeaderLength, boolean copyName) {
+        // Keep the DNS header and question name after the IP and UDP headers
+        int nameLength = copyName ? getQuestionNameLength(requestPacket, requestHeaderLength + DNS_HEADER_LENGTH) : 0;
+        int length = nameLength == 0 ? requestHeaderLength : requestHeaderLength + DNS_HEADER_LENGTH + nameLength;
+        for (int i = 0; i < length; i++) {
+            query.requestHeader.put(i, requestPacket.get(i));
+        }
+        query.requestHeaderLength = requestHeaderLength;
+        query.nameLength = nameLength;
+    }
+
+    private static int getQuestionNameLength(ByteBuffer packet, int offset) {
+        // Labels were checked when reading the question
+        int position = offset;
+        while (position < packet.limit() && position - offset < MAXIMUM_NAME_LENGTH) {
+            int labelLength = packet.get(position) & 0xFF;
+            position += 1 + labelLength;
+            if (labelLength == 0) {
+                return position - offset;
+            }
+        }
+        return 0;
+    }
+
+    private int hash(int key) {
+        return (key * 0x9E3779B9 >>> 16) & this.tableMask;
+    }
+
+    /**
+     * This interface is a handler of the queries without response.
+     */
+    @FunctionalInterface
+    interface TimeoutHandler {
+        /**
+         * Handle a query whose response timed out, before it is dropped.
+         *
+         * @param query The query whose response timed out.
+         */
+        void handle(Query query);
+    }
+
+    /**
+     * This class is a query waiting for a response, or a requester attached to it.
+     */
+    static class Query {
+        /**
+         * The IP and UDP headers of the query, followed by its DNS header and question name if known.
+         */
+        final ByteBuffer requestHeader = ByteBuffer.allocate(UdpPacketCodec.MAXIMUM_HEADER_LENGTH + DNS_HEADER_LENGTH + MAXIMUM_NAME_LENGTH);
+        int requestHeaderLength;
+        /**
+         * The length of the question name in wire format, {@code 0} if unknown.
+         */
+        int nameLength;
+        SocketAddress server;
+        /**
+         * The key of the query question, {@code null} if unknown.
+         *
+         * @see DnsQuestion#getKey()
+         */
+        String question;
+        int transactionId;
+        long sentTime;
+        /**
+         * The next requester attached to the query, {@code null} if none.
+         */
+        Query follower;
+        /**
+         * The query sent to another server for the same requesters, {@code null} if none.
+         */
+        Query hedge;
+        /**
+         * The query this query hedges, {@code null} if none.
+         */
+        Query primary;
+        /**
+         * The time to hedge the query (in milliseconds), and its DNS payload to send again.
+         */
+        long hedgeTime;
+        byte[] payload;
+        int payloadLength;
+        private String coalescingKey;
+        private int key;
+        private long expirationTick;
+        private Query previous;
+        private Query next;
+    }
+}
@@ -0,0 +1,129 @@
+package org.adaway.vpn;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class is a bounded ring of packet buffers.<br>
+ * The buffers are allocated once and reused: a packet is written in place to the claimed buffer at
+ * the end of the ring then committed.<br>
+ * The ring is lock-free and safe to use from one producer thread, claiming and committing packets,
+ * and one consumer thread, peeking and removing them.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+class PacketRing {
+    private final byte[][] buffers;
+    private final ByteBuffer[] views;
+    private final int[] lengths;
+    /**
+     * The sequence of the first packet, only written by the consumer.
+     */
+    private volatile long head;
+    /**
+     * The sequence after the last packet, only written by the producer.
+     */
+    private volatile long tail;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity   The maximum number of packets.
+     * @param packetSize The maximum size of a packet (in bytes).
+     */
+    PacketRing(int capacity, int packetSize) {
+        this.buffers = new byte[capacity][packetSize];
+        this.views = new ByteBuffer[capacity];
+        for (int i = 0; i < capacity; i++) {
+            this.views[i] = ByteBuffer.wrap(this.buffers[i]);
+        }
+        this.lengths = new int[capacity];
+        this.head = 0;
+        this.tail = 0;
+    }
+
+    /**
+     * Check whether the ring is empty.
+     *
+     * @return {@code true} if there is no packet in the ring, {@code false} otherwise.
+     */
+    boolean isEmpty() {
+        return this.head == this.tail;
+    }
+
+    /**
+     * Claim the buffer at the end of the ring to write a packet to.
+     *
+     * @return The cleared buffer to write the packet to, {@code null} if the ring is full.
+     * @see #commit(int)
+     */
+    ByteBuffer claim() {
+        long tail = this.tail;
+        if (tail - this.head == this.buffers.length) {
+            return null;
+        }
+        ByteBuffer buffer = this.views[index(tail)];
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Add the packet written to the claimed buffer at the end of the ring.
+     *
+     * @param length The packet length.
+     * @see #claim()
+     */
+    void commit(int length) {
+        long tail = this.tail;
+        this.lengths[index(tail)] = length;
+        // Publish the packet to the consumer
+        this.tail = tail + 1;
+    }
+
+    /**
+     * Get the first packet of the ring.
+     *
+     * @return The buffer of the first packet, from index {@code 0} to the packet length.
+     */
+    ByteBuffer peek() {
+        int index = index(this.head);
+        ByteBuffer buffer = this.views[index];
+        buffer.clear();
+        buffer.limit(this.lengths[index]);
+        return buffer;
+    }
+
+    /**
+     * Get the buffer of the first packet of the ring.
+     *
+     * @return The buffer of the first packet, starting at index {@code 0}.
+     * @see #peekLength()
+     */
+    byte[] peekBuffer() {
+        return this.buffers[index(this.head)];
+    }
+
+    /**
+     * Get the length of the first packet of the ring.
+     *
+     * @return The length of the first packet.
+     * @see #peekBuffer()
+     */
+    int peekLength() {
+        return this.lengths[index(this.head)];
+    }
+
+    /**
+     * Remove the first packet of the ring, releasing its buffer.
+     */
+    void remove() {
+        long head = this.head;
+        if (head == this.tail) {
+            return;
+        }
+        this.head = head + 1;
+    }
+
+    private int index(long sequence) {
+        return (int) (sequence % this.buffers.length);
+    }
+}
@@ -0,0 +1,215 @@
+package org.adaway.vpn;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+/**
+ * This class is a codec for UDP packets over IPv4 and IPv6.<br>
+ * It reads the headers in place and writes a response by copying the request headers, swapping
+ * their addresses and ports, then patching the lengths and checksums. On the DNS path it replaces
+ * pcap4j, which allocates a packet, header and builder object tree for each packet.<br>
+ * Packets start at index {@code 0} of their buffer and end at its limit.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+final class UdpPacketCodec {
+    /**
+     * The maximum length of the IP and UDP headers (in bytes).
+     */
+    static final int MAXIMUM_HEADER_LENGTH = 60 + 8;
+    private static final int IPV4_MINIMUM_HEADER_LENGTH = 20;
+    private static final int IPV6_HEADER_LENGTH = 40;
+    private static final int UDP_HEADER_LENGTH = 8;
+    private static final int UDP_PROTOCOL = 17;
+
+    /**
+     * Private constructor.
+     */
+    private UdpPacketCodec() {
+
+    }
+
+    /**
+     * Get the length of the IP and UDP headers of a packet.
+     *
+     * @param packet The packet to read.
+     * @return The length of the IP and UDP headers, {@code -1} if the packet is not a valid
+     * unfragmented UDP packet over IPv4 or IPv6.
+     */
+    static int getHeaderLength(ByteBuffer packet) {
+        int length = packet.limit();
+        if (length < 1) {
+            return -1;
+        }
+        int version = (packet.get(0) & 0xFF) >>> 4;
+        int ipHeaderLength;
+        if (version == 4) {
+            if (length < IPV4_MINIMUM_HEADER_LENGTH) {
+                return -1;
+            }
+            ipHeaderLength = (packet.get(0) & 0x0F) * 4;
+            int totalLength = packet.getShort(2) & 0xFFFF;
+            if (ipHeaderLength < IPV4_MINIMUM_HEADER_LENGTH
+                    || totalLength < ipHeaderLength + UDP_HEADER_LENGTH
+                    || totalLength > length) {
+                return -1;
+            }
+            // Check protocol then more fragments flag and fragment offset
+            if ((packet.get(9) & 0xFF) != UDP_PROTOCOL || (packet.getShort(6) & 0x3FFF) != 0) {
+                return -1;
+            }
+        } else if (version == 6) {
+            if (length < IPV6_HEADER_LENGTH + UDP_HEADER_LENGTH) {
+                return -1;
+            }
+            ipHeaderLength = IPV6_HEADER_LENGTH;
+            int payloadLength = packet.getShort(4) & 0xFFFF;
+            if (payloadLength < UDP_HEADER_LENGTH || IPV6_HEADER_LENGTH + payloadLength > length) {
+                return -1;
+            }
+            // Check next header, extension headers are not supported
+            if ((packet.get(6) & 0xFF) != UDP_PROTOCOL) {
+                return -1;
+            }
+        } else {
+            return -1;
+        }
+        int udpLength = packet.getShort(ipHeaderLength + 4) & 0xFFFF;
+        if (udpLength < UDP_HEADER_LENGTH || ipHeaderLength + udpLength > length) {
+            return -1;
+        }
+        return ipHeaderLength + UDP_HEADER_LENGTH;
+    }
+
+    /**
+     * Get the UDP payload length of a packet.
+     *
+     * @param packet       The packet to read.
+     * @param headerLength The length of the IP and UDP headers.
+     * @return The UDP payload length.
+     */
+    static int getPayloadLength(ByteBuffer packet, int headerLength) {
+        return (packet.getShort(headerLength - 4) & 0xFFFF) - UDP_HEADER_LENGTH;
+    }
+
+    /**
+     * Get the UDP destination port of a packet.
+     *
+     * @param packet       The packet to read.
+     * @param headerLength The length of the IP and UDP headers.
+     * @return The UDP destination port.
+     */
+    static int getDestinationPort(ByteBuffer packet, int headerLength) {
+        return packet.getShort(headerLength - 6) & 0xFFFF;
+    }
+
+    /**
+     * Get the IP destination address of a packet.
+     *
+     * @param packet The packet to read.
+     * @return The IP destination address.
+     */
+    static InetAddress getDestinationAddress(ByteBuffer packet) {
+        boolean ipV4 = isIpV4(packet);
+        byte[] address = new byte[ipV4 ? 4 : 16];
+        int offset = ipV4 ? 16 : 24;
+        for (int i = 0; i < address.length; i++) {
+            address[i] = packet.get(offset + i);
+        }
+        try {
+            return InetAddress.getByAddress(address);
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException("Invalid address length", e);
+        }
+    }
+
+    /**
+     * Write the response to a request packet.
+     *
+     * @param request       The request packet, or at least its IP and UDP headers.
+     * @param headerLength  The length of the request IP and UDP headers.
+     * @param payload       The response payload.
+     * @param payloadOffset The response payload offset.
+     * @param payloadLength The response payload length.
+     * @param response      The buffer to write the response packet to.
+     * @return The response packet length, {@code -1} if the buffer is too small.
+     */
+    static int writeResponse(ByteBuffer request, int headerLength, byte[] payload, int payloadOffset, int payloadLength, ByteBuffer response) {
+        int length = headerLength + payloadLength;
+        if (length > response.capacity()) {
+            return -1;
+        }
+        response.clear();
+        // Copy headers
+        for (int i = 0; i < headerLength; i++) {
+            response.put(i, request.get(i));
+        }
+        // Swap addresses and ports
+        int ipHeaderLength = headerLength - UDP_HEADER_LENGTH;
+        boolean ipV4 = isIpV4(request);
+        int addressOffset = ipV4 ? 12 : 8;
+        int addressLength = ipV4 ? 4 : 16;
+        swap(response, addressOffset, addressOffset + addressLength, addressLength);
+        swap(response, ipHeaderLength, ipHeaderLength + 2, 2);
+        // Copy payload
+        response.position(headerLength);
+        response.put(payload, payloadOffset, payloadLength);
+        response.position(0);
+        response.limit(length);
+        // Patch lengths
+        int udpLength = UDP_HEADER_LENGTH + payloadLength;
+        response.putShort(ipHeaderLength + 4, (short) udpLength);
+        if (ipV4) {
+            int oldTotalLength = request.getShort(2) & 0xFFFF;
+            response.putShort(2, (short) length);
+            // Update header checksum incrementally (RFC 1624), swapping addresses does not change it
+            int checksum = response.getShort(10) & 0xFFFF;
+            int sum = (~checksum & 0xFFFF) + (~oldTotalLength & 0xFFFF) + length;
+            response.putShort(10, (short) ~fold(sum));
+        } else {
+            response.putShort(4, (short) udpLength);
+        }
+        // Compute UDP checksum from the pseudo header, the UDP header and the payload
+        response.putShort(ipHeaderLength + 6, (short) 0);
+        int sum = sum(response, addressOffset, 2 * addressLength)
+                + UDP_PROTOCOL
+                + udpLength
+                + sum(response, ipHeaderLength, udpLength);
+        int checksum = ~fold(sum) & 0xFFFF;
+        response.putShort(ipHeaderLength + 6, (short) (checksum == 0 ? 0xFFFF : checksum));
+        return length;
+    }
+
+    private static boolean isIpV4(ByteBuffer packet) {
+        return (packet.get(0) & 0xF0) == 0x40;
+    }
+
+    private static void swap(ByteBuffer buffer, int first, int second, int length) {
+        for (int i = 0; i < length; i++) {
+            byte value = buffer.get(first + i);
+            buffer.put(first + i, buffer.get(second + i));
+            buffer.put(second + i, value);
+        }
+    }
+
+    private static int sum(ByteBuffer buffer, int offset, int length) {
+        int sum = 0;
+        int end = offset + (length & ~1);
+        for (int i = offset; i < end; i += 2) {
+            sum += buffer.getShort(i) & 0xFFFF;
+        }
+        // Pad odd length with zero
+        if ((length & 1) != 0) {
+            sum += (buffer.get(end) & 0xFF) << 8;
+        }
+        return fold(sum);
+    }
+
+    private static int fold(int sum) {
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        }
+        return sum;
+    }
+}
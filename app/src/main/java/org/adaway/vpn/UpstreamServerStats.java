@@ -0,0 +1,212 @@
+package org.adaway.vpn;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+
+/**
+ * This class tracks the response time distribution and the loss of an upstream DNS server.<br>
+ * The response time is smoothed for server selection and its 95th percentile, over the last
+ * responses, is the delay before hedging a query. A server losing too many queries is unhealthy
+ * and only probed with a single query from time to time until it answers again.<br>
+ * A query answered by its hedge first only tells the server was slower than the hedge, not its
+ * response time, so it is counted apart and does not change the response time distribution.<br>
+ * It is not thread safe and must be used from the thread doing the upstream I/O.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+class UpstreamServerStats {
+    /**
+     * The number of response times to compute the percentile from.
+     */
+    private static final int SAMPLE_COUNT = 64;
+    /**
+     * The number of response times before trusting the percentile.
+     */
+    private static final int MINIMUM_SAMPLE_COUNT = 8;
+    /**
+     * The response time assumed for servers without response yet (in milliseconds).
+     */
+    private static final int INITIAL_RTT_MS = 100;
+    /**
+     * The hedging delay bounds, and the delay used until the percentile is trusted (in milliseconds).
+     */
+    private static final int MINIMUM_HEDGE_DELAY_MS = 10;
+    private static final int MAXIMUM_HEDGE_DELAY_MS = 5000;
+    private static final int DEFAULT_HEDGE_DELAY_MS = 500;
+    /**
+     * The weight of a new value in the smoothed response time and loss, as TCP SRTT (RFC 6298).
+     */
+    private static final double SMOOTHING_WEIGHT = 0.125;
+    /**
+     * The loss ratio a server is unhealthy from.
+     */
+    private static final double MAXIMUM_LOSS = 0.5;
+    /**
+     * The delay between two probes of an unhealthy server (in milliseconds).
+     */
+    private static final long PROBE_DELAY_MS = 30_000;
+    private final InetAddress address;
+    private final int[] samples;
+    private final int[] sortedSamples;
+    private int sampleCount;
+    private int nextSample;
+    private int percentile95;
+    private boolean percentileValid;
+    private double smoothedRtt;
+    private double loss;
+    private long probeTime;
+    private long hedgeLossCount;
+
+    /**
+     * Constructor.
+     *
+     * @param address The server address.
+     */
+    UpstreamServerStats(InetAddress address) {
+        this.address = address;
+        this.samples = new int[SAMPLE_COUNT];
+        this.sortedSamples = new int[SAMPLE_COUNT];
+        this.smoothedRtt = INITIAL_RTT_MS;
+    }
+
+    /**
+     * Get the server address.
+     *
+     * @return The server address.
+     */
+    InetAddress getAddress() {
+        return this.address;
+    }
+
+    /**
+     * Get the smoothed response time.
+     *
+     * @return The smoothed response time (in milliseconds).
+     */
+    double getSmoothedRtt() {
+        return this.smoothedRtt;
+    }
+
+    /**
+     * Get the ratio of lost queries.
+     *
+     * @return The smoothed ratio of lost queries, from {@code 0} to {@code 1}.
+     */
+    double getLoss() {
+        return this.loss;
+    }
+
+    /**
+     * Check whether the server answers most queries.
+     *
+     * @return {@code true} if the server loses few queries, {@code false} otherwise.
+     */
+    boolean isHealthy() {
+        return this.loss < MAXIMUM_LOSS;
+    }
+
+    /**
+     * Check whether the server can be sent a query: it is healthy, or it can be probed again.
+     *
+     * @param now The current time (in milliseconds).
+     * @return {@code true} if the server can be sent a query, {@code false} otherwise.
+     */
+    boolean isAvailable(long now) {
+        return isHealthy() || now >= this.probeTime;
+    }
+
+    /**
+     * Notify a query is sent to the server, delaying the next probe if the server is unhealthy.
+     *
+     * @param now The current time (in milliseconds).
+     */
+    void notifySent(long now) {
+        if (!isHealthy()) {
+            this.probeTime = now + PROBE_DELAY_MS;
+        }
+    }
+
+    /**
+     * Record a response of the server.
+     *
+     * @param rtt The time the server took to respond (in milliseconds).
+     */
+    void recordResponse(long rtt) {
+        int sample = (int) Math.min(Math.max(rtt, 0), Integer.MAX_VALUE);
+        this.samples[this.nextSample] = sample;
+        this.nextSample = (this.nextSample + 1) % SAMPLE_COUNT;
+        if (this.sampleCount < SAMPLE_COUNT) {
+            this.sampleCount++;
+        }
+        this.percentileValid = false;
+        this.smoothedRtt = this.sampleCount == 1 ? sample : this.smoothedRtt + SMOOTHING_WEIGHT * (sample - this.smoothedRtt);
+        this.loss -= SMOOTHING_WEIGHT * this.loss;
+    }
+
+    /**
+     * Record a query lost by the server.
+     *
+     * @param now The current time (in milliseconds).
+     */
+    void recordLoss(long now) {
+        this.loss += SMOOTHING_WEIGHT * (1 - this.loss);
+        if (!isHealthy()) {
+            this.probeTime = now + PROBE_DELAY_MS;
+        }
+    }
+
+    /**
+     * Record a query of the server answered first by its hedge to another server.
+     */
+    void recordHedgeLoss() {
+        this.hedgeLossCount++;
+    }
+
+    /**
+     * Get the number of queries of the server answered first by their hedge.
+     *
+     * @return The number of queries answered first by their hedge.
+     */
+    long getHedgeLossCount() {
+        return this.hedgeLossCount;
+    }
+
+    /**
+     * Get the delay before hedging a query sent to the server.
+     *
+     * @return The delay before hedging a query (in milliseconds).
+     */
+    int getHedgeDelay() {
+        if (this.sampleCount < MINIMUM_SAMPLE_COUNT) {
+            return DEFAULT_HEDGE_DELAY_MS;
+        }
+        return Math.min(Math.max(getPercentile95(), MINIMUM_HEDGE_DELAY_MS), MAXIMUM_HEDGE_DELAY_MS);
+    }
+
+    /**
+     * Get the 95th percentile of the last response times.
+     *
+     * @return The 95th percentile of the last response times (in milliseconds), {@code -1} if there is no response.
+     */
+    int getPercentile95() {
+        if (this.sampleCount == 0) {
+            return -1;
+        }
+        if (!this.percentileValid) {
+            System.arraycopy(this.samples, 0, this.sortedSamples, 0, this.sampleCount);
+            Arrays.sort(this.sortedSamples, 0, this.sampleCount);
+            // Nearest rank method
+            int rank = (this.sampleCount * 95 + 99) / 100;
+            this.percentile95 = this.sortedSamples[rank - 1];
+            this.percentileValid = true;
+        }
+        return this.percentile95;
+    }
+
+    @Override
+    public String toString() {
+        return this.address.getHostAddress() + " (rtt: " + Math.round(this.smoothedRtt) + "ms, p95: " +
+                getPercentile95() + "ms, loss: " + Math.round(this.loss * 100) + "%, hedge losses: " +
+                this.hedgeLossCount + ")";
+    }
+}
@@ -0,0 +1,562 @@
+package org.adaway.vpn;
+
+import android.os.ParcelFileDescriptor;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import org.adaway.vpn.InFlightQueries.Query;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * This class is a pool of protected sockets to forward DNS queries to the upstream servers.<br>
+ * Each upstream server gets a few sockets, protected from the VPN once when created.
+ * Queries are multiplexed on them by rewriting their DNS transaction ID with a random one and the
+ * responses are matched back to the original queries by socket, transaction ID and server address.
+ * Responses whose question is not the one of their query are discarded (RFC 5452). Identical
+ * queries sent while one is in flight are not forwarded but answered with its response.<br>
+ * The source port is not rewritten per query: each socket is bound to a random ephemeral port by
+ * the system. To keep off-path spoofing as hard as with a socket per query (RFC 5452), sockets are
+ * retired after a number of queries or an age so queries move to new ports. A retired socket only
+ * receives the responses to its queries in flight and is closed once they all timed out.<br>
+ * The response time and loss of each server are reported to the DNS server mapper. A query still
+ * waiting for a response after its server 95th percentile response time is hedged: it is sent
+ * again to another server and the first response is used.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+class UpstreamSocketPool implements Closeable {
+    private static final String TAG = "UpstreamSocketPool";
+    /**
+     * The number of sockets per upstream server.
+     */
+    private static final int SOCKETS_PER_SERVER = 4;
+    /**
+     * The number of queries to send from a socket before retiring it.
+     */
+    private static final int MAXIMUM_SOCKET_QUERIES = 256;
+    /**
+     * The time to send queries from a socket before retiring it (in milliseconds).
+     */
+    private static final long MAXIMUM_SOCKET_AGE_MS = 60_000;
+    /**
+     * The maximum number of queries waiting for a response.
+     */
+    private static final int MAXIMUM_WAITING = 1024;
+    /**
+     * The time to wait for a response (in milliseconds).
+     */
+    private static final long TIMEOUT_MS = 10_000;
+    /**
+     * The maximum size of a DNS response (in bytes).
+     */
+    static final int MAXIMUM_RESPONSE_SIZE = 4096;
+    /**
+     * The maximum size of a query to hedge (in bytes).
+     */
+    private static final int MAXIMUM_HEDGED_QUERY_SIZE = 512;
+    private final android.net.VpnService vpnService;
+    private final DnsServerMapper dnsServerMapper;
+    private final ResponseHandler responseHandler;
+    private final InFlightQueries.TimeoutHandler timeoutHandler;
+    private final Random random;
+    /**
+     * The sockets by upstream server.
+     */
+    private final Map<SocketAddress, UpstreamSocket[]> serverSockets;
+    /**
+     * All the open sockets, including the retired ones waiting for their queries to time out.
+     */
+    private final List<UpstreamSocket> sockets;
+    /**
+     * The retired sockets, in retirement order.
+     */
+    private final List<UpstreamSocket> retiredSockets;
+    /**
+     * The queries waiting for a response by socket and transaction ID.
+     */
+    private final InFlightQueries inFlightQueries;
+    /**
+     * The buffer to receive responses.
+     */
+    private final byte[] responseBuffer;
+    private final DatagramPacket responsePacket;
+    private final ByteBuffer responseView;
+    private final DnsQuestion responseQuestion;
+    /**
+     * The queries to hedge by key, in hedge time order.
+     */
+    private final HedgeQueue hedgeQueue;
+    private final DatagramPacket hedgePacket;
+    private int nextSocket;
+    private int socketGeneration;
+    private volatile long hedgedCount;
+
+    UpstreamSocketPool(android.net.VpnService vpnService, DnsServerMapper dnsServerMapper, ResponseHandler responseHandler) {
+        this.vpnService = vpnService;
+        this.dnsServerMapper = dnsServerMapper;
+        this.responseHandler = responseHandler;
+        this.timeoutHandler = this::handleTimeout;
+        this.random = new SecureRandom();
+        this.serverSockets = new HashMap<>();
+        this.sockets = new ArrayList<>();
+        this.retiredSockets = new ArrayList<>();
+        this.inFlightQueries = new InFlightQueries(MAXIMUM_WAITING, TIMEOUT_MS);
+        this.responseBuffer = new byte[MAXIMUM_RESPONSE_SIZE];
+        this.responsePacket = new DatagramPacket(this.responseBuffer, this.responseBuffer.length);
+        this.responseView = ByteBuffer.wrap(this.responseBuffer);
+        this.responseQuestion = new DnsQuestion();
+        this.hedgeQueue = new HedgeQueue(MAXIMUM_WAITING);
+        this.hedgePacket = new DatagramPacket(new byte[0], 0);
+    }
+
+    /**
+     * Get the number of sockets of the pool.
+     *
+     * @return The number of sockets of the pool.
+     */
+    int getSocketCount() {
+        return this.sockets.size();
+    }
+
+    /**
+     * Get the generation of the pool sockets, changed each time a socket is opened or closed.
+     *
+     * @return The generation of the pool sockets.
+     */
+    int getSocketGeneration() {
+        return this.socketGeneration;
+    }
+
+    /**
+     * Get a socket of the pool.
+     *
+     * @param index The socket index, from {@code 0} to {@link #getSocketCount()} excluded.
+     * @return The socket at the given index.
+     */
+    UpstreamSocket getSocket(int index) {
+        return this.sockets.get(index);
+    }
+
+    /**
+     * Get the number of queries waiting for a response.
+     *
+     * @return The number of queries waiting for a response.
+     */
+    int getInFlightCount() {
+        return this.inFlightQueries.size();
+    }
+
+    /**
+     * Get the number of queries dropped without response.
+     *
+     * @return The number of queries dropped without response.
+     */
+    long getTimeoutCount() {
+        return this.inFlightQueries.getTimeoutCount();
+    }
+
+    /**
+     * Get the number of queries answered with the response of an identical query.
+     *
+     * @return The number of queries answered with the response of an identical query.
+     */
+    long getCoalescedCount() {
+        return this.inFlightQueries.getCoalescedCount();
+    }
+
+    /**
+     * Get the number of queries sent again to another server.
+     *
+     * @return The number of queries sent again to another server.
+     */
+    long getHedgedCount() {
+        return this.hedgedCount;
+    }
+
+    /**
+     * Get the poll timeout to hedge or expire the queries waiting for a response.
+     *
+     * @param now The current time (in milliseconds).
+     * @return The poll timeout (in milliseconds), {@code -1} if there is no query to hedge or expire.
+     */
+    int getPollTimeout(long now) {
+        int timeout = this.inFlightQueries.getTickTimeout(now);
+        if (!this.hedgeQueue.isEmpty()) {
+            int hedgeTimeout = (int) Math.max(this.hedgeQueue.peekTime() - now, 0);
+            timeout = timeout < 0 ? hedgeTimeout : Math.min(timeout, hedgeTimeout);
+        }
+        return timeout;
+    }
+
+    /**
+     * Drop the queries whose response timed out, close the retired sockets without query left and
+     * hedge the queries waiting for too long.
+     *
+     * @param now The current time (in milliseconds).
+     */
+    void expire(long now) {
+        this.inFlightQueries.expire(now, this.timeoutHandler);
+        closeRetiredSockets(now);
+        HedgeQueue hedgeQueue = this.hedgeQueue;
+        while (!hedgeQueue.isEmpty() && hedgeQueue.peekTime() <= now) {
+            int key = hedgeQueue.peekKey();
+            long hedgeTime = hedgeQueue.peekTime();
+            hedgeQueue.remove();
+            // Skip the queries already answered
+            Query query = this.inFlightQueries.get(key);
+            if (query != null && query.hedgeTime == hedgeTime && query.hedge == null) {
+                try {
+                    hedge(query, now);
+                } catch (IOException e) {
+                    Log.w(TAG, "expire: Could not hedge query", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Forward a packet to an upstream server.
+     *
+     * @param packet              The packet to forward.
+     * @param requestPacket       If specified, the IP packet of the DNS query to wait a response for.
+     * @param requestHeaderLength The length of the query IP and UDP headers, {@code 0} to only handle the response without answering the query.
+     * @param question            The key of the query question to check the response question against, {@code null} if unknown.
+     * @param coalescingKey       The key to coalesce identical queries, {@code null} to not coalesce the query.
+     * @throws IOException If the packet could not be sent.
+     */
+    void forward(DatagramPacket packet, @Nullable ByteBuffer requestPacket, int requestHeaderLength, @Nullable String question, @Nullable String coalescingKey) throws IOException {
+        byte[] data = packet.getData();
+        int offset = packet.getOffset();
+        int transactionId = requestPacket == null ? 0 : readTransactionId(data, offset);
+        // Attach to an identical query in flight
+        if (requestPacket != null && coalescingKey != null) {
+            Query query = this.inFlightQueries.find(coalescingKey);
+            if (query != null && (requestHeaderLength == 0 ||
+                    this.inFlightQueries.attach(query, requestPacket, requestHeaderLength, transactionId))) {
+                return;
+            }
+        }
+        long now = System.currentTimeMillis();
+        UpstreamSocket socket = getNextSocket(packet.getSocketAddress(), now);
+        if (requestPacket == null) {
+            socket.socket.send(packet);
+            return;
+        }
+        // Rewrite transaction ID to multiplex queries on the socket
+        int key;
+        int upstreamTransactionId;
+        do {
+            upstreamTransactionId = this.random.nextInt(0x10000);
+            key = getKey(socket, upstreamTransactionId);
+        } while (this.inFlightQueries.contains(key));
+        writeTransactionId(data, offset, upstreamTransactionId);
+        socket.socket.send(packet);
+        Query query = this.inFlightQueries.add(
+                key,
+                requestPacket,
+                requestHeaderLength,
+                packet.getSocketAddress(),
+                transactionId,
+                now,
+                question,
+                coalescingKey
+        );
+        scheduleHedge(query, key, packet, now);
+    }
+
+    /**
+     * Receive a response from a socket and give it to the response handler with its query.
+     *
+     * @param socket The socket to receive the response from.
+     * @throws IOException If the response could not be received.
+     */
+    void receive(UpstreamSocket socket) throws IOException {
+        // Skip the sockets closed since polled
+        if (socket.socket.isClosed()) {
+            return;
+        }
+        DatagramPacket responsePacket = this.responsePacket;
+        responsePacket.setLength(this.responseBuffer.length);
+        socket.socket.receive(responsePacket);
+        int length = responsePacket.getLength();
+        if (length < 2) {
+            Log.d(TAG, "Discarding response too short to be DNS.");
+            return;
+        }
+        int key = getKey(socket, readTransactionId(this.responseBuffer, 0));
+        Query query = this.inFlightQueries.get(key);
+        // Check response comes from the server the query was sent to
+        if (query == null || !query.server.equals(responsePacket.getSocketAddress())) {
+            Log.d(TAG, "Discarding unexpected response from " + responsePacket.getSocketAddress() + ".");
+            return;
+        }
+        // Check response answers the query question, and keep waiting for the right one otherwise.
+        // Error responses without question are answered but not cached.
+        String question = query.question;
+        if (question != null) {
+            if (DnsQuestion.isErrorWithoutQuestion(this.responseView, 0, length)) {
+                question = null;
+            } else if (!this.responseQuestion.readResponse(this.responseView, 0, length, question)) {
+                Log.d(TAG, "Discarding response to another question from " + responsePacket.getSocketAddress() + ".");
+                return;
+            }
+        }
+        long now = System.currentTimeMillis();
+        long latency = now - query.sentTime;
+        this.dnsServerMapper.recordResponse(getServerAddress(query), latency);
+        // Answer the requesters of the hedged query when its hedge responds first
+        Query primary = query.primary == null ? query : query.primary;
+        if (primary != query) {
+            // The hedged server response time is unknown, only that it lost against the hedge
+            this.dnsServerMapper.recordHedgeLoss(getServerAddress(primary));
+        }
+        answer(primary, question, length, latency);
+        // Fan out the response to the attached requesters
+        for (Query follower = primary.follower; follower != null; follower = follower.follower) {
+            answer(follower, question, length, latency);
+        }
+        // Release the hedge too as its response is no more needed
+        Query hedge = primary.hedge;
+        this.inFlightQueries.release(primary);
+        if (hedge != null) {
+            this.inFlightQueries.release(hedge);
+        }
+    }
+
+    /**
+     * Close all the sockets and forget the pending queries.
+     */
+    @Override
+    public void close() {
+        for (UpstreamSocket socket : this.sockets) {
+            socket.close();
+        }
+        this.sockets.clear();
+        this.retiredSockets.clear();
+        this.serverSockets.clear();
+        this.socketGeneration++;
+        this.inFlightQueries.clear();
+        this.hedgeQueue.clear();
+    }
+
+    private void answer(Query requester, @Nullable String question, int length, long latency) {
+        // Restore the requester transaction ID and question name case, if the response has a question
+        writeTransactionId(this.responseBuffer, 0, requester.transactionId);
+        if (question != null) {
+            InFlightQueries.writeQuestionName(requester, this.responseBuffer);
+        }
+        this.responseHandler.handle(requester.requestHeader, requester.requestHeaderLength, question, this.responseBuffer, length, latency);
+    }
+
+    private void scheduleHedge(Query query, int key, DatagramPacket packet, long now) {
+        int length = packet.getLength();
+        if (length > MAXIMUM_HEDGED_QUERY_SIZE || this.hedgeQueue.isFull()) {
+            return;
+        }
+        int hedgeDelay = this.dnsServerMapper.getHedgeDelay(getServerAddress(query));
+        if (hedgeDelay < 0) {
+            return;
+        }
+        // Keep the query to send it again
+        if (query.payload == null) {
+            query.payload = new byte[MAXIMUM_HEDGED_QUERY_SIZE];
+        }
+        System.arraycopy(packet.getData(), packet.getOffset(), query.payload, 0, length);
+        query.payloadLength = length;
+        query.hedgeTime = now + hedgeDelay;
+        this.hedgeQueue.add(key, query.hedgeTime);
+    }
+
+    private void hedge(Query query, long now) throws IOException {
+        // Adding the hedge must not drop a query
+        if (this.inFlightQueries.isFull()) {
+            return;
+        }
+        InetSocketAddress server = (InetSocketAddress) query.server;
+        InetAddress hedgeAddress = this.dnsServerMapper.selectHedge(server.getAddress(), now);
+        if (hedgeAddress == null) {
+            return;
+        }
+        SocketAddress hedgeServer = new InetSocketAddress(hedgeAddress, server.getPort());
+        UpstreamSocket socket = getNextSocket(hedgeServer, now);
+        int key;
+        int upstreamTransactionId;
+        do {
+            upstreamTransactionId = this.random.nextInt(0x10000);
+            key = getKey(socket, upstreamTransactionId);
+        } while (this.inFlightQueries.contains(key));
+        writeTransactionId(query.payload, 0, upstreamTransactionId);
+        DatagramPacket hedgePacket = this.hedgePacket;
+        hedgePacket.setData(query.payload, 0, query.payloadLength);
+        hedgePacket.setSocketAddress(hedgeServer);
+        socket.socket.send(hedgePacket);
+        Query hedge = this.inFlightQueries.add(
+                key,
+                query.requestHeader,
+                query.requestHeaderLength,
+                hedgeServer,
+                query.transactionId,
+                now,
+                query.question,
+                null
+        );
+        this.inFlightQueries.link(query, hedge);
+        this.hedgedCount++;
+    }
+
+    private void handleTimeout(Query query) {
+        this.dnsServerMapper.recordLoss(getServerAddress(query), System.currentTimeMillis());
+    }
+
+    private static InetAddress getServerAddress(Query query) {
+        return ((InetSocketAddress) query.server).getAddress();
+    }
+
+    private UpstreamSocket getNextSocket(SocketAddress server, long now) throws IOException {
+        UpstreamSocket[] sockets = this.serverSockets.get(server);
+        if (sockets == null) {
+            sockets = new UpstreamSocket[SOCKETS_PER_SERVER];
+            this.serverSockets.put(server, sockets);
+        }
+        int index = this.nextSocket;
+        this.nextSocket = (index + 1) % SOCKETS_PER_SERVER;
+        UpstreamSocket socket = sockets[index];
+        // Move queries to a new source port from time to time
+        if (socket != null && (socket.queryCount >= MAXIMUM_SOCKET_QUERIES || now - socket.creationTime >= MAXIMUM_SOCKET_AGE_MS)) {
+            socket.retirementTime = now;
+            this.retiredSockets.add(socket);
+            socket = null;
+        }
+        if (socket == null) {
+            socket = createSocket(now);
+            sockets[index] = socket;
+        }
+        socket.queryCount++;
+        return socket;
+    }
+
+    private UpstreamSocket createSocket(long now) throws IOException {
+        DatagramSocket datagramSocket = new DatagramSocket();
+        // Packets to be sent to the real DNS server will need to be protected from the VPN
+        if (!this.vpnService.protect(datagramSocket)) {
+            Log.w(TAG, "Failed to protect upstream socket.");
+        }
+        UpstreamSocket socket = new UpstreamSocket(
+                getFreeSocketIndex(),
+                datagramSocket,
+                ParcelFileDescriptor.fromDatagramSocket(datagramSocket),
+                now
+        );
+        this.sockets.add(socket);
+        this.socketGeneration++;
+        return socket;
+    }
+
+    private int getFreeSocketIndex() {
+        // Reuse the index of the closed sockets, whose queries are all released, to keep keys small
+        int index = 0;
+        boolean used;
+        do {
+            used = false;
+            for (UpstreamSocket socket : this.sockets) {
+                if (socket.index == index) {
+                    used = true;
+                    index++;
+                    break;
+                }
+            }
+        } while (used);
+        return index;
+    }
+
+    private void closeRetiredSockets(long now) {
+        // Queries are released at most a tick after their timeout
+        while (!this.retiredSockets.isEmpty() && now - this.retiredSockets.get(0).retirementTime > TIMEOUT_MS + 1000) {
+            UpstreamSocket socket = this.retiredSockets.remove(0);
+            socket.close();
+            this.sockets.remove(socket);
+            this.socketGeneration++;
+        }
+    }
+
+    private static int getKey(UpstreamSocket socket, int transactionId) {
+        return socket.index << 16 | transactionId;
+    }
+
+    private static int readTransactionId(byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 8 | data[offset + 1] & 0xFF;
+    }
+
+    private static void writeTransactionId(byte[] data, int offset, int transactionId) {
+        data[offset] = (byte) (transactionId >> 8);
+        data[offset + 1] = (byte) transactionId;
+    }
+
+    /**
+     * This interface is a handler of the upstream DNS responses.
+     */
+    @FunctionalInterface
+    interface ResponseHandler {
+        /**
+         * Handle a response from an upstream server.
+         *
+         * @param requestHeader       The IP and UDP headers of the DNS query.
+         * @param requestHeaderLength The length of the query IP and UDP headers, {@code 0} if there is no client to answer.
+         * @param question            The key of the query question the response answers, {@code null} if unknown or if the response is an error without question.
+         * @param responsePayload     The DNS response, with the query transaction ID.
+         * @param responseLength      The DNS response length.
+         * @param latency             The time the server took to respond (in milliseconds).
+         */
+        void handle(ByteBuffer requestHeader, int requestHeaderLength, @Nullable String question, byte[] responsePayload, int responseLength, long latency);
+    }
+
+    /**
+     * This class is a protected socket of the pool with its poll descriptor.
+     */
+    static class UpstreamSocket implements Closeable {
+        private final int index;
+        private final DatagramSocket socket;
+        /*
+         * The socket file descriptor, duplicated once for polling and closed with the socket.
+         */
+        private final ParcelFileDescriptor fileDescriptor;
+        final StructPollfd pollFd;
+        private final long creationTime;
+        private int queryCount;
+        private long retirementTime;
+
+        private UpstreamSocket(int index, DatagramSocket socket, ParcelFileDescriptor fileDescriptor, long creationTime) {
+            this.index = index;
+            this.socket = socket;
+            this.fileDescriptor = fileDescriptor;
+            this.creationTime = creationTime;
+            this.pollFd = new StructPollfd();
+            this.pollFd.fd = fileDescriptor.getFileDescriptor();
+            this.pollFd.events = (short) OsConstants.POLLIN;
+            this.pollFd.userData = this;
+        }
+
+        @Override
+        public void close() {
+            FileHelper.closeOrWarn(this.fileDescriptor, TAG, "close: Cannot close socket file descriptor");
+            this.socket.close();
+        }
+    }
+}
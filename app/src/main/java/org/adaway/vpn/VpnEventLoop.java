@@ -0,0 +1,247 @@
+/*
+ * Derived from dns66:
+ * Copyright (C) 2016-2019 Julian Andres Klode <jak@jak-linux.org>
+ *
+ * Derived from AdBuster:
+ * Copyright (C) 2016 Daniel Brodie <dbrodie@gmail.com>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, version 3.
+ *
+ * Contributions shall also be provided under any later versions of the
+ * GPL.
+ */
+package org.adaway.vpn;
+
+import android.content.Context;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+import android.util.Log;
+
+import org.adaway.vpn.UpstreamSocketPool.UpstreamSocket;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * This class processes the VPN packets from a single thread polling the device and the upstream
+ * sockets: it reads the queries, classifies and forwards them, receives the upstream responses
+ * and writes all the answers to the device.<br>
+ * It is the alternative to {@link VpnPipeline}. An event loop runs once.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+class VpnEventLoop implements DnsPacketProxy.EventLoop {
+    private static final String TAG = "VpnEventLoop";
+    /* Index of the first upstream socket in the poll set, after the device and the block file descriptors */
+    private static final int FIRST_SOCKET_POLL_INDEX = 2;
+    // The forwarder of the allowed queries to the upstream DNS servers
+    private final DnsForwarder dnsForwarder;
+    /* Data to be written to the device */
+    private final PacketRing deviceWrites;
+    // The object where we actually handle packets.
+    private final DnsPacketProxy dnsPacketProxy;
+    // Watch dog that checks our connection is alive.
+    private final VpnWatchdog vpnWatchDog;
+    private final StructPollfd deviceFd = new StructPollfd();
+    private final StructPollfd blockFd = new StructPollfd();
+    /*
+     * The poll set: the device, the block file descriptor then the upstream sockets.
+     * It is only updated when the upstream socket pool opens or closes a socket.
+     */
+    private StructPollfd[] polls;
+    private int pollSocketGeneration;
+    private long packetCount;
+
+    /**
+     * Constructor.
+     *
+     * @param context         The context to initialize the DNS packet proxy with.
+     * @param dnsServerMapper The mapping between fake and real DNS server addresses.
+     * @param dnsForwarder    The forwarder of the allowed queries.
+     * @param deviceWrites    The ring of the packets to write to the device, the forwarder one.
+     * @param vpnWatchDog     The watchdog checking the connection is alive.
+     */
+    VpnEventLoop(Context context, DnsServerMapper dnsServerMapper, DnsForwarder dnsForwarder,
+                 PacketRing deviceWrites, VpnWatchdog vpnWatchDog) {
+        this.dnsForwarder = dnsForwarder;
+        this.deviceWrites = deviceWrites;
+        this.vpnWatchDog = vpnWatchDog;
+        this.dnsPacketProxy = new DnsPacketProxy(this, dnsServerMapper);
+        this.dnsPacketProxy.initialize(context);
+        this.polls = new StructPollfd[]{this.deviceFd, this.blockFd};
+        this.pollSocketGeneration = -1;
+    }
+
+    /**
+     * Get the number of packets read from the device.
+     *
+     * @return The number of packets read from the device.
+     */
+    long getPacketCount() {
+        return this.packetCount;
+    }
+
+    /**
+     * Run the event loop until told to stop.
+     *
+     * @param deviceFd The device file descriptor, in non blocking mode.
+     * @param blockFd  The file descriptor to poll to check VPN worker stop request.
+     * @throws ErrnoException                If polling failed.
+     * @throws VpnWorker.VpnNetworkException If a network error occurred.
+     */
+    void run(FileDescriptor deviceFd, FileDescriptor blockFd) throws ErrnoException, VpnWorker.VpnNetworkException {
+        ByteBuffer packet = ByteBuffer.allocate(VpnWorker.MAX_PACKET_SIZE);
+        while (doOne(deviceFd, blockFd, packet)) {
+        }
+    }
+
+    private boolean doOne(FileDescriptor deviceFileDescriptor, FileDescriptor blockFileDescriptor, ByteBuffer packet)
+            throws ErrnoException, VpnWorker.VpnNetworkException {
+        // Update poll FD on tunnel
+        StructPollfd deviceFd = this.deviceFd;
+        deviceFd.fd = deviceFileDescriptor;
+        deviceFd.events = (short) OsConstants.POLLIN;
+        if (!this.deviceWrites.isEmpty()) {
+            deviceFd.events |= (short) OsConstants.POLLOUT;
+        }
+        // Update poll FD on OS pipe for interruption on VPN worker stop
+        StructPollfd blockFd = this.blockFd;
+        blockFd.fd = blockFileDescriptor;
+        blockFd.events = (short) (OsConstants.POLLHUP | OsConstants.POLLERR);
+        // Update poll FDs on upstream sockets
+        updateUpstreamPolls();
+
+        // Wake up to expire the DNS queries even if there is no traffic
+        int watchdogTimeout = this.vpnWatchDog.getPollTimeout();
+        UpstreamSocketPool upstreamSocketPool = this.dnsForwarder.getUpstreamSocketPool();
+        int expirationTimeout = upstreamSocketPool.getPollTimeout(System.currentTimeMillis());
+        boolean expirationFirst = expirationTimeout >= 0 && (watchdogTimeout < 0 || expirationTimeout < watchdogTimeout);
+
+        int result = Os.poll(this.polls, expirationFirst ? expirationTimeout : watchdogTimeout);
+        upstreamSocketPool.expire(System.currentTimeMillis());
+        if (result == 0) {
+            if (!expirationFirst) {
+                this.vpnWatchDog.handleTimeout();
+            }
+            return true;
+        }
+        if (blockFd.revents != 0) {
+            Log.i(TAG, "Told to stop VPN");
+            return false;
+        }
+
+        // Need to do this before reading from the device, otherwise a new insertion there could
+        // invalidate one of the sockets we want to read from either due to size or time out
+        // constraints
+        checkForDnsResponse();
+        if ((deviceFd.revents & OsConstants.POLLIN) != 0) {
+            Log.d(TAG, "Read from device");
+            readPacketsFromDevice(deviceFileDescriptor, packet);
+        }
+        // Flush the responses of both the upstream servers and the device packets just read
+        if (!this.deviceWrites.isEmpty()) {
+            Log.d(TAG, "Write to device");
+            writeToDevice(deviceFileDescriptor);
+        }
+
+        return true;
+    }
+
+    private void updateUpstreamPolls() {
+        UpstreamSocketPool upstreamSocketPool = this.dnsForwarder.getUpstreamSocketPool();
+        int socketGeneration = upstreamSocketPool.getSocketGeneration();
+        if (this.pollSocketGeneration == socketGeneration) {
+            return;
+        }
+        this.pollSocketGeneration = socketGeneration;
+        int socketCount = upstreamSocketPool.getSocketCount();
+        this.polls = Arrays.copyOf(this.polls, FIRST_SOCKET_POLL_INDEX + socketCount);
+        for (int i = 0; i < socketCount; i++) {
+            this.polls[FIRST_SOCKET_POLL_INDEX + i] = upstreamSocketPool.getSocket(i).pollFd;
+        }
+    }
+
+    private void checkForDnsResponse() {
+        for (int i = FIRST_SOCKET_POLL_INDEX; i < this.polls.length; i++) {
+            StructPollfd pollFd = this.polls[i];
+            if ((pollFd.revents & OsConstants.POLLIN) != 0) {
+                Log.d(TAG, "Read from DNS socket");
+                try {
+                    UpstreamSocket socket = (UpstreamSocket) pollFd.userData;
+                    this.dnsForwarder.getUpstreamSocketPool().receive(socket);
+                } catch (IOException e) {
+                    Log.w(TAG, "checkForDnsResponse: Could not handle DNS response", e);
+                }
+            }
+        }
+    }
+
+    private void writeToDevice(FileDescriptor deviceFileDescriptor) throws VpnWorker.VpnNetworkException {
+        PacketRing deviceWrites = this.deviceWrites;
+        try {
+            for (int i = 0; i < VpnWorker.DEVICE_WRITE_BUDGET && !deviceWrites.isEmpty(); i++) {
+                Os.write(deviceFileDescriptor, deviceWrites.peekBuffer(), 0, deviceWrites.peekLength());
+                deviceWrites.remove();
+            }
+        } catch (ErrnoException e) {
+            // Wait for the device to be writable again
+            if (e.errno == OsConstants.EAGAIN) {
+                return;
+            }
+            throw new VpnWorker.VpnNetworkException("Outgoing VPN output stream closed", e);
+        } catch (InterruptedIOException e) {
+            throw new VpnWorker.VpnNetworkException("Outgoing VPN output stream closed", e);
+        }
+    }
+
+    private void readPacketsFromDevice(FileDescriptor deviceFileDescriptor, ByteBuffer packet) throws VpnWorker.VpnNetworkException {
+        try {
+            for (int i = 0; i < VpnWorker.DEVICE_READ_BUDGET; i++) {
+                // Read the outgoing packet from the device.
+                packet.clear();
+                int length = Os.read(deviceFileDescriptor, packet);
+                if (length == 0) {
+                    // TODO: Possibly change to exception
+                    Log.w(TAG, "Got empty packet!");
+                    return;
+                }
+                // Handle the packet in place as it is parsed before reading the next one
+                packet.flip();
+                this.packetCount++;
+                this.vpnWatchDog.handlePacket(length);
+                this.dnsPacketProxy.handleDnsRequest(packet);
+            }
+        } catch (ErrnoException e) {
+            // Stop when all the packets were read
+            if (e.errno == OsConstants.EAGAIN) {
+                return;
+            }
+            throw new VpnWorker.VpnNetworkException("Cannot read from device", e);
+        } catch (InterruptedIOException e) {
+            throw new VpnWorker.VpnNetworkException("Cannot read from device", e);
+        }
+    }
+
+    @Override
+    public void forwardPacket(ByteBuffer packet, int headerLength, InetAddress dnsAddress, DnsQuestion question) throws VpnWorker.VpnNetworkException {
+        this.dnsForwarder.forward(packet, headerLength, dnsAddress, question);
+    }
+
+    @Override
+    public ByteBuffer getDeviceWriteBuffer() {
+        return this.deviceWrites.claim();
+    }
+
+    @Override
+    public void queueDeviceWrite(int length) {
+        this.deviceWrites.commit(length);
+    }
+}
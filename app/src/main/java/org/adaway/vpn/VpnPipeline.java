@@ -0,0 +1,415 @@
+package org.adaway.vpn;
+
+import android.content.Context;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+import android.util.Log;
+
+import org.adaway.vpn.UpstreamSocketPool.UpstreamSocket;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class processes the VPN packets with a pipeline of threads connected by bounded lock-free
+ * single producer single consumer packet rings:
+ * <ul>
+ * <li>the device reader, the calling thread, dispatches the read packets to the lookup workers,</li>
+ * <li>the lookup workers classify the queries, answering the blocked and redirected ones and
+ * passing the allowed ones to the upstream loop,</li>
+ * <li>the upstream loop answers from the cache or forwards the queries, and receives the upstream
+ * responses,</li>
+ * <li>the device writer writes all the answers to the device.</li>
+ * </ul>
+ * A slow host lookup from the database only stalls its lookup worker. A pipeline runs once.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+class VpnPipeline {
+    private static final String TAG = "VpnPipeline";
+    /* Number of lookup worker threads */
+    private static final int LOOKUP_WORKER_COUNT = 2;
+    /* Maximum number of packets waiting in each ring between two stages */
+    private static final int RING_CAPACITY = 128;
+    /* Maximum time to wait for a stage thread to stop */
+    private static final long JOIN_TIMEOUT_MS = 2000;
+    /* Results of a device write attempt */
+    private static final int WRITE_DONE = 0;
+    private static final int WRITE_PENDING = 1;
+    private static final int WRITE_BLOCKED = 2;
+    private final DnsForwarder dnsForwarder;
+    /* The answers of the upstream loop to be written to the device */
+    private final PacketRing forwarderWrites;
+    private final VpnWatchdog vpnWatchDog;
+    private final LookupWorker[] lookupWorkers;
+    private final WakeUpPipe readerWakeUp;
+    private final WakeUpPipe upstreamWakeUp;
+    private final WakeUpPipe writerWakeUp;
+    private volatile boolean running;
+    private volatile Exception failure;
+    private int nextLookupWorker;
+    private long packetCount;
+
+    /**
+     * Constructor.
+     *
+     * @param context         The context to initialize the lookup workers with.
+     * @param dnsServerMapper The mapping between fake and real DNS server addresses.
+     * @param dnsForwarder    The forwarder of the allowed queries, only used from the upstream loop.
+     * @param forwarderWrites The ring the forwarder writes its answers to.
+     * @param vpnWatchDog     The watchdog checking the connection is alive.
+     * @throws ErrnoException If the wake up pipes could not be created.
+     */
+    VpnPipeline(Context context, DnsServerMapper dnsServerMapper, DnsForwarder dnsForwarder,
+                PacketRing forwarderWrites, VpnWatchdog vpnWatchDog) throws ErrnoException {
+        this.dnsForwarder = dnsForwarder;
+        this.forwarderWrites = forwarderWrites;
+        this.vpnWatchDog = vpnWatchDog;
+        this.lookupWorkers = new LookupWorker[LOOKUP_WORKER_COUNT];
+        for (int i = 0; i < LOOKUP_WORKER_COUNT; i++) {
+            this.lookupWorkers[i] = new LookupWorker(i, context, dnsServerMapper);
+        }
+        this.readerWakeUp = new WakeUpPipe();
+        this.upstreamWakeUp = new WakeUpPipe();
+        this.writerWakeUp = new WakeUpPipe();
+    }
+
+    /**
+     * Get the number of packets read from the device.
+     *
+     * @return The number of packets read from the device.
+     */
+    long getPacketCount() {
+        return this.packetCount;
+    }
+
+    /**
+     * Run the pipeline until told to stop or a stage fails.
+     *
+     * @param deviceFd The device file descriptor, in non blocking mode.
+     * @param blockFd  The file descriptor to poll to check VPN worker stop request.
+     * @throws ErrnoException                If polling failed.
+     * @throws VpnWorker.VpnNetworkException If a network error occurred.
+     */
+    void run(FileDescriptor deviceFd, FileDescriptor blockFd) throws ErrnoException, VpnWorker.VpnNetworkException {
+        this.running = true;
+        Thread upstreamThread = new Thread(this::runUpstreamLoop, "VpnUpstream");
+        Thread writerThread = new Thread(() -> runDeviceWriter(deviceFd), "VpnWriter");
+        for (LookupWorker lookupWorker : this.lookupWorkers) {
+            lookupWorker.thread.start();
+        }
+        upstreamThread.start();
+        writerThread.start();
+        try {
+            readDevice(deviceFd, blockFd);
+        } catch (ErrnoException | VpnWorker.VpnNetworkException | RuntimeException e) {
+            fail(e);
+        } finally {
+            stop();
+            boolean stopped = join(upstreamThread) & join(writerThread);
+            for (LookupWorker lookupWorker : this.lookupWorkers) {
+                stopped &= join(lookupWorker.thread);
+            }
+            // Keep the pipes open if a stage may still wake up another one
+            if (stopped) {
+                this.readerWakeUp.close();
+                this.upstreamWakeUp.close();
+                this.writerWakeUp.close();
+            } else {
+                Log.w(TAG, "run: Leaking wake up pipes of stage threads still running");
+            }
+        }
+        Exception failure = this.failure;
+        if (failure instanceof ErrnoException) {
+            throw (ErrnoException) failure;
+        } else if (failure instanceof VpnWorker.VpnNetworkException) {
+            throw (VpnWorker.VpnNetworkException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure != null) {
+            throw new VpnWorker.VpnNetworkException("VPN pipeline failed", failure);
+        }
+    }
+
+    private void fail(Exception exception) {
+        if (this.failure == null) {
+            this.failure = exception;
+        }
+        stop();
+    }
+
+    private void stop() {
+        this.running = false;
+        this.readerWakeUp.wakeUp();
+        this.upstreamWakeUp.wakeUp();
+        this.writerWakeUp.wakeUp();
+        for (LookupWorker lookupWorker : this.lookupWorkers) {
+            LockSupport.unpark(lookupWorker.thread);
+        }
+    }
+
+    private static boolean join(Thread thread) {
+        try {
+            thread.join(JOIN_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Log.w(TAG, "join: Interrupted while joining " + thread.getName(), e);
+            Thread.currentThread().interrupt();
+        }
+        return !thread.isAlive();
+    }
+
+    private void readDevice(FileDescriptor deviceFd, FileDescriptor blockFd) throws ErrnoException, VpnWorker.VpnNetworkException {
+        StructPollfd devicePoll = new StructPollfd();
+        devicePoll.fd = deviceFd;
+        devicePoll.events = (short) OsConstants.POLLIN;
+        StructPollfd blockPoll = new StructPollfd();
+        blockPoll.fd = blockFd;
+        blockPoll.events = (short) (OsConstants.POLLHUP | OsConstants.POLLERR);
+        StructPollfd[] polls = {devicePoll, blockPoll, this.readerWakeUp.pollFd};
+        // The buffer to drain the device when all the lookup workers are overloaded
+        ByteBuffer droppedPacket = ByteBuffer.allocate(VpnWorker.MAX_PACKET_SIZE);
+        while (this.running) {
+            Os.poll(polls, -1);
+            if (blockPoll.revents != 0) {
+                Log.i(TAG, "Told to stop VPN");
+                return;
+            }
+            if ((devicePoll.revents & OsConstants.POLLIN) != 0) {
+                readPackets(deviceFd, droppedPacket);
+            }
+        }
+    }
+
+    private void readPackets(FileDescriptor deviceFd, ByteBuffer droppedPacket) throws VpnWorker.VpnNetworkException {
+        LookupWorker[] lookupWorkers = this.lookupWorkers;
+        try {
+            for (int i = 0; i < VpnWorker.DEVICE_READ_BUDGET; i++) {
+                // Dispatch the packets to the lookup workers in turn, skipping the full ones
+                LookupWorker lookupWorker = null;
+                ByteBuffer packet = null;
+                for (int j = 0; j < lookupWorkers.length && packet == null; j++) {
+                    lookupWorker = lookupWorkers[(this.nextLookupWorker + j) % lookupWorkers.length];
+                    packet = lookupWorker.requests.claim();
+                }
+                this.nextLookupWorker = (this.nextLookupWorker + 1) % lookupWorkers.length;
+                if (packet == null) {
+                    droppedPacket.clear();
+                    Os.read(deviceFd, droppedPacket);
+                    Log.w(TAG, "readPackets: Dropping packet as too many packets are waiting for lookup");
+                    continue;
+                }
+                int length = Os.read(deviceFd, packet);
+                if (length == 0) {
+                    Log.w(TAG, "Got empty packet!");
+                    return;
+                }
+                this.packetCount++;
+                this.vpnWatchDog.handlePacket(length);
+                lookupWorker.requests.commit(length);
+                lookupWorker.wakeUp();
+            }
+        } catch (ErrnoException e) {
+            // Stop when all the packets were read
+            if (e.errno == OsConstants.EAGAIN) {
+                return;
+            }
+            throw new VpnWorker.VpnNetworkException("Cannot read from device", e);
+        } catch (InterruptedIOException e) {
+            throw new VpnWorker.VpnNetworkException("Cannot read from device", e);
+        }
+    }
+
+    private void runUpstreamLoop() {
+        UpstreamSocketPool upstreamSocketPool = this.dnsForwarder.getUpstreamSocketPool();
+        // The poll set: the wake up pipe then the upstream sockets
+        StructPollfd[] polls = {this.upstreamWakeUp.pollFd};
+        int pollSocketGeneration = upstreamSocketPool.getSocketGeneration();
+        try {
+            while (this.running) {
+                // Forward the allowed queries of the lookup workers
+                for (LookupWorker lookupWorker : this.lookupWorkers) {
+                    PacketRing forwards = lookupWorker.forwards;
+                    while (!forwards.isEmpty()) {
+                        this.dnsForwarder.forward(forwards.peek());
+                        forwards.remove();
+                    }
+                }
+                if (!this.forwarderWrites.isEmpty()) {
+                    this.writerWakeUp.wakeUp();
+                }
+                // Update poll FDs on upstream sockets
+                int socketGeneration = upstreamSocketPool.getSocketGeneration();
+                if (pollSocketGeneration != socketGeneration) {
+                    pollSocketGeneration = socketGeneration;
+                    int socketCount = upstreamSocketPool.getSocketCount();
+                    polls = Arrays.copyOf(polls, 1 + socketCount);
+                    for (int i = 0; i < socketCount; i++) {
+                        polls[1 + i] = upstreamSocketPool.getSocket(i).pollFd;
+                    }
+                }
+                // Wake up to expire the DNS queries even if there is no traffic
+                int watchdogTimeout = this.vpnWatchDog.getPollTimeout();
+                int expirationTimeout = upstreamSocketPool.getPollTimeout(System.currentTimeMillis());
+                boolean expirationFirst = expirationTimeout >= 0 && (watchdogTimeout < 0 || expirationTimeout < watchdogTimeout);
+                int result = Os.poll(polls, expirationFirst ? expirationTimeout : watchdogTimeout);
+                upstreamSocketPool.expire(System.currentTimeMillis());
+                if (result == 0) {
+                    if (!expirationFirst) {
+                        this.vpnWatchDog.handleTimeout();
+                    }
+                    continue;
+                }
+                if (this.upstreamWakeUp.pollFd.revents != 0) {
+                    this.upstreamWakeUp.clear();
+                }
+                for (int i = 1; i < polls.length; i++) {
+                    if ((polls[i].revents & OsConstants.POLLIN) != 0) {
+                        try {
+                            upstreamSocketPool.receive((UpstreamSocket) polls[i].userData);
+                        } catch (IOException e) {
+                            Log.w(TAG, "runUpstreamLoop: Could not handle DNS response", e);
+                        }
+                    }
+                }
+                if (!this.forwarderWrites.isEmpty()) {
+                    this.writerWakeUp.wakeUp();
+                }
+            }
+        } catch (ErrnoException | VpnWorker.VpnNetworkException | RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    private void runDeviceWriter(FileDescriptor deviceFd) {
+        PacketRing[] rings = new PacketRing[this.lookupWorkers.length + 1];
+        for (int i = 0; i < this.lookupWorkers.length; i++) {
+            rings[i] = this.lookupWorkers[i].responses;
+        }
+        rings[this.lookupWorkers.length] = this.forwarderWrites;
+        StructPollfd devicePoll = new StructPollfd();
+        devicePoll.fd = deviceFd;
+        devicePoll.events = (short) OsConstants.POLLOUT;
+        StructPollfd[] idlePolls = {this.writerWakeUp.pollFd};
+        StructPollfd[] blockedPolls = {this.writerWakeUp.pollFd, devicePoll};
+        try {
+            while (this.running) {
+                int result = writeToDevice(deviceFd, rings);
+                if (result == WRITE_PENDING) {
+                    continue;
+                }
+                // Wait for new packets, or for the device to be writable again
+                Os.poll(result == WRITE_BLOCKED ? blockedPolls : idlePolls, -1);
+                if (this.writerWakeUp.pollFd.revents != 0) {
+                    this.writerWakeUp.clear();
+                }
+            }
+        } catch (ErrnoException | VpnWorker.VpnNetworkException | RuntimeException e) {
+            fail(e);
+        }
+    }
+
+    private static int writeToDevice(FileDescriptor deviceFd, PacketRing[] rings) throws VpnWorker.VpnNetworkException {
+        boolean pending = false;
+        try {
+            for (PacketRing ring : rings) {
+                for (int i = 0; i < VpnWorker.DEVICE_WRITE_BUDGET && !ring.isEmpty(); i++) {
+                    Os.write(deviceFd, ring.peekBuffer(), 0, ring.peekLength());
+                    ring.remove();
+                }
+                pending |= !ring.isEmpty();
+            }
+        } catch (ErrnoException e) {
+            // Wait for the device to be writable again
+            if (e.errno == OsConstants.EAGAIN) {
+                return WRITE_BLOCKED;
+            }
+            throw new VpnWorker.VpnNetworkException("Outgoing VPN output stream closed", e);
+        } catch (InterruptedIOException e) {
+            throw new VpnWorker.VpnNetworkException("Outgoing VPN output stream closed", e);
+        }
+        return pending ? WRITE_PENDING : WRITE_DONE;
+    }
+
+    /**
+     * This class is a lookup worker, classifying the queries with its own DNS packet proxy.
+     */
+    private class LookupWorker implements Runnable, DnsPacketProxy.EventLoop {
+        /* The packets read from the device, from the device reader */
+        private final PacketRing requests;
+        /* The answers to write to the device, to the device writer */
+        private final PacketRing responses;
+        /* The allowed queries to forward, to the upstream loop */
+        private final PacketRing forwards;
+        private final DnsPacketProxy dnsPacketProxy;
+        private final Thread thread;
+        private volatile boolean waiting;
+
+        private LookupWorker(int index, Context context, DnsServerMapper dnsServerMapper) {
+            this.requests = new PacketRing(RING_CAPACITY, VpnWorker.MAX_RESPONSE_PACKET_SIZE);
+            this.responses = new PacketRing(RING_CAPACITY, VpnWorker.MAX_RESPONSE_PACKET_SIZE);
+            this.forwards = new PacketRing(RING_CAPACITY, VpnWorker.MAX_RESPONSE_PACKET_SIZE);
+            this.dnsPacketProxy = new DnsPacketProxy(this, dnsServerMapper);
+            this.dnsPacketProxy.initialize(context);
+            this.thread = new Thread(this, "VpnLookup" + index);
+        }
+
+        @Override
+        public void run() {
+            PacketRing requests = this.requests;
+            try {
+                while (VpnPipeline.this.running) {
+                    if (requests.isEmpty()) {
+                        // Publish waiting state before checking again to not miss a wake up
+                        this.waiting = true;
+                        if (requests.isEmpty() && VpnPipeline.this.running) {
+                            LockSupport.park(this);
+                        }
+                        this.waiting = false;
+                        continue;
+                    }
+                    this.dnsPacketProxy.handleDnsRequest(requests.peek());
+                    requests.remove();
+                }
+            } catch (VpnWorker.VpnNetworkException | RuntimeException e) {
+                fail(e);
+            }
+        }
+
+        private void wakeUp() {
+            if (this.waiting) {
+                LockSupport.unpark(this.thread);
+            }
+        }
+
+        @Override
+        public void forwardPacket(ByteBuffer packet, int headerLength, InetAddress dnsAddress, DnsQuestion question) {
+            // The upstream loop reads the packet again as the question is only valid for this call
+            ByteBuffer forward = this.forwards.claim();
+            if (forward == null) {
+                Log.w(TAG, "forwardPacket: Dropping query as too many queries are waiting to be forwarded");
+                return;
+            }
+            forward.put(packet.array(), packet.arrayOffset(), packet.limit());
+            this.forwards.commit(packet.limit());
+            VpnPipeline.this.upstreamWakeUp.wakeUp();
+        }
+
+        @Override
+        public ByteBuffer getDeviceWriteBuffer() {
+            return this.responses.claim();
+        }
+
+        @Override
+        public void queueDeviceWrite(int length) {
+            this.responses.commit(length);
+            VpnPipeline.this.writerWakeUp.wakeUp();
+        }
+    }
+}
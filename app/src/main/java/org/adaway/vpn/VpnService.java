@@ -68,6 +68,10 @@ public class VpnService extends android.net.VpnService {
     public static final String VPN_UPDATE_STATUS_INTENT = "org.jak_linux.dns66.VPN_UPDATE_STATUS";
     public static final String VPN_UPDATE_STATUS_EXTRA = "VPN_STATUS";
     private static final String TAG = "VpnService";
+    /**
+     * The worker of the last started VPN service, to report its statistics.
+     */
+    private static volatile VpnWorker lastWorker;
 
     private final Handler handler;
     private final BroadcastReceiver connectivityChangedReceiver;
@@ -136,6 +140,26 @@ public class VpnService extends android.net.VpnService {
         context.startService(intent);
     }
 
+    /**
+     * Get the ratio of the allowed DNS queries answered from the cache since the VPN service started.
+     *
+     * @return The ratio of the allowed DNS queries answered from the cache, from {@code 0} to {@code 1}.
+     */
+    public static double getDnsCacheHitRatio() {
+        VpnWorker worker = lastWorker;
+        return worker == null ? 0 : worker.getCacheHitRatio();
+    }
+
+    /**
+     * Get the upstream latency saved by answering DNS queries from the cache since the VPN service started.
+     *
+     * @return The upstream latency saved (in milliseconds).
+     */
+    public static long getDnsCacheLatencySaved() {
+        VpnWorker worker = lastWorker;
+        return worker == null ? 0 : worker.getCacheLatencySaved();
+    }
+
     private static boolean checkAnyNetworkVpnCapability(Context context) {
         ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
         if (connectivityManager == null) {
@@ -189,6 +213,7 @@ public class VpnService extends android.net.VpnService {
         PreferenceHelper.setVpnServiceStatus(this, RUNNING);
         updateVpnStatus(STARTING);
         registerReceiver(this.connectivityChangedReceiver, new IntentFilter(CONNECTIVITY_ACTION));
+        lastWorker = this.vpnWorker;
         restartWorker();
     }
 
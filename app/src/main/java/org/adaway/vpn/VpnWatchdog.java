@@ -56,7 +56,8 @@ class VpnWatchdog {
 
     // Information about when packets where received.
     private long lastPacketSent;
-    private long lastPacketReceived;
+    // Updated from the VPN thread reading the device
+    private volatile long lastPacketReceived;
 
     private boolean enabled;
     private DatagramPacket checkAlivePacket;
@@ -149,13 +150,13 @@ class VpnWatchdog {
     /**
      * Handles an incoming packet on a device.
      *
-     * @param packetData The data of the packet
+     * @param packetLength The length of the packet
      */
-    void handlePacket(byte[] packetData) {
+    void handlePacket(int packetLength) {
         if (!this.enabled) {
             return;
         }
-        Log.d(TAG, "handlePacket: Received packet of length " + packetData.length);
+        Log.d(TAG, "handlePacket: Received packet of length " + packetLength);
         this.lastPacketReceived = System.currentTimeMillis();
     }
 
@@ -36,55 +36,46 @@ import android.os.ParcelFileDescriptor;
 import android.system.ErrnoException;
 import android.system.Os;
 import android.system.OsConstants;
-import android.system.StructPollfd;
 import android.util.Log;
 
-import androidx.annotation.NonNull;
-
 import org.adaway.helper.PreferenceHelper;
 import org.adaway.ui.home.HomeActivity;
-import org.pcap4j.packet.IpPacket;
 
 import java.io.FileDescriptor;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Queue;
 import java.util.Set;
 import java.util.function.Consumer;
 
-class VpnWorker implements DnsPacketProxy.EventLoop {
+class VpnWorker {
     private static final String TAG = "VpnWorker";
     /**
      * Maximum packet size is constrained by the MTU, which is given as a signed short.
      */
-    private static final int MAX_PACKET_SIZE = Short.MAX_VALUE;
+    static final int MAX_PACKET_SIZE = Short.MAX_VALUE;
+    /* Maximum number of packets to read from the device per wake up, to leave room for the other sockets */
+    static final int DEVICE_READ_BUDGET = 64;
+    /* Maximum number of packets to write to the device per wake up */
+    static final int DEVICE_WRITE_BUDGET = 64;
+    /* Maximum number of packets waiting to be written to the device */
+    private static final int DEVICE_WRITE_CAPACITY = 128;
+    /* Maximum size of a DNS response packet: the IP and UDP headers then the DNS message */
+    static final int MAX_RESPONSE_PACKET_SIZE = UdpPacketCodec.MAXIMUM_HEADER_LENGTH + UpstreamSocketPool.MAXIMUM_RESPONSE_SIZE;
     private static final int MIN_RETRY_TIME = 5;
     private static final int MAX_RETRY_TIME = 2 * 60;
     /* If we had a successful connection for that long, reset retry timeout */
     private static final long RETRY_RESET_SEC = 60;
-    /* Maximum number of responses we want to wait for */
-    private static final int DNS_MAXIMUM_WAITING = 1024;
-    private static final long DNS_TIMEOUT_SEC = 10;
     private final android.net.VpnService vpnService;
     private final VpnStatusNotifier statusNotifier;
     /* Data to be written to the device */
-    private final Queue<byte[]> deviceWrites = new LinkedList<>();
-    // HashMap that keeps an upper limit of packets
-    private final WospList dnsIn = new WospList();
+    private final PacketRing deviceWrites = new PacketRing(DEVICE_WRITE_CAPACITY, MAX_RESPONSE_PACKET_SIZE);
+    // The forwarder of the allowed queries to the upstream DNS servers
+    private final DnsForwarder dnsForwarder;
     // The mapping between fake and real dns addresses
     private final DnsServerMapper dnsServerMapper;
-    // The object where we actually handle packets.
-    private final DnsPacketProxy dnsPacketProxy;
     // Watch dog that checks our connection is alive.
     private final VpnWatchdog vpnWatchDog;
 
@@ -105,7 +96,7 @@ class VpnWorker implements DnsPacketProxy.EventLoop {
         this.vpnService = vpnService;
         this.statusNotifier = statusNotifier;
         this.dnsServerMapper = new DnsServerMapper(this.vpnService);
-        this.dnsPacketProxy = new DnsPacketProxy(this, this.dnsServerMapper);
+        this.dnsForwarder = new DnsForwarder(this.vpnService, this.dnsServerMapper, this.deviceWrites);
         this.vpnWatchDog = new VpnWatchdog();
     }
 
@@ -138,10 +129,64 @@ class VpnWorker implements DnsPacketProxy.EventLoop {
         }
     }
 
+    /**
+     * Get the number of DNS queries waiting for an upstream response.
+     *
+     * @return The number of DNS queries waiting for an upstream response.
+     */
+    int getInFlightQueryCount() {
+        return this.dnsForwarder.getUpstreamSocketPool().getInFlightCount();
+    }
+
+    /**
+     * Get the number of DNS queries dropped without upstream response.
+     *
+     * @return The number of DNS queries dropped without upstream response.
+     */
+    long getQueryTimeoutCount() {
+        return this.dnsForwarder.getUpstreamSocketPool().getTimeoutCount();
+    }
+
+    /**
+     * Get the number of DNS queries answered with the response of an identical query in flight.
+     *
+     * @return The number of DNS queries answered with the response of an identical query in flight.
+     */
+    long getCoalescedQueryCount() {
+        return this.dnsForwarder.getUpstreamSocketPool().getCoalescedCount();
+    }
+
+    /**
+     * Get the number of DNS queries sent again to another upstream server.
+     *
+     * @return The number of DNS queries sent again to another upstream server.
+     */
+    long getHedgedQueryCount() {
+        return this.dnsForwarder.getUpstreamSocketPool().getHedgedCount();
+    }
+
+    /**
+     * Get the ratio of the allowed DNS queries answered from the cache.
+     *
+     * @return The ratio of the allowed DNS queries answered from the cache, from {@code 0} to {@code 1}.
+     */
+    double getCacheHitRatio() {
+        return this.dnsForwarder.getCacheHitRatio();
+    }
+
+    /**
+     * Get the upstream latency saved by answering DNS queries from the cache.
+     *
+     * @return The upstream latency saved (in milliseconds).
+     */
+    long getCacheLatencySaved() {
+        return this.dnsForwarder.getCacheLatencySaved();
+    }
+
     private void work() {
         Log.i(TAG, "Starting");
         // Initialize context
-        this.dnsPacketProxy.initialize(this.vpnService);
+        this.dnsForwarder.initialize(PreferenceHelper.getVpnServeStaleEnabled(this.vpnService));
         // Initialize the watchdog
         this.vpnWatchDog.initialize(PreferenceHelper.getVpnWatchdogEnabled(this.vpnService));
 
@@ -194,8 +239,9 @@ class VpnWorker implements DnsPacketProxy.EventLoop {
     }
 
     private void runVpn() throws IOException, ErrnoException, VpnNetworkException {
-        // Allocate the buffer for a single packet.
-        byte[] packet = new byte[MAX_PACKET_SIZE];
+        VpnPipeline pipeline = null;
+        VpnEventLoop eventLoop = null;
+        long connectTime = 0;
 
         // A pipe we can interrupt the poll() call with by closing the interruptFd end
         FileDescriptor[] pipes = Os.pipe();
@@ -203,164 +249,36 @@ class VpnWorker implements DnsPacketProxy.EventLoop {
         this.mBlockFd = pipes[1];
 
         // Authenticate and configure the virtual network interface.
-        try (ParcelFileDescriptor pfd = configure();
-             // Read and write views of the tunnel device
-             FileInputStream inputStream = new FileInputStream(pfd.getFileDescriptor());
-             FileOutputStream outputStream = new FileOutputStream(pfd.getFileDescriptor())) {
+        try (ParcelFileDescriptor pfd = configure()) {
+            FileDescriptor deviceFileDescriptor = pfd.getFileDescriptor();
 
             // Now we are connected. Set the flag and show the message.
             this.statusNotifier.accept(RUNNING);
 
             // We keep forwarding packets till something goes wrong.
-            while (doOne(inputStream, outputStream, packet)) {
+            connectTime = System.currentTimeMillis();
+            if (PreferenceHelper.getVpnPipelineEnabled(this.vpnService)) {
+                pipeline = new VpnPipeline(this.vpnService, this.dnsServerMapper, this.dnsForwarder, this.deviceWrites, this.vpnWatchDog);
+                pipeline.run(deviceFileDescriptor, this.mBlockFd);
+            } else {
+                eventLoop = new VpnEventLoop(this.vpnService, this.dnsServerMapper, this.dnsForwarder, this.deviceWrites, this.vpnWatchDog);
+                eventLoop.run(deviceFileDescriptor, this.mBlockFd);
             }
         } finally {
+            if (connectTime > 0) {
+                long packetCount = pipeline != null ? pipeline.getPacketCount() : eventLoop != null ? eventLoop.getPacketCount() : 0;
+                long duration = Math.max(1, System.currentTimeMillis() - connectTime);
+                Log.i(TAG, (pipeline == null ? "Single thread: " : "Pipeline: ") + packetCount + " packets read in " + duration + "ms");
+            }
+            Log.i(TAG, "DNS queries in flight: " + getInFlightQueryCount() + ", timed out: " + getQueryTimeoutCount() + ", coalesced: " + getCoalescedQueryCount() + ", hedged: " + getHedgedQueryCount());
+            Log.i(TAG, "DNS servers: " + this.dnsServerMapper.getServerStats());
+            Log.i(TAG, "DNS cache hit ratio: " + getCacheHitRatio() + ", latency saved: " + getCacheLatencySaved() + "ms");
+            this.dnsForwarder.getUpstreamSocketPool().close();
             this.mBlockFd = FileHelper.closeOrWarn(mBlockFd, TAG, "runVpn: Could not close blockFd");
             this.mInterruptFd = FileHelper.closeOrWarn(mInterruptFd, TAG, "runVpn: Could not close interruptFd");
         }
     }
 
-    private boolean doOne(FileInputStream inputStream, FileOutputStream fileOutputStream, byte[] packet)
-            throws IOException, ErrnoException, VpnNetworkException {
-        // Create poll FD on tunnel
-        StructPollfd deviceFd = new StructPollfd();
-        deviceFd.fd = inputStream.getFD();
-        deviceFd.events = (short) OsConstants.POLLIN;
-        if (!deviceWrites.isEmpty()) {
-            deviceFd.events |= (short) OsConstants.POLLOUT;
-        }
-        // Create poll FD on OS pipe for interruption on VPN worker stop
-        StructPollfd blockFd = new StructPollfd();
-        blockFd.fd = mBlockFd;
-        blockFd.events = (short) (OsConstants.POLLHUP | OsConstants.POLLERR);
-        // Create poll FD on each DNS query socket
-        StructPollfd[] polls = new StructPollfd[2 + this.dnsIn.size()];
-        polls[0] = deviceFd;
-        polls[1] = blockFd;
-        {
-            int i = 2;
-            for (WaitingOnSocketPacket wosp : this.dnsIn) {
-                StructPollfd pollFd = new StructPollfd();
-                pollFd.fd = ParcelFileDescriptor.fromDatagramSocket(wosp.socket).getFileDescriptor();
-                pollFd.events = (short) OsConstants.POLLIN;
-                polls[i] = pollFd;
-                i++;
-            }
-        }
-
-        Log.d(TAG, "doOne: Polling " + polls.length + " file descriptors");
-        int result = Os.poll(polls, this.vpnWatchDog.getPollTimeout());
-        if (result == 0) {
-            this.vpnWatchDog.handleTimeout();
-            return true;
-        }
-        if (blockFd.revents != 0) {
-            Log.i(TAG, "Told to stop VPN");
-            return false;
-        }
-
-        // Need to do this before reading from the device, otherwise a new insertion there could
-        // invalidate one of the sockets we want to read from either due to size or time out
-        // constraints
-        checkForDnsResponse(polls);
-        if ((deviceFd.revents & OsConstants.POLLOUT) != 0) {
-            Log.d(TAG, "Write to device");
-            writeToDevice(fileOutputStream);
-        }
-        if ((deviceFd.revents & OsConstants.POLLIN) != 0) {
-            Log.d(TAG, "Read from device");
-            readPacketFromDevice(inputStream, packet);
-        }
-
-        return true;
-    }
-
-    private void checkForDnsResponse(StructPollfd[] polls) {
-        int i = 2;
-        Iterator<WaitingOnSocketPacket> iterator = dnsIn.iterator();
-        while (iterator.hasNext()) {
-            WaitingOnSocketPacket wosp = iterator.next();
-            if ((polls[i].revents & OsConstants.POLLIN) != 0) {
-                Log.d(TAG, "Read from DNS socket" + wosp.socket);
-                iterator.remove();
-                try {
-                    handleRawDnsResponse(wosp);
-                } catch (IOException e) {
-                    Log.w(TAG, "checkForDnsResponse: Could not handle DNS response", e);
-                }
-            }
-            i++;
-        }
-    }
-
-    private void writeToDevice(FileOutputStream fileOutputStream) throws VpnNetworkException {
-        try {
-            byte[] ipPacketData = deviceWrites.poll();
-            if (ipPacketData != null) {
-                fileOutputStream.write(ipPacketData);
-            }
-        } catch (IOException e) {
-            // TODO: Make this more specific, only for: "File descriptor closed"
-            throw new VpnNetworkException("Outgoing VPN output stream closed", e);
-        }
-    }
-
-    private void readPacketFromDevice(FileInputStream inputStream, byte[] packet) throws VpnNetworkException {
-        try {
-            // Read the outgoing packet from the input stream.
-            int length = inputStream.read(packet);
-            if (length == 0) {
-                // TODO: Possibly change to exception
-                Log.w(TAG, "Got empty packet!");
-                return;
-            }
-            final byte[] readPacket = Arrays.copyOfRange(packet, 0, length);
-
-            vpnWatchDog.handlePacket(readPacket);
-            dnsPacketProxy.handleDnsRequest(readPacket);
-        } catch (IOException e) {
-            throw new VpnNetworkException("Cannot read from device", e);
-        }
-    }
-
-    public void forwardPacket(DatagramPacket outPacket, IpPacket parsedPacket) throws VpnNetworkException {
-        DatagramSocket dnsSocket = null;
-        try {
-            // Packets to be sent to the real DNS server will need to be protected from the VPN
-            dnsSocket = new DatagramSocket();
-
-            vpnService.protect(dnsSocket);
-
-            dnsSocket.send(outPacket);
-
-            if (parsedPacket != null)
-                dnsIn.add(new WaitingOnSocketPacket(dnsSocket, parsedPacket));
-            else
-                FileHelper.closeOrWarn(dnsSocket, TAG, "handleDnsRequest: Cannot close socket in error");
-        } catch (IOException e) {
-            FileHelper.closeOrWarn(dnsSocket, TAG, "handleDnsRequest: Cannot close socket in error");
-            if (e.getCause() instanceof ErrnoException) {
-                ErrnoException errnoExc = (ErrnoException) e.getCause();
-                if ((errnoExc.errno == OsConstants.ENETUNREACH) || (errnoExc.errno == OsConstants.EPERM)) {
-                    throw new VpnNetworkException("Cannot send message:", e);
-                }
-            }
-            Log.w(TAG, "handleDnsRequest: Could not send packet to upstream", e);
-        }
-    }
-
-    private void handleRawDnsResponse(WaitingOnSocketPacket wosp) throws IOException {
-        byte[] datagramData = new byte[1024];
-        DatagramPacket replyPacket = new DatagramPacket(datagramData, datagramData.length);
-        wosp.socket.receive(replyPacket);
-        wosp.socket.close();
-        dnsPacketProxy.handleDnsResponse(wosp.packet, datagramData);
-    }
-
-    public void queueDeviceWrite(IpPacket ipOutPacket) {
-        deviceWrites.add(ipOutPacket.getRawData());
-    }
-
     private void configurePackages(VpnService.Builder builder) {
         PackageManager packageManager = this.vpnService.getPackageManager();
 
@@ -425,7 +343,8 @@ class VpnWorker implements DnsPacketProxy.EventLoop {
         InetAddress address = this.dnsServerMapper.configure(builder);
         this.vpnWatchDog.setTarget(address);
 
-        builder.setBlocking(true);
+        // Use non blocking mode to drain the device on each poll wake up
+        builder.setBlocking(false);
 
         // Allow applications to bypass the VPN
         builder.allowBypass();
@@ -470,55 +389,4 @@ class VpnWorker implements DnsPacketProxy.EventLoop {
         }
 
     }
-
-    /**
-     * Helper class holding a socket, the packet we are waiting the answer for, and a time
-     */
-    private static class WaitingOnSocketPacket {
-        final DatagramSocket socket;
-        final IpPacket packet;
-        private final long time;
-
-        WaitingOnSocketPacket(DatagramSocket socket, IpPacket packet) {
-            this.socket = socket;
-            this.packet = packet;
-            this.time = System.currentTimeMillis();
-        }
-
-        long ageSeconds() {
-            return (System.currentTimeMillis() - time) / 1000;
-        }
-    }
-
-    /**
-     * Queue of WaitingOnSocketPacket, bound on time and space.
-     */
-    private static class WospList implements Iterable<WaitingOnSocketPacket> {
-        private final LinkedList<WaitingOnSocketPacket> list = new LinkedList<>();
-
-        void add(WaitingOnSocketPacket wosp) {
-            if (list.size() > DNS_MAXIMUM_WAITING) {
-                Log.d(TAG, "Dropping socket due to space constraints: " + list.element().socket);
-                list.element().socket.close();
-                list.remove();
-            }
-            while (!list.isEmpty() && list.element().ageSeconds() > DNS_TIMEOUT_SEC) {
-                Log.d(TAG, "Timeout on socket " + list.element().socket);
-                list.element().socket.close();
-                list.remove();
-            }
-            list.add(wosp);
-        }
-
-        @NonNull
-        public Iterator<WaitingOnSocketPacket> iterator() {
-            return list.iterator();
-        }
-
-        int size() {
-            return list.size();
-        }
-
-    }
-
 }
@@ -0,0 +1,77 @@
+package org.adaway.vpn;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.InterruptedIOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * This class is a pipe to wake up a thread waiting in poll() from other threads.<br>
+ * At most one byte is pending in the pipe so waking up a thread that is already woken up does not
+ * cost a system call.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+class WakeUpPipe implements Closeable {
+    private static final String TAG = "WakeUpPipe";
+    private static final byte[] WAKE_UP = {1};
+    private final FileDescriptor readFd;
+    private final FileDescriptor writeFd;
+    private final AtomicBoolean pending;
+    private final byte[] readBuffer;
+    /**
+     * The poll descriptor of the pipe read end, to add to the poll set of the thread to wake up.
+     */
+    final StructPollfd pollFd;
+
+    WakeUpPipe() throws ErrnoException {
+        FileDescriptor[] pipe = Os.pipe();
+        this.readFd = pipe[0];
+        this.writeFd = pipe[1];
+        this.pending = new AtomicBoolean(false);
+        this.readBuffer = new byte[1];
+        this.pollFd = new StructPollfd();
+        this.pollFd.fd = this.readFd;
+        this.pollFd.events = (short) OsConstants.POLLIN;
+    }
+
+    /**
+     * Wake up the thread polling the pipe.
+     */
+    void wakeUp() {
+        if (!this.pending.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            Os.write(this.writeFd, WAKE_UP, 0, WAKE_UP.length);
+        } catch (ErrnoException | InterruptedIOException e) {
+            Log.w(TAG, "wakeUp: Failed to write to pipe", e);
+            this.pending.set(false);
+        }
+    }
+
+    /**
+     * Clear the pending wake up once the poll descriptor is readable.<br>
+     * The woken up thread must check its work after clearing the wake up.
+     */
+    void clear() {
+        try {
+            Os.read(this.readFd, this.readBuffer, 0, this.readBuffer.length);
+        } catch (ErrnoException | InterruptedIOException e) {
+            Log.w(TAG, "clear: Failed to read from pipe", e);
+        }
+        this.pending.set(false);
+    }
+
+    @Override
+    public void close() {
+        FileHelper.closeOrWarn(this.writeFd, TAG, "close: Cannot close pipe write end");
+        FileHelper.closeOrWarn(this.readFd, TAG, "close: Cannot close pipe read end");
+    }
+}
@@ -0,0 +1,79 @@
+package org.adaway.db.entity;
+
+import org.junit.Test;
+
+import static org.adaway.db.entity.HostName.getReversedSubdomainPrefix;
+import static org.adaway.db.entity.HostName.getReversedUpperBound;
+import static org.adaway.db.entity.HostName.isSubdomainPattern;
+import static org.adaway.db.entity.HostName.reverse;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * This class tests the {@link HostName} reversed name index helpers.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public class HostNameTest {
+    @Test
+    public void testReverse() {
+        assertEquals("com.example.ads", reverse("ads.example.com"));
+        assertEquals("uk.co.example.a.b", reverse("b.a.example.co.uk"));
+        assertEquals("com.example", reverse("example.com"));
+        assertEquals("localhost", reverse("localhost"));
+        // Reversed name is lower cased
+        assertEquals("com.example.ads", reverse("ADS.Example.COM"));
+        // Final dot of fully qualified names is dropped
+        assertEquals("com.example.ads", reverse("ads.example.com."));
+        assertEquals("localhost", reverse("localhost."));
+    }
+
+    @Test
+    public void testSubdomainPattern() {
+        assertTrue(isSubdomainPattern("*.example.com"));
+        assertTrue(isSubdomainPattern("*.com"));
+        assertFalse(isSubdomainPattern("*."));
+        assertFalse(isSubdomainPattern("*example.com"));
+        assertFalse(isSubdomainPattern("example.com"));
+        assertFalse(isSubdomainPattern("*.example.*"));
+        assertFalse(isSubdomainPattern("*.ex?mple.com"));
+        assertFalse(isSubdomainPattern("ads.*.example.com"));
+    }
+
+    @Test
+    public void testReversedSubdomainPrefix() {
+        assertEquals("com.example.", getReversedSubdomainPrefix("*.example.com"));
+        assertEquals("com.example.", getReversedSubdomainPrefix("*.Example.COM"));
+        assertEquals("com.example.", getReversedSubdomainPrefix("*.example.com."));
+        assertEquals("uk.co.example.", getReversedSubdomainPrefix("*.example.co.uk"));
+        assertEquals("com.", getReversedSubdomainPrefix("*.com"));
+    }
+
+    @Test
+    public void testReversedUpperBound() {
+        assertEquals("com.example/", getReversedUpperBound("com.example."));
+        assertEquals("com.", getReversedUpperBound("com-"));
+        assertEquals("b", getReversedUpperBound("a"));
+    }
+
+    @Test
+    public void testReversedRange() {
+        String prefix = getReversedSubdomainPrefix("*.example.com");
+        String upperBound = getReversedUpperBound(prefix);
+        // Subdomains are in the range, whatever their depth
+        assertTrue(isInRange(reverse("www.example.com"), prefix, upperBound));
+        assertTrue(isInRange(reverse("a.b.example.com"), prefix, upperBound));
+        assertTrue(isInRange(reverse("WWW.EXAMPLE.COM."), prefix, upperBound));
+        // Domain itself and names sharing a label prefix are not
+        assertFalse(isInRange(reverse("example.com"), prefix, upperBound));
+        assertFalse(isInRange(reverse("www.example.community"), prefix, upperBound));
+        assertFalse(isInRange(reverse("www.myexample.com"), prefix, upperBound));
+        assertFalse(isInRange(reverse("example-cdn.com"), prefix, upperBound));
+        assertFalse(isInRange(reverse("www.example.org"), prefix, upperBound));
+    }
+
+    private static boolean isInRange(String reversed, String from, String to) {
+        return reversed.compareTo(from) >= 0 && reversed.compareTo(to) < 0;
+    }
+}
@@ -168,4 +168,24 @@ public class SourceLoaderTest {
             );
         }
     }
+
+    @Test
+    public void isValidDomainRule() {
+        for (String validName : VALID_NAMES) {
+            assertTrue(
+                    "The domain rule '||" + validName + "^' should be valid.",
+                    RegexUtils.isValidDomainRule("||" + validName + "^")
+            );
+            assertFalse(
+                    "The hostname '" + validName + "' should not be a domain rule.",
+                    RegexUtils.isDomainRule(validName)
+            );
+        }
+        for (String invalidName : INVALID_NAMES) {
+            assertFalse(
+                    "The domain rule '||" + invalidName + "^' should not be valid.",
+                    RegexUtils.isValidDomainRule("||" + invalidName + "^")
+            );
+        }
+    }
 }
@@ -0,0 +1,78 @@
+package org.adaway.model.vpn;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * This class tests the {@link DomainTrie} matching of the domain rules.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public class DomainTrieTest {
+    @Test
+    public void testSubdomains() {
+        DomainTrie trie = createTrie("example.com");
+        assertTrue(trie.isBlocked("www.example.com"));
+        assertTrue(trie.isBlocked("a.b.example.com"));
+    }
+
+    @Test
+    public void testApex() {
+        DomainTrie trie = createTrie("example.com");
+        assertTrue(trie.isBlocked("example.com"));
+        // Parent domain is not blocked
+        assertFalse(trie.isBlocked("com"));
+    }
+
+    @Test
+    public void testLabelBoundary() {
+        DomainTrie trie = createTrie("example.com");
+        assertFalse(trie.isBlocked("notexample.com"));
+        assertFalse(trie.isBlocked("www.notexample.com"));
+        assertFalse(trie.isBlocked("xample.com"));
+        assertFalse(trie.isBlocked("example.com.org"));
+        assertFalse(trie.isBlocked("example.co"));
+    }
+
+    @Test
+    public void testNestedRules() {
+        DomainTrie trie = createTrie("example.com", "ads.example.com", "tracker.ads.example.com", "other.org");
+        assertEquals(4, trie.size());
+        assertTrue(trie.isBlocked("example.com"));
+        assertTrue(trie.isBlocked("ads.example.com"));
+        assertTrue(trie.isBlocked("x.tracker.ads.example.com"));
+        assertTrue(trie.isBlocked("other.org"));
+        assertFalse(trie.isBlocked("org"));
+        // Nested rule alone blocks its subdomains only
+        trie = createTrie("ads.example.com");
+        assertTrue(trie.isBlocked("cdn.ads.example.com"));
+        assertFalse(trie.isBlocked("example.com"));
+        assertFalse(trie.isBlocked("www.example.com"));
+    }
+
+    @Test
+    public void testDuplicateRules() {
+        DomainTrie trie = createTrie("example.com", "EXAMPLE.com", "example.com");
+        assertEquals(1, trie.size());
+        assertTrue(trie.isBlocked("www.example.com"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testLookupBeforeFreeze() {
+        DomainTrie trie = new DomainTrie();
+        trie.addDomain("example.com");
+        trie.isBlocked("example.com");
+    }
+
+    private static DomainTrie createTrie(String... domains) {
+        DomainTrie trie = new DomainTrie();
+        for (String domain : domains) {
+            trie.addDomain(domain);
+        }
+        trie.freeze();
+        return trie;
+    }
+}
@@ -0,0 +1,117 @@
+package org.adaway.model.vpn;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * This class tests the {@link HostBloomFilter} of the host entries.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public class HostBloomFilterTest {
+    private static final int ENTRY_COUNT = 50_000;
+    /**
+     * The maximum false positive rate, twice the expected one with 10 bits per entry.
+     */
+    private static final double MAXIMUM_FALSE_POSITIVE_RATE = 0.02;
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testNoFalseNegative() {
+        HostBloomFilter filter = HostBloomFilter.create(ENTRY_COUNT);
+        Set<String> hosts = createRandomHosts(new Random(1), ENTRY_COUNT);
+        for (String host : hosts) {
+            filter.put(host);
+        }
+        for (String host : hosts) {
+            assertTrue(host + " not found", filter.mightContain(host));
+            assertTrue(host + " not found", filter.mightContain(new StringBuilder(host)));
+        }
+    }
+
+    @Test
+    public void testFalsePositiveRate() {
+        HostBloomFilter filter = HostBloomFilter.create(ENTRY_COUNT);
+        Set<String> hosts = createRandomHosts(new Random(2), ENTRY_COUNT);
+        for (String host : hosts) {
+            filter.put(host);
+        }
+        Set<String> otherHosts = createRandomHosts(new Random(3), ENTRY_COUNT);
+        otherHosts.removeAll(hosts);
+        int falsePositiveCount = 0;
+        for (String host : otherHosts) {
+            if (filter.mightContain(host)) {
+                falsePositiveCount++;
+            }
+        }
+        double falsePositiveRate = (double) falsePositiveCount / otherHosts.size();
+        assertTrue("False positive rate " + falsePositiveRate, falsePositiveRate <= MAXIMUM_FALSE_POSITIVE_RATE);
+    }
+
+    @Test
+    public void testFileRoundTrip() throws IOException {
+        HostBloomFilter filter = HostBloomFilter.create(ENTRY_COUNT);
+        Set<String> hosts = createRandomHosts(new Random(4), ENTRY_COUNT);
+        for (String host : hosts) {
+            filter.put(host);
+        }
+        File file = new File(this.folder.getRoot(), HostBloomFilter.FILE_NAME);
+        filter.write(file);
+        HostBloomFilter openedFilter = HostBloomFilter.open(file);
+        assertNotNull(openedFilter);
+        // Test the opened filter answers as the built one
+        for (String host : hosts) {
+            assertTrue(host + " not found", openedFilter.mightContain(host));
+        }
+        for (String host : createRandomHosts(new Random(5), ENTRY_COUNT)) {
+            assertTrue(filter.mightContain(host) == openedFilter.mightContain(host));
+        }
+        // Test the temporary file was renamed
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void testEmptyAndMissingFilter() throws IOException {
+        HostBloomFilter filter = HostBloomFilter.create(0);
+        assertFalse(filter.mightContain("example.com"));
+        File file = this.folder.newFile();
+        filter.write(file);
+        HostBloomFilter openedFilter = HostBloomFilter.open(file);
+        assertNotNull(openedFilter);
+        assertFalse(openedFilter.mightContain("example.com"));
+        assertNull(HostBloomFilter.open(new File(this.folder.getRoot(), "missing.bloom")));
+    }
+
+    private static Set<String> createRandomHosts(Random random, int count) {
+        Set<String> hosts = new HashSet<>(count * 2);
+        StringBuilder host = new StringBuilder();
+        while (hosts.size() < count) {
+            host.setLength(0);
+            int labelCount = 2 + random.nextInt(3);
+            for (int label = 0; label < labelCount; label++) {
+                if (label > 0) {
+                    host.append('.');
+                }
+                int labelLength = 1 + random.nextInt(12);
+                for (int i = 0; i < labelLength; i++) {
+                    host.append((char) ('a' + random.nextInt(26)));
+                }
+            }
+            hosts.add(host.toString());
+        }
+        return hosts;
+    }
+}
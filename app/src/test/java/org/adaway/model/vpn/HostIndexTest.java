@@ -0,0 +1,98 @@
+package org.adaway.model.vpn;
+
+import org.adaway.db.entity.HostEntry;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.adaway.db.entity.ListType.BLOCKED;
+import static org.adaway.db.entity.ListType.REDIRECTED;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class HostIndexTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testLookup() throws IOException {
+        HostIndexBuilder builder = new HostIndexBuilder();
+        builder.add("ads.example.com", BLOCKED, null);
+        builder.add("example.com", BLOCKED, null);
+        builder.add("tracker.example.org", REDIRECTED, "1.2.3.4");
+        builder.add("a.b.c.d", BLOCKED, null);
+        builder.add("github.com", REDIRECTED, "::1");
+        builder.add("x", BLOCKED, null);
+        HostIndex index = writeAndOpen(builder);
+
+        assertEquals(6, index.size());
+        assertFound(index, "ads.example.com");
+        assertFound(index, "example.com");
+        assertFound(index, "a.b.c.d");
+        assertFound(index, "x");
+        int redirected = index.find("tracker.example.org");
+        assertTrue(redirected >= 0);
+        assertEquals(REDIRECTED, index.getType(redirected));
+        assertEquals("1.2.3.4", index.getRedirection(redirected));
+        redirected = index.find(new StringBuilder("github.com"));
+        assertTrue(redirected >= 0);
+        assertEquals("::1", index.getRedirection(redirected));
+
+        // Test entries are shared by the host names with the same type and redirection
+        assertSame(index.getEntry(index.find("ads.example.com")), index.getEntry(index.find("x")));
+        HostEntry entry = index.getEntry(index.find("tracker.example.org"));
+        assertEquals(REDIRECTED, entry.getType());
+        assertEquals("1.2.3.4", entry.getRedirection());
+        assertSame(entry, index.getEntry(index.find("tracker.example.org")));
+        assertEquals(-1, index.find("com"));
+        assertEquals(-1, index.find("www.example.com"));
+        assertEquals(-1, index.find("example.co"));
+        assertEquals(-1, index.find("xample.com"));
+        assertEquals(-1, index.find("b.c.d"));
+        assertEquals(-1, index.find(""));
+    }
+
+    @Test
+    public void testLargeIndex() throws IOException {
+        HostIndexBuilder builder = new HostIndexBuilder();
+        for (int i = 0; i < 5000; i++) {
+            builder.add("host" + i + ".domain" + (i % 17) + ".com", BLOCKED, null);
+        }
+        HostIndex index = writeAndOpen(builder);
+
+        assertEquals(5000, index.size());
+        for (int i = 0; i < 5000; i++) {
+            assertFound(index, "host" + i + ".domain" + (i % 17) + ".com");
+            assertEquals(-1, index.find("host" + i + ".domain" + ((i + 1) % 17) + ".com"));
+        }
+    }
+
+    @Test
+    public void testEmptyAndInvalidIndex() throws IOException {
+        HostIndex index = writeAndOpen(new HostIndexBuilder());
+        assertEquals(0, index.size());
+        assertEquals(-1, index.find("example.com"));
+        assertNull(HostIndex.open(new File(this.folder.getRoot(), "missing.idx")));
+    }
+
+    private HostIndex writeAndOpen(HostIndexBuilder builder) throws IOException {
+        File file = this.folder.newFile();
+        builder.write(file);
+        HostIndex index = HostIndex.open(file);
+        assertNotNull(index);
+        return index;
+    }
+
+    private static void assertFound(HostIndex index, String host) {
+        int entry = index.find(host);
+        assertTrue(host + " not found", entry >= 0);
+        assertEquals(BLOCKED, index.getType(entry));
+        assertNull(index.getRedirection(entry));
+    }
+}
@@ -0,0 +1,147 @@
+package org.adaway.model.vpn;
+
+import org.adaway.util.RegexUtils;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WildcardMatcherTest {
+    private static final String[] PATTERNS = {
+            "*.example.com",
+            "ads.*.net",
+            "ad?.domain.org",
+            "*tracker*",
+            "exact.host.com",
+            "a**b.c",
+            "?",
+            "x*y*z.io",
+            "*.?.com"
+    };
+    private static final String[] HOSTS = {
+            "example.com",
+            "www.example.com",
+            "a.b.example.com",
+            "ads.foo.net",
+            "ads.net",
+            "ads..net",
+            "ad1.domain.org",
+            "ad.domain.org",
+            "ad12.domain.org",
+            "mytracker.com",
+            "tracker",
+            "exact.host.com",
+            "sub.exact.host.com",
+            "ab.c",
+            "axxb.c",
+            "a",
+            "ab",
+            "xyz.io",
+            "x.y.z.io",
+            "xzy.io",
+            "foo.a.com",
+            "a.com",
+            ""
+    };
+
+    @Test
+    public void testMatches() {
+        WildcardMatcher matcher = new WildcardMatcher();
+        for (String pattern : PATTERNS) {
+            matcher.add(pattern);
+        }
+        matcher.compile();
+        assertEquals(PATTERNS.length, matcher.size());
+        assertTrue(matcher.matches("www.example.com"));
+        assertFalse(matcher.matches("example.com"));
+        assertTrue(matcher.matches("exact.host.com"));
+        assertFalse(matcher.matches("sub.exact.host.com"));
+        for (String host : HOSTS) {
+            assertEquals("Wrong match for " + host, matchesRegex(PATTERNS, host), matcher.matches(host));
+        }
+    }
+
+    @Test
+    public void testEmptyMatcher() {
+        WildcardMatcher matcher = new WildcardMatcher();
+        assertEquals(0, matcher.size());
+        assertFalse(matcher.matches("example.com"));
+    }
+
+    @Test
+    public void testConcurrentMatches() throws InterruptedException {
+        WildcardMatcher matcher = new WildcardMatcher();
+        for (String pattern : PATTERNS) {
+            matcher.add(pattern);
+        }
+        matcher.compile();
+        boolean[] expected = new boolean[HOSTS.length];
+        for (int i = 0; i < HOSTS.length; i++) {
+            expected[i] = matchesRegex(PATTERNS, HOSTS[i]);
+        }
+        AtomicInteger errors = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int round = 0; round < 10_000; round++) {
+                    int i = round % HOSTS.length;
+                    if (matcher.matches(HOSTS[i]) != expected[i]) {
+                        errors.incrementAndGet();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, errors.get());
+    }
+
+    @Test
+    public void testRandomPatterns() {
+        Random random = new Random(42);
+        String alphabet = "ab.*?";
+        for (int round = 0; round < 200; round++) {
+            String[] patterns = new String[1 + random.nextInt(8)];
+            WildcardMatcher matcher = new WildcardMatcher();
+            for (int i = 0; i < patterns.length; i++) {
+                patterns[i] = randomString(random, alphabet, 1 + random.nextInt(6));
+                matcher.add(patterns[i]);
+            }
+            matcher.compile();
+            for (int i = 0; i < 50; i++) {
+                String host = randomString(random, "ab.", random.nextInt(8));
+                assertEquals("Wrong match for " + host, matchesRegex(patterns, host), matcher.matches(host));
+            }
+        }
+    }
+
+    private static boolean matchesRegex(String[] patterns, String host) {
+        List<Pattern> regexes = new ArrayList<>();
+        for (String pattern : patterns) {
+            regexes.add(Pattern.compile(RegexUtils.wildcardToRegex(pattern)));
+        }
+        for (Pattern regex : regexes) {
+            if (regex.matcher(host).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String randomString(Random random, String alphabet, int length) {
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return builder.toString();
+    }
+}
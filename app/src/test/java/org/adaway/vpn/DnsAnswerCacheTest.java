@@ -0,0 +1,152 @@
+package org.adaway.vpn;
+
+import org.junit.Test;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.OPTRecord;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * This class tests {@link DnsAnswerCache} answers by parsing them with dnsjava.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public class DnsAnswerCacheTest {
+    private static final int MAXIMUM_LENGTH = 4096;
+
+    @Test
+    public void testPositiveAnswer() throws Exception {
+        Name name = new Name("example.com.");
+        Message response = newResponse(name, Rcode.NOERROR);
+        response.addRecord(new ARecord(name, DClass.IN, 300, InetAddress.getByName("1.2.3.4")), Section.ANSWER);
+        response.addRecord(new ARecord(name, DClass.IN, 60, InetAddress.getByName("1.2.3.5")), Section.ANSWER);
+        DnsAnswerCache cache = new DnsAnswerCache(MAXIMUM_LENGTH);
+        cache.initialize(false);
+        String key = put(cache, response, 0);
+
+        // Replay with client transaction ID and aged TTLs
+        int length = cache.lookup(key, newQuery(name, 0x1234), 0, MAXIMUM_LENGTH, false, 10_000);
+        Message answer = read(cache, length);
+        assertEquals(0x1234, answer.getHeader().getID());
+        assertEquals(2, answer.getSection(Section.ANSWER).size());
+        assertEquals(290, answer.getSection(Section.ANSWER).get(0).getTTL());
+        assertEquals(50, answer.getSection(Section.ANSWER).get(1).getTTL());
+        assertFalse(cache.isRefreshNeeded());
+        // Replay with client question name case
+        Name randomizedName = new Name("eXamPLe.CoM.");
+        answer = read(cache, cache.lookup(key, newQuery(randomizedName, 0x1234), 0, MAXIMUM_LENGTH, false, 10_000));
+        assertEquals("eXamPLe.CoM.", answer.getQuestion().getName().toString());
+        assertEquals(290, answer.getSection(Section.ANSWER).get(0).getTTL());
+        // Too long for the client
+        assertEquals(-1, cache.lookup(key, newQuery(name, 0x1234), 0, length - 1, false, 10_000));
+        // Expired after the lowest TTL
+        assertEquals(-1, cache.lookup(key, newQuery(name, 0x1234), 0, MAXIMUM_LENGTH, false, 60_000));
+        assertEquals(2 / 4D, cache.getHitRatio(), 0.01);
+        assertEquals(100, cache.getLatencySaved());
+    }
+
+    @Test
+    public void testEdnsAnswer() throws Exception {
+        Name name = new Name("edns.example.com.");
+        Message response = newResponse(name, Rcode.NOERROR);
+        response.addRecord(new ARecord(name, DClass.IN, 300, InetAddress.getByName("1.2.3.4")), Section.ANSWER);
+        response.addRecord(new OPTRecord(1232, 0, 0), Section.ADDITIONAL);
+        DnsAnswerCache cache = new DnsAnswerCache(MAXIMUM_LENGTH);
+        cache.initialize(false);
+        String key = put(cache, response, 0);
+        // Answer with an OPT record is only replayed to clients using EDNS
+        assertEquals(-1, cache.lookup(key, newQuery(name, 1), 0, MAXIMUM_LENGTH, false, 1_000));
+        Message answer = read(cache, cache.lookup(key, newQuery(name, 1), 0, MAXIMUM_LENGTH, true, 1_000));
+        assertEquals(299, answer.getSection(Section.ANSWER).get(0).getTTL());
+        assertEquals(1232, answer.getOPT().getPayloadSize());
+    }
+
+    @Test
+    public void testNegativeAnswers() throws Exception {
+        Name name = new Name("missing.example.com.");
+        Name zone = new Name("example.com.");
+        DnsAnswerCache cache = new DnsAnswerCache(MAXIMUM_LENGTH);
+        cache.initialize(false);
+        // Negative answer lives as long as the lower of the SOA TTL and minimum field
+        Message response = newResponse(name, Rcode.NXDOMAIN);
+        response.addRecord(new SOARecord(zone, DClass.IN, 3600, zone, zone, 1, 0, 0, 0, 30), Section.AUTHORITY);
+        String key = put(cache, response, 0);
+        Message answer = read(cache, cache.lookup(key, newQuery(name, 1), 0, MAXIMUM_LENGTH, false, 29_000));
+        assertEquals(Rcode.NXDOMAIN, answer.getRcode());
+        assertEquals(-1, cache.lookup(key, newQuery(name, 1), 0, MAXIMUM_LENGTH, false, 30_000));
+        // Negative answer without SOA record is not cached
+        key = put(cache, newResponse(name, Rcode.NXDOMAIN), 0);
+        assertEquals(-1, cache.lookup(key, newQuery(name, 1), 0, MAXIMUM_LENGTH, false, 0));
+        // Server failure is not cached
+        response = newResponse(name, Rcode.SERVFAIL);
+        response.addRecord(new SOARecord(zone, DClass.IN, 3600, zone, zone, 1, 0, 0, 0, 30), Section.AUTHORITY);
+        key = put(cache, response, 0);
+        assertEquals(-1, cache.lookup(key, newQuery(name, 1), 0, MAXIMUM_LENGTH, false, 0));
+    }
+
+    @Test
+    public void testStaleAnswer() throws Exception {
+        Name name = new Name("hot.example.com.");
+        Message response = newResponse(name, Rcode.NOERROR);
+        response.addRecord(new ARecord(name, DClass.IN, 60, InetAddress.getByName("1.2.3.4")), Section.ANSWER);
+        DnsAnswerCache cache = new DnsAnswerCache(MAXIMUM_LENGTH);
+        cache.initialize(true);
+        String key = put(cache, response, 0);
+        // Make the question hot
+        cache.lookup(key, newQuery(name, 1), 0, MAXIMUM_LENGTH, false, 1_000);
+        cache.lookup(key, newQuery(name, 1), 0, MAXIMUM_LENGTH, false, 2_000);
+        // Serve stale answer and ask for a single refresh
+        Message answer = read(cache, cache.lookup(key, newQuery(name, 1), 0, MAXIMUM_LENGTH, false, 120_000));
+        assertEquals(30, answer.getSection(Section.ANSWER).get(0).getTTL());
+        assertTrue(cache.isRefreshNeeded());
+        assertTrue(cache.lookup(key, newQuery(name, 1), 0, MAXIMUM_LENGTH, false, 121_000) > 0);
+        assertFalse(cache.isRefreshNeeded());
+        // Refreshed answer is fresh again
+        put(cache, response, 122_000);
+        answer = read(cache, cache.lookup(key, newQuery(name, 1), 0, MAXIMUM_LENGTH, false, 123_000));
+        assertEquals(59, answer.getSection(Section.ANSWER).get(0).getTTL());
+    }
+
+    private static Message newResponse(Name name, int rcode) {
+        Message response = Message.newQuery(Record.newRecord(name, Type.A, DClass.IN));
+        response.getHeader().setFlag(Flags.QR);
+        response.getHeader().setRcode(rcode);
+        return response;
+    }
+
+    private static ByteBuffer newQuery(Name name, int transactionId) {
+        Message query = Message.newQuery(Record.newRecord(name, Type.A, DClass.IN));
+        query.getHeader().setID(transactionId);
+        return ByteBuffer.wrap(query.toWire());
+    }
+
+    private static String put(DnsAnswerCache cache, Message response, long now) {
+        byte[] wire = response.toWire();
+        DnsQuestion question = new DnsQuestion();
+        assertTrue(question.readResponse(ByteBuffer.wrap(wire), 0, wire.length));
+        String key = question.getKey();
+        cache.put(key, wire, wire.length, 50, now);
+        return key;
+    }
+
+    private static Message read(DnsAnswerCache cache, int length) throws Exception {
+        assertTrue(length > 0);
+        byte[] answer = new byte[length];
+        System.arraycopy(cache.getAnswer(), 0, answer, 0, length);
+        return new Message(answer);
+    }
+}
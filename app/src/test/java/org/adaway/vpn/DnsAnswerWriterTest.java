@@ -0,0 +1,94 @@
+package org.adaway.vpn;
+
+import org.junit.Test;
+import org.xbill.DNS.AAAARecord;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * This class tests {@link DnsAnswerWriter} answers by parsing them with dnsjava.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public class DnsAnswerWriterTest {
+    private static final int OFFSET = 28;
+    private static final int TTL = 5;
+
+    @Test
+    public void testBlockedAnswer() throws Exception {
+        Name name = new Name("blocked.example.com.");
+        SOARecord soa = new SOARecord(new Name("adaway.vpn.invalid."), DClass.IN, TTL,
+                new Name("adaway.vpn.invalid."), new Name("adaway.vpn.invalid."), 0, 0, 0, 0, TTL);
+        DnsAnswerWriter writer = new DnsAnswerWriter(soa.toWire(Section.AUTHORITY), TTL);
+        Message query = Message.newQuery(Record.newRecord(name, Type.A, DClass.IN));
+        Message answer = write(query, packet -> writer.writeBlocked(packet, OFFSET, OFFSET + questionLength(query)), writer);
+
+        assertEquals(query.getHeader().getID(), answer.getHeader().getID());
+        assertTrue(answer.getHeader().getFlag(Flags.QR));
+        assertTrue(answer.getHeader().getFlag(Flags.RD));
+        assertEquals(Rcode.NOERROR, answer.getRcode());
+        assertEquals(query.getQuestion(), answer.getQuestion());
+        assertTrue(answer.getSection(Section.ANSWER).isEmpty());
+        assertEquals(soa, answer.getSection(Section.AUTHORITY).get(0));
+    }
+
+    @Test
+    public void testRedirectedAnswers() throws Exception {
+        Name name = new Name("redirected.example.com.");
+        DnsAnswerWriter writer = new DnsAnswerWriter(new byte[0], TTL);
+        // IPv4 redirection
+        Message query = Message.newQuery(Record.newRecord(name, Type.A, DClass.IN));
+        Message answer = write(query, packet -> writer.writeRedirected(packet, OFFSET, OFFSET + questionLength(query), "1.2.3.4"), writer);
+        assertTrue(answer.getHeader().getFlag(Flags.QR));
+        assertTrue(answer.getHeader().getFlag(Flags.AA));
+        assertFalse(answer.getHeader().getFlag(Flags.RD));
+        assertEquals(query.getQuestion(), answer.getQuestion());
+        List<Record> records = answer.getSection(Section.ANSWER);
+        assertEquals(1, records.size());
+        assertEquals(new ARecord(name, DClass.IN, TTL, InetAddress.getByName("1.2.3.4")), records.get(0));
+        // IPv6 redirection, twice to use the cached record
+        for (int i = 0; i < 2; i++) {
+            Message query6 = Message.newQuery(Record.newRecord(name, Type.AAAA, DClass.IN));
+            Message answer6 = write(query6, packet -> writer.writeRedirected(packet, OFFSET, OFFSET + questionLength(query6), "::1"), writer);
+            assertEquals(new AAAARecord(name, DClass.IN, TTL, InetAddress.getByName("::1")), answer6.getSection(Section.ANSWER).get(0));
+        }
+    }
+
+    private static int questionLength(Message query) {
+        // Queries have no record after the question
+        return query.toWire().length;
+    }
+
+    private static Message write(Message query, Writer writer, DnsAnswerWriter answerWriter) throws Exception {
+        byte[] wire = query.toWire();
+        ByteBuffer packet = ByteBuffer.allocate(OFFSET + wire.length);
+        packet.position(OFFSET);
+        packet.put(wire);
+        packet.flip();
+        int length = writer.write(packet);
+        assertTrue(length > 0);
+        byte[] answer = new byte[length];
+        System.arraycopy(answerWriter.getAnswer(), 0, answer, 0, length);
+        return new Message(answer);
+    }
+
+    private interface Writer {
+        int write(ByteBuffer packet);
+    }
+}
@@ -0,0 +1,153 @@
+package org.adaway.vpn;
+
+import org.junit.Test;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.ExtendedFlags;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.OPTRecord;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * This class tests {@link DnsQuestion} against dnsjava message parsing.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public class DnsQuestionTest {
+    private static final int OFFSET = 28;
+
+    @Test
+    public void testCommonQueries() throws Exception {
+        assertSameAsDnsJava("example.com.", Type.A);
+        assertSameAsDnsJava("WWW.Example.COM.", Type.AAAA);
+        assertSameAsDnsJava("_dmarc.mail-1.example.org.", Type.TXT);
+        assertSameAsDnsJava("x.", Type.HTTPS);
+    }
+
+    @Test
+    public void testUncommonMessages() throws Exception {
+        DnsQuestion question = new DnsQuestion();
+        // Name with characters to escape
+        Message escaped = Message.newQuery(Record.newRecord(Name.fromString("a\\.b.example.com."), Type.A, DClass.IN));
+        assertFalse(read(question, escaped.toWire()));
+        // Root name
+        Message root = Message.newQuery(Record.newRecord(Name.root, Type.NS, DClass.IN));
+        assertFalse(read(question, root.toWire()));
+        // Response
+        Message response = Message.newQuery(Record.newRecord(Name.fromString("example.com."), Type.A, DClass.IN));
+        response.getHeader().setFlag(Flags.QR);
+        assertFalse(read(question, response.toWire()));
+        // Two questions
+        Message twoQuestions = Message.newQuery(Record.newRecord(Name.fromString("example.com."), Type.A, DClass.IN));
+        twoQuestions.addRecord(Record.newRecord(Name.fromString("example.org."), Type.A, DClass.IN), Section.QUESTION);
+        assertFalse(read(question, twoQuestions.toWire()));
+        // Truncated question
+        byte[] wire = Message.newQuery(Record.newRecord(Name.fromString("example.com."), Type.A, DClass.IN)).toWire();
+        byte[] truncated = new byte[wire.length - 2];
+        System.arraycopy(wire, 0, truncated, 0, truncated.length);
+        assertFalse(read(question, truncated));
+        // Compressed name
+        byte[] compressed = wire.clone();
+        compressed[12] = (byte) 0xC0;
+        assertFalse(read(question, compressed));
+    }
+
+    @Test
+    public void testResponseQuestion() throws Exception {
+        DnsQuestion question = new DnsQuestion();
+        Message response = Message.newQuery(Record.newRecord(Name.fromString("WWW.Example.com."), Type.A, DClass.IN));
+        response.getHeader().setFlag(Flags.QR);
+        byte[] wire = response.toWire();
+        ByteBuffer packet = ByteBuffer.wrap(wire);
+        // Response to the query question, whatever the name case and query flags
+        assertTrue(question.readResponse(packet, 0, wire.length, "www.example.com/1/1/0"));
+        assertTrue(question.readResponse(packet, 0, wire.length, "www.example.com/1/1/3"));
+        // Response to another name, type or class
+        assertFalse(question.readResponse(packet, 0, wire.length, "example.com/1/1/0"));
+        assertFalse(question.readResponse(packet, 0, wire.length, "www.example.com/28/1/0"));
+        assertFalse(question.readResponse(packet, 0, wire.length, "www.example.com/1/3/0"));
+        // Query instead of response
+        byte[] query = Message.newQuery(Record.newRecord(Name.fromString("www.example.com."), Type.A, DClass.IN)).toWire();
+        assertFalse(question.readResponse(ByteBuffer.wrap(query), 0, query.length, "www.example.com/1/1/0"));
+    }
+
+    @Test
+    public void testQueryFlags() throws Exception {
+        DnsQuestion question = new DnsQuestion();
+        Record record = Record.newRecord(Name.fromString("example.com."), Type.A, DClass.IN);
+        // Query without EDNS
+        Message query = Message.newQuery(record);
+        assertTrue(read(question, query.toWire()));
+        assertFalse(question.isEdns());
+        assertEquals("example.com/1/1/0", question.getKey());
+        // Query with EDNS, asking for DNSSEC records or not
+        query.addRecord(new OPTRecord(1232, 0, 0), Section.ADDITIONAL);
+        assertTrue(read(question, query.toWire()));
+        assertTrue(question.isEdns());
+        assertEquals("example.com/1/1/0", question.getKey());
+        Message dnssecQuery = Message.newQuery(record);
+        dnssecQuery.addRecord(new OPTRecord(1232, 0, 0, ExtendedFlags.DO), Section.ADDITIONAL);
+        assertTrue(read(question, dnssecQuery.toWire()));
+        assertEquals("example.com/1/1/1", question.getKey());
+        // Query disabling DNSSEC validation
+        dnssecQuery.getHeader().setFlag(Flags.CD);
+        assertTrue(read(question, dnssecQuery.toWire()));
+        assertEquals("example.com/1/1/3", question.getKey());
+        // Additional record other than OPT
+        Message otherQuery = Message.newQuery(record);
+        otherQuery.addRecord(Record.fromString(Name.root, Type.TXT, DClass.IN, 0, "test", Name.root), Section.ADDITIONAL);
+        assertFalse(read(question, otherQuery.toWire()));
+    }
+
+    @Test
+    public void testErrorWithoutQuestion() throws Exception {
+        // Error response without question
+        Message refused = new Message(0x1234);
+        refused.getHeader().setFlag(Flags.QR);
+        refused.getHeader().setRcode(Rcode.REFUSED);
+        byte[] wire = refused.toWire();
+        assertTrue(DnsQuestion.isErrorWithoutQuestion(ByteBuffer.wrap(wire), 0, wire.length));
+        // Error response with question
+        Message failure = Message.newQuery(Record.newRecord(Name.fromString("example.com."), Type.A, DClass.IN));
+        failure.getHeader().setFlag(Flags.QR);
+        failure.getHeader().setRcode(Rcode.SERVFAIL);
+        wire = failure.toWire();
+        assertFalse(DnsQuestion.isErrorWithoutQuestion(ByteBuffer.wrap(wire), 0, wire.length));
+        // Successful response without question
+        Message empty = new Message(0x1234);
+        empty.getHeader().setFlag(Flags.QR);
+        wire = empty.toWire();
+        assertFalse(DnsQuestion.isErrorWithoutQuestion(ByteBuffer.wrap(wire), 0, wire.length));
+    }
+
+    private static void assertSameAsDnsJava(String name, int type) throws Exception {
+        byte[] wire = Message.newQuery(Record.newRecord(Name.fromString(name), type, DClass.IN)).toWire();
+        Message message = new Message(wire);
+        DnsQuestion question = new DnsQuestion();
+        assertTrue(read(question, wire));
+        String expected = message.getQuestion().getName().toString(true).toLowerCase(Locale.ENGLISH);
+        assertEquals(expected, question.getName().toString());
+        assertEquals(message.getQuestion().getType(), question.getType());
+        assertEquals(message.getQuestion().getDClass(), question.getDnsClass());
+        assertEquals(OFFSET + wire.length, question.getEnd());
+    }
+
+    private static boolean read(DnsQuestion question, byte[] wire) {
+        ByteBuffer packet = ByteBuffer.allocate(OFFSET + wire.length);
+        packet.position(OFFSET);
+        packet.put(wire);
+        packet.flip();
+        return question.read(packet, OFFSET, wire.length);
+    }
+}
@@ -0,0 +1,87 @@
+package org.adaway.vpn;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * This class tests the {@link HedgeQueue} scheduling the queries to hedge.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public class HedgeQueueTest {
+    private static final int CAPACITY = 64;
+
+    @Test
+    public void testMixedDelays() {
+        HedgeQueue queue = new HedgeQueue(CAPACITY);
+        assertTrue(queue.isEmpty());
+        assertEquals(-1, queue.peekTime());
+        // A query to a slow server then later queries to a fast one
+        int slowDelay = 200;
+        int fastDelay = 20;
+        queue.add(1, 1000 + slowDelay);
+        queue.add(2, 1010 + fastDelay);
+        queue.add(3, 1020 + fastDelay);
+        queue.add(4, 1030 + slowDelay);
+        // The fast server queries must be hedged first, without waiting for the slow one
+        assertEquals(1030, queue.peekTime());
+        assertEquals(2, queue.peekKey());
+        queue.remove();
+        assertEquals(1040, queue.peekTime());
+        assertEquals(3, queue.peekKey());
+        queue.remove();
+        assertEquals(1200, queue.peekTime());
+        assertEquals(1, queue.peekKey());
+        queue.remove();
+        assertEquals(1230, queue.peekTime());
+        assertEquals(4, queue.peekKey());
+        queue.remove();
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testOrder() {
+        HedgeQueue queue = new HedgeQueue(CAPACITY);
+        Random random = new Random(42);
+        long now = 0;
+        for (int round = 0; round < 1000; round++) {
+            // Schedule queries with one of two delays, as two servers would
+            while (!queue.isFull() && random.nextBoolean()) {
+                int key = random.nextInt(1000);
+                long time = now + (random.nextBoolean() ? 20 : 200);
+                assertTrue(queue.add(key, time));
+            }
+            // Hedge the due queries in time order
+            now += random.nextInt(50);
+            long previousTime = Long.MIN_VALUE;
+            while (!queue.isEmpty() && queue.peekTime() <= now) {
+                long time = queue.peekTime();
+                assertTrue(time >= previousTime);
+                previousTime = time;
+                queue.remove();
+            }
+            assertTrue(queue.isEmpty() || queue.peekTime() > now);
+        }
+    }
+
+    @Test
+    public void testBounds() {
+        HedgeQueue queue = new HedgeQueue(CAPACITY);
+        for (int i = 0; i < CAPACITY; i++) {
+            assertFalse(queue.isFull());
+            assertTrue(queue.add(i, CAPACITY - i));
+        }
+        assertTrue(queue.isFull());
+        assertFalse(queue.add(CAPACITY, 0));
+        assertEquals(1, queue.peekTime());
+        assertEquals(CAPACITY - 1, queue.peekKey());
+        queue.clear();
+        assertTrue(queue.isEmpty());
+        assertEquals(-1, queue.peekKey());
+    }
+}
@@ -0,0 +1,163 @@
+package org.adaway.vpn;
+
+import org.adaway.vpn.InFlightQueries.Query;
+import org.junit.Test;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Type;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * This class tests the coalescing and hedging of queries by {@link InFlightQueries}.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public class InFlightQueriesTest {
+    private static final int CAPACITY = 4;
+    private static final long TIMEOUT_MS = 10_000;
+    private static final SocketAddress SERVER = InetSocketAddress.createUnresolved("dns.example.com", 53);
+
+    @Test
+    public void testCoalescing() {
+        InFlightQueries queries = new InFlightQueries(CAPACITY, TIMEOUT_MS);
+        long now = System.currentTimeMillis();
+        queries.add(1, newRequest(1), 20, SERVER, 0x0101, now, "example.com/1/1", "example.com/1/1");
+        Query query = queries.find("example.com/1/1");
+        assertSame(queries.get(1), query);
+        assertNull(queries.find("example.com/28/1"));
+        // Attach requesters while there are entries left
+        assertTrue(queries.attach(query, newRequest(2), 20, 0x0202));
+        assertTrue(queries.attach(query, newRequest(3), 20, 0x0303));
+        assertTrue(queries.attach(query, newRequest(4), 20, 0x0404));
+        assertFalse(queries.attach(query, newRequest(5), 20, 0x0505));
+        assertEquals(1, queries.size());
+        assertEquals(3, queries.getCoalescedCount());
+        int followers = 0;
+        for (Query follower = query.follower; follower != null; follower = follower.follower) {
+            assertEquals(follower.transactionId >> 8, follower.requestHeader.get(0));
+            followers++;
+        }
+        assertEquals(3, followers);
+        // Releasing the query recycles the requester entries
+        queries.release(query);
+        assertNull(queries.find("example.com/1/1"));
+        for (int i = 0; i < CAPACITY; i++) {
+            queries.add(10 + i, newRequest(i), 20, SERVER, i, now, null, null);
+        }
+        assertEquals(CAPACITY, queries.size());
+        assertEquals(0, queries.getTimeoutCount());
+    }
+
+    @Test
+    public void testExpiration() {
+        InFlightQueries queries = new InFlightQueries(CAPACITY, TIMEOUT_MS);
+        long now = System.currentTimeMillis();
+        queries.add(1, newRequest(1), 20, SERVER, 1, now, "example.com/1/1", "example.com/1/1");
+        queries.attach(queries.find("example.com/1/1"), newRequest(2), 20, 2);
+        // A second query for the same question is not coalesced with itself
+        queries.add(2, newRequest(3), 20, SERVER, 3, now, "example.com/1/1", "example.com/1/1");
+        assertSame(queries.get(1), queries.find("example.com/1/1"));
+        queries.expire(now + TIMEOUT_MS + 1000);
+        assertEquals(0, queries.size());
+        assertEquals(2, queries.getTimeoutCount());
+        assertNull(queries.find("example.com/1/1"));
+    }
+
+    @Test
+    public void testHedge() {
+        InFlightQueries queries = new InFlightQueries(CAPACITY, TIMEOUT_MS);
+        long now = System.currentTimeMillis();
+        Query query = queries.add(1, newRequest(1), 20, SERVER, 1, now, "example.com/1/1", "example.com/1/1");
+        Query hedge = queries.add(2, query.requestHeader, query.requestHeaderLength, SERVER, query.transactionId, now + 1000, query.question, null);
+        queries.link(query, hedge);
+        assertSame(hedge, query.hedge);
+        assertSame(query, hedge.primary);
+        assertEquals(1, hedge.requestHeader.get(0));
+        assertEquals("example.com/1/1", hedge.question);
+        // The hedge stays in flight when the hedged query expires first
+        List<Query> expired = new ArrayList<>();
+        queries.expire(now + TIMEOUT_MS + 100, expired::add);
+        assertEquals(1, expired.size());
+        assertSame(hedge, queries.get(2));
+        assertNull(hedge.primary);
+        assertEquals(1, queries.size());
+    }
+
+    @Test
+    public void testHedgeTakeOver() {
+        InFlightQueries queries = new InFlightQueries(CAPACITY, TIMEOUT_MS);
+        long now = System.currentTimeMillis();
+        Query query = queries.add(1, newRequest(1), 20, SERVER, 1, now, "example.com/1/1", "example.com/1/1");
+        assertTrue(queries.attach(query, newRequest(2), 20, 2));
+        Query hedge = queries.add(2, query.requestHeader, query.requestHeaderLength, SERVER, query.transactionId, now + 1000, query.question, null);
+        queries.link(query, hedge);
+        // The hedge takes over the requesters and question of the expired hedged query
+        queries.expire(now + TIMEOUT_MS + 100);
+        assertEquals(1, queries.size());
+        assertSame(hedge, queries.find("example.com/1/1"));
+        assertEquals(2, hedge.follower.transactionId);
+        assertEquals(2, hedge.follower.requestHeader.get(0));
+        assertNull(hedge.follower.follower);
+        // Later requesters attach to the hedge
+        assertTrue(queries.attach(hedge, newRequest(3), 20, 3));
+        // Releasing the hedge recycles all the entries
+        queries.release(hedge);
+        assertEquals(0, queries.size());
+        assertNull(queries.find("example.com/1/1"));
+        for (int i = 0; i < CAPACITY; i++) {
+            queries.add(10 + i, newRequest(i), 20, SERVER, i, now, null, null);
+        }
+        assertEquals(1, queries.getTimeoutCount());
+    }
+
+    @Test
+    public void testQuestionNameCase() throws Exception {
+        InFlightQueries queries = new InFlightQueries(CAPACITY, TIMEOUT_MS);
+        long now = System.currentTimeMillis();
+        Query query = queries.add(1, newRequest("example.com."), 28, SERVER, 1, now, "example.com/1/1", "example.com/1/1");
+        assertTrue(queries.attach(query, newRequest("eXaMPle.COM."), 28, 2));
+        // Each requester gets its own question name case back
+        byte[] response = Message.newQuery(Record.newRecord(new Name("EXAMPLE.COM."), Type.A, DClass.IN)).toWire();
+        InFlightQueries.writeQuestionName(query.follower, response);
+        assertEquals("eXaMPle.COM.", new Message(response).getQuestion().getName().toString());
+        InFlightQueries.writeQuestionName(query, response);
+        assertEquals("example.com.", new Message(response).getQuestion().getName().toString());
+        // The hedge keeps the question name of the query it duplicates
+        Query hedge = queries.add(2, query.requestHeader, query.requestHeaderLength, SERVER, query.transactionId, now, query.question, null);
+        InFlightQueries.writeQuestionName(query.follower, response);
+        InFlightQueries.writeQuestionName(hedge, response);
+        assertEquals("example.com.", new Message(response).getQuestion().getName().toString());
+        // Queries without known question do not change the response
+        Query unknown = queries.add(3, newRequest("OTHER.example.com."), 28, SERVER, 3, now, null, null);
+        InFlightQueries.writeQuestionName(unknown, response);
+        assertEquals("example.com.", new Message(response).getQuestion().getName().toString());
+    }
+
+    private static ByteBuffer newRequest(String name) throws Exception {
+        byte[] wire = Message.newQuery(Record.newRecord(new Name(name), Type.A, DClass.IN)).toWire();
+        ByteBuffer request = ByteBuffer.allocate(28 + wire.length);
+        request.position(28);
+        request.put(wire);
+        request.flip();
+        return request;
+    }
+
+    private static ByteBuffer newRequest(int value) {
+        ByteBuffer request = ByteBuffer.allocate(UdpPacketCodec.MAXIMUM_HEADER_LENGTH);
+        request.put(0, (byte) value);
+        return request;
+    }
+}
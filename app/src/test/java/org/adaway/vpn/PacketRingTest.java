@@ -0,0 +1,72 @@
+package org.adaway.vpn;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * This class tests the {@link PacketRing} used between the VPN pipeline threads.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public class PacketRingTest {
+    private static final int CAPACITY = 4;
+    private static final int PACKET_SIZE = 16;
+
+    @Test
+    public void testBounds() {
+        PacketRing ring = new PacketRing(CAPACITY, PACKET_SIZE);
+        assertTrue(ring.isEmpty());
+        for (int i = 0; i < CAPACITY; i++) {
+            ByteBuffer buffer = ring.claim();
+            assertNotNull(buffer);
+            buffer.put((byte) i);
+            ring.commit(i + 1);
+        }
+        assertNull(ring.claim());
+        for (int i = 0; i < CAPACITY; i++) {
+            assertFalse(ring.isEmpty());
+            ByteBuffer packet = ring.peek();
+            assertEquals(i + 1, packet.limit());
+            assertEquals(i, packet.get(0));
+            assertEquals(i + 1, ring.peekLength());
+            ring.remove();
+        }
+        assertTrue(ring.isEmpty());
+        assertNotNull(ring.claim());
+    }
+
+    @Test
+    public void testConcurrentOrder() throws InterruptedException {
+        int count = 100_000;
+        PacketRing ring = new PacketRing(CAPACITY, PACKET_SIZE);
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < count; i++) {
+                ByteBuffer buffer;
+                while ((buffer = ring.claim()) == null) {
+                    Thread.yield();
+                }
+                buffer.putInt(i);
+                ring.commit(Integer.BYTES);
+            }
+        });
+        producer.start();
+        for (int i = 0; i < count; i++) {
+            while (ring.isEmpty()) {
+                Thread.yield();
+            }
+            ByteBuffer packet = ring.peek();
+            assertEquals(Integer.BYTES, packet.limit());
+            assertEquals(i, packet.getInt(0));
+            ring.remove();
+        }
+        producer.join();
+        assertTrue(ring.isEmpty());
+    }
+}
@@ -0,0 +1,178 @@
+package org.adaway.vpn;
+
+import org.junit.Test;
+import org.pcap4j.packet.IpPacket;
+import org.pcap4j.packet.IpSelector;
+import org.pcap4j.packet.IpV4Packet;
+import org.pcap4j.packet.IpV4Rfc791Tos;
+import org.pcap4j.packet.IpV6Packet;
+import org.pcap4j.packet.IpV6SimpleFlowLabel;
+import org.pcap4j.packet.IpV6SimpleTrafficClass;
+import org.pcap4j.packet.UdpPacket;
+import org.pcap4j.packet.UnknownPacket;
+import org.pcap4j.packet.namednumber.IpNumber;
+import org.pcap4j.packet.namednumber.IpVersion;
+import org.pcap4j.packet.namednumber.UdpPort;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * This class tests {@link UdpPacketCodec} against the pcap4j packets it replaces.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public class UdpPacketCodecTest {
+    private final Random random = new Random(42);
+
+    @Test
+    public void testIpV4() throws Exception {
+        for (int length = 0; length < 600; length += 37) {
+            assertSameAsPcap4j(buildIpV4Request("10.111.222.1", "10.111.222.2", 53124, 53, length));
+        }
+    }
+
+    @Test
+    public void testIpV6() throws Exception {
+        for (int length = 0; length < 600; length += 37) {
+            assertSameAsPcap4j(buildIpV6Request("fd00::1", "fd00::2", 41000, 53, length));
+        }
+    }
+
+    @Test
+    public void testInvalidPackets() throws Exception {
+        IpPacket request = buildIpV4Request("10.111.222.1", "10.111.222.2", 53124, 53, 32);
+        byte[] data = request.getRawData();
+        // Truncated packet
+        assertEquals(-1, UdpPacketCodec.getHeaderLength(ByteBuffer.wrap(data, 0, 30)));
+        // Not UDP
+        byte[] tcp = data.clone();
+        tcp[9] = 6;
+        assertEquals(-1, UdpPacketCodec.getHeaderLength(ByteBuffer.wrap(tcp)));
+        // Fragment
+        byte[] fragment = data.clone();
+        fragment[6] = 0x20;
+        assertEquals(-1, UdpPacketCodec.getHeaderLength(ByteBuffer.wrap(fragment)));
+        // Unknown version
+        byte[] version = data.clone();
+        version[0] = 0x55;
+        assertEquals(-1, UdpPacketCodec.getHeaderLength(ByteBuffer.wrap(version)));
+    }
+
+    private void assertSameAsPcap4j(IpPacket request) throws Exception {
+        byte[] requestData = request.getRawData();
+        // Parse request back with pcap4j as the VPN did
+        IpPacket parsedRequest = (IpPacket) IpSelector.newPacket(requestData, 0, requestData.length);
+        UdpPacket udpPacket = (UdpPacket) parsedRequest.getPayload();
+        byte[] requestPayload = udpPacket.getPayload() == null ? new byte[0] : udpPacket.getPayload().getRawData();
+        // Check request decoding
+        ByteBuffer requestBuffer = ByteBuffer.wrap(requestData);
+        int headerLength = UdpPacketCodec.getHeaderLength(requestBuffer);
+        assertEquals(parsedRequest.getHeader().length() + udpPacket.getHeader().length(), headerLength);
+        assertEquals(requestPayload.length, UdpPacketCodec.getPayloadLength(requestBuffer, headerLength));
+        assertEquals(udpPacket.getHeader().getDstPort().valueAsInt(), UdpPacketCodec.getDestinationPort(requestBuffer, headerLength));
+        assertEquals(parsedRequest.getHeader().getDstAddr(), UdpPacketCodec.getDestinationAddress(requestBuffer));
+        // Check response encoding
+        byte[] responsePayload = randomBytes(requestPayload.length + 1 + this.random.nextInt(200));
+        byte[] expected = buildPcap4jResponse(parsedRequest, responsePayload);
+        ByteBuffer response = ByteBuffer.allocate(UdpPacketCodec.MAXIMUM_HEADER_LENGTH + responsePayload.length);
+        int length = UdpPacketCodec.writeResponse(requestBuffer, headerLength, responsePayload, 0, responsePayload.length, response);
+        assertEquals(expected.length, length);
+        assertArrayEquals(expected, Arrays.copyOf(response.array(), length));
+    }
+
+    /*
+     * The response building of DnsPacketProxy before the codec.
+     */
+    private static byte[] buildPcap4jResponse(IpPacket requestPacket, byte[] responsePayload) {
+        UdpPacket udpOutPacket = (UdpPacket) requestPacket.getPayload();
+        UdpPacket.Builder payLoadBuilder = new UdpPacket.Builder(udpOutPacket)
+                .srcPort(udpOutPacket.getHeader().getDstPort())
+                .dstPort(udpOutPacket.getHeader().getSrcPort())
+                .srcAddr(requestPacket.getHeader().getDstAddr())
+                .dstAddr(requestPacket.getHeader().getSrcAddr())
+                .correctChecksumAtBuild(true)
+                .correctLengthAtBuild(true)
+                .payloadBuilder(
+                        new UnknownPacket.Builder().rawData(responsePayload)
+                );
+        IpPacket ipOutPacket;
+        if (requestPacket instanceof IpV4Packet) {
+            ipOutPacket = new IpV4Packet.Builder((IpV4Packet) requestPacket)
+                    .srcAddr((Inet4Address) requestPacket.getHeader().getDstAddr())
+                    .dstAddr((Inet4Address) requestPacket.getHeader().getSrcAddr())
+                    .correctChecksumAtBuild(true)
+                    .correctLengthAtBuild(true)
+                    .payloadBuilder(payLoadBuilder)
+                    .build();
+        } else {
+            ipOutPacket = new IpV6Packet.Builder((IpV6Packet) requestPacket)
+                    .srcAddr((Inet6Address) requestPacket.getHeader().getDstAddr())
+                    .dstAddr((Inet6Address) requestPacket.getHeader().getSrcAddr())
+                    .correctLengthAtBuild(true)
+                    .payloadBuilder(payLoadBuilder)
+                    .build();
+        }
+        return ipOutPacket.getRawData();
+    }
+
+    private IpPacket buildIpV4Request(String source, String destination, int sourcePort, int destinationPort, int payloadLength) throws Exception {
+        Inet4Address sourceAddress = (Inet4Address) InetAddress.getByName(source);
+        Inet4Address destinationAddress = (Inet4Address) InetAddress.getByName(destination);
+        return new IpV4Packet.Builder()
+                .version(IpVersion.IPV4)
+                .tos(IpV4Rfc791Tos.newInstance((byte) 0))
+                .identification((short) this.random.nextInt())
+                .ttl((byte) 64)
+                .protocol(IpNumber.UDP)
+                .srcAddr(sourceAddress)
+                .dstAddr(destinationAddress)
+                .payloadBuilder(buildUdp(sourceAddress, destinationAddress, sourcePort, destinationPort, payloadLength))
+                .correctChecksumAtBuild(true)
+                .correctLengthAtBuild(true)
+                .build();
+    }
+
+    private IpPacket buildIpV6Request(String source, String destination, int sourcePort, int destinationPort, int payloadLength) throws Exception {
+        Inet6Address sourceAddress = (Inet6Address) InetAddress.getByName(source);
+        Inet6Address destinationAddress = (Inet6Address) InetAddress.getByName(destination);
+        return new IpV6Packet.Builder()
+                .version(IpVersion.IPV6)
+                .trafficClass(IpV6SimpleTrafficClass.newInstance((byte) 0))
+                .flowLabel(IpV6SimpleFlowLabel.newInstance(this.random.nextInt(0x100000)))
+                .hopLimit((byte) 64)
+                .nextHeader(IpNumber.UDP)
+                .srcAddr(sourceAddress)
+                .dstAddr(destinationAddress)
+                .payloadBuilder(buildUdp(sourceAddress, destinationAddress, sourcePort, destinationPort, payloadLength))
+                .correctLengthAtBuild(true)
+                .build();
+    }
+
+    private UdpPacket.Builder buildUdp(InetAddress source, InetAddress destination, int sourcePort, int destinationPort, int payloadLength) {
+        UdpPacket.Builder builder = new UdpPacket.Builder()
+                .srcPort(UdpPort.getInstance((short) sourcePort))
+                .dstPort(UdpPort.getInstance((short) destinationPort))
+                .srcAddr(source)
+                .dstAddr(destination)
+                .correctChecksumAtBuild(true)
+                .correctLengthAtBuild(true);
+        if (payloadLength > 0) {
+            builder.payloadBuilder(new UnknownPacket.Builder().rawData(randomBytes(payloadLength)));
+        }
+        return builder;
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        this.random.nextBytes(bytes);
+        return bytes;
+    }
+}
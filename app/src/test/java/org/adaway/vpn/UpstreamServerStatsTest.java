@@ -0,0 +1,78 @@
+package org.adaway.vpn;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * This class tests the response time and loss tracking of {@link UpstreamServerStats}.
+ *
+ * @author Bruce BUJON (bruce.bujon(at)gmail(dot)com)
+ */
+public class UpstreamServerStatsTest {
+    @Test
+    public void testPercentile() throws UnknownHostException {
+        UpstreamServerStats stats = new UpstreamServerStats(InetAddress.getByAddress(new byte[]{1, 1, 1, 1}));
+        assertEquals(-1, stats.getPercentile95());
+        // Use default hedge delay until there are enough responses
+        stats.recordResponse(20);
+        assertEquals(20, stats.getSmoothedRtt(), 0);
+        assertEquals(500, stats.getHedgeDelay());
+        // Record 1 to 100 ms response times
+        for (int i = 1; i <= 100; i++) {
+            stats.recordResponse(i);
+        }
+        // Only the last 64 response times, from 37 to 100 ms, are kept
+        assertEquals(97, stats.getPercentile95());
+        assertEquals(97, stats.getHedgeDelay());
+        // A slow response evicts the oldest one
+        stats.recordResponse(1000);
+        assertEquals(98, stats.getPercentile95());
+    }
+
+    @Test
+    public void testHedgeLoss() throws UnknownHostException {
+        UpstreamServerStats stats = new UpstreamServerStats(InetAddress.getByAddress(new byte[]{1, 1, 1, 1}));
+        for (int i = 0; i < 10; i++) {
+            stats.recordResponse(20);
+        }
+        // Losing against hedges does not change the response times
+        for (int i = 0; i < 10; i++) {
+            stats.recordHedgeLoss();
+        }
+        assertEquals(10, stats.getHedgeLossCount());
+        assertEquals(20, stats.getSmoothedRtt(), 0);
+        assertEquals(20, stats.getPercentile95());
+        assertEquals(20, stats.getHedgeDelay());
+        assertTrue(stats.isHealthy());
+    }
+
+    @Test
+    public void testLoss() throws UnknownHostException {
+        UpstreamServerStats stats = new UpstreamServerStats(InetAddress.getByAddress(new byte[]{1, 1, 1, 1}));
+        long now = 1_000_000;
+        assertTrue(stats.isHealthy());
+        // Lose queries until unhealthy
+        int lossCount = 0;
+        while (stats.isHealthy()) {
+            stats.recordLoss(now);
+            lossCount++;
+        }
+        assertEquals(6, lossCount);
+        assertFalse(stats.isAvailable(now));
+        // Probe a single query once the probe delay elapsed
+        now += 30_000;
+        assertTrue(stats.isAvailable(now));
+        stats.notifySent(now);
+        assertFalse(stats.isAvailable(now));
+        // Recover on response
+        stats.recordResponse(50);
+        assertTrue(stats.isHealthy());
+        assertTrue(stats.isAvailable(now));
+    }
+}